@@ -0,0 +1,268 @@
+package cy.nicosia.zenont.base;
+
+import java.lang.ref.Cleaner;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of reusable I/O buffers in power of two size classes.
+ * <p/>
+ * A buffer is leased for at least the capacity asked for and must be released once it is no longer
+ * used, after which it is handed to the next lease of its class. Each platform thread keeps its last
+ * released buffer of every class up to 16 KB to itself, about 31 KB per thread, other buffers go to
+ * lock free shared queues bounded in bytes per class. Virtual threads skip the thread cache since
+ * they rarely outlive a connection.
+ * Capacities above the largest class are allocated per lease and dropped on release.<br/>
+ * A pool holds heap buffers backed by arrays or direct buffers for channel I/O.
+ * <p/>
+ * While <b>Logger</b> debugging is on, leases that are garbage collected without being released
+ * are logged with the stack of the code which leased them.
+ */
+public class BufferPool {
+
+	private static final String TAG = "BufferPool";
+	private static final int MIN_CLASS_SHIFT = 10;
+	//Largest size class kept per thread, larger ones only go to the bounded shared queues
+	private static final int MAX_CACHED_CLASS_SHIFT = 14;
+	private static final Cleaner CLEANER = Cleaner.create();
+	//Thread.isVirtual, looked up reflectively so the class still loads on JDKs without it
+	private static final Method IS_VIRTUAL = isVirtualMethod();
+	private static final BufferPool SHARED = new BufferPool(1024 * 1024, 1024 * 1024, false);
+
+	private final boolean _direct;
+	private final int _maxClassLength;
+	private final int _maxPooledBytes;
+	private final ConcurrentLinkedQueue<ByteBuffer>[] _free;
+	private final AtomicInteger[] _freeBytes;
+	private final ThreadLocal<ByteBuffer[]> _threadCache;
+
+	private final LongAdder _leases = new LongAdder();
+	private final LongAdder _hits = new LongAdder();
+	private final AtomicLong _outstanding = new AtomicLong();
+	/**
+	 * @param maxClassLength Capacity of the largest size class, rounded up to a power of two.
+	 * @param maxPooledBytes Most bytes kept in the shared queue of each size class.
+	 * @param direct True for direct buffers, false for heap buffers backed by arrays.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(int maxClassLength, int maxPooledBytes, boolean direct) {
+		_direct = direct;
+		int classes = Math.max(1, 33 - Integer.numberOfLeadingZeros(Math.max(maxClassLength, 1) - 1) - MIN_CLASS_SHIFT);
+		_maxClassLength = 1 << (MIN_CLASS_SHIFT + classes - 1);
+		_maxPooledBytes = maxPooledBytes;
+		_free = new ConcurrentLinkedQueue[classes];
+		_freeBytes = new AtomicInteger[classes];
+		for (int i = 0; i < classes; i++) {
+			_free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			_freeBytes[i] = new AtomicInteger();
+		}
+		_threadCache = new ThreadLocal<ByteBuffer[]>() {
+			@Override
+			protected ByteBuffer[] initialValue() {
+				return new ByteBuffer[Math.min(_free.length, MAX_CACHED_CLASS_SHIFT - MIN_CLASS_SHIFT + 1)];
+			}
+		};
+	}
+	/**
+	 * @return the pool of heap buffers shared by the protocols of this library.
+	 */
+	public static BufferPool getShared() {
+		return SHARED;
+	}
+	/**
+	 * @param capacity Fewest bytes the buffer must hold.
+	 * @return a lease of a cleared buffer of at least <code>capacity</code> bytes.
+	 */
+	public Lease lease(int capacity) {
+		_leases.increment();
+		_outstanding.incrementAndGet();
+
+		int sizeClass = sizeClass(capacity);
+		ByteBuffer buffer = null;
+		if (sizeClass != -1) {
+			ByteBuffer[] cache = threadCache();
+			if (cache != null && sizeClass < cache.length && cache[sizeClass] != null) {
+				buffer = cache[sizeClass];
+				cache[sizeClass] = null;
+			} else {
+				buffer = _free[sizeClass].poll();
+				if (buffer != null)
+					_freeBytes[sizeClass].addAndGet(-buffer.capacity());
+			}
+		}
+
+		if (buffer != null) {
+			_hits.increment();
+			buffer.clear();
+		} else {
+			int length = (sizeClass == -1 ? capacity : 1 << (MIN_CLASS_SHIFT + sizeClass));
+			buffer = (_direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length));
+		}
+		return new Lease(this, buffer, sizeClass);
+	}
+
+	private void recycle(ByteBuffer buffer, int sizeClass) {
+		_outstanding.decrementAndGet();
+		if (sizeClass == -1)
+			return;
+
+		ByteBuffer[] cache = threadCache();
+		if (cache != null && sizeClass < cache.length && cache[sizeClass] == null) {
+			cache[sizeClass] = buffer;
+			return;
+		}
+		//Buffers over the bound are left to the garbage collector
+		if (_freeBytes[sizeClass].addAndGet(buffer.capacity()) <= _maxPooledBytes)
+			_free[sizeClass].offer(buffer);
+		else
+			_freeBytes[sizeClass].addAndGet(-buffer.capacity());
+	}
+	/**
+	 * @return the index of the smallest size class holding <code>capacity</code> bytes, or -1 if it is too large for any.
+	 */
+	private int sizeClass(int capacity) {
+		if (capacity > _maxClassLength)
+			return -1;
+		if (capacity <= 1 << MIN_CLASS_SHIFT)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_CLASS_SHIFT;
+	}
+
+	private ByteBuffer[] threadCache() {
+		if (IS_VIRTUAL != null) {
+			try {
+				if ((Boolean) IS_VIRTUAL.invoke(Thread.currentThread()))
+					return null;
+			} catch (Exception e) {
+				return null;
+			}
+		}
+		return _threadCache.get();
+	}
+
+	private static Method isVirtualMethod() {
+		try {
+			return Thread.class.getMethod("isVirtual");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	public boolean isDirect() {
+		return _direct;
+	}
+	/**
+	 * @return the number of leases made.
+	 */
+	public long getLeaseCount() {
+		return _leases.sum();
+	}
+	/**
+	 * @return the number of leases served with a pooled buffer instead of a new allocation.
+	 */
+	public long getHitCount() {
+		return _hits.sum();
+	}
+	/**
+	 * @return the share of leases served with a pooled buffer, from 0 to 1.
+	 */
+	public double getHitRate() {
+		long leases = _leases.sum();
+		return (leases == 0L ? 0d : (double) _hits.sum() / leases);
+	}
+	/**
+	 * @return the number of leases not yet released.
+	 */
+	public long getOutstandingCount() {
+		return _outstanding.get();
+	}
+
+	@Override
+	public String toString() {
+		return TAG + "[leases=" + getLeaseCount() + ", hitRate=" + String.format("%.3f", getHitRate()) +
+				", outstanding=" + getOutstandingCount() + "]";
+	}
+	/**
+	 * A buffer leased from a pool. It must not be used after <code>release</code>.
+	 */
+	public static final class Lease {
+
+		private final BufferPool _pool;
+		private final int _sizeClass;
+		private ByteBuffer _buffer;
+		private final LeakCheck _leakCheck;
+		private final Cleaner.Cleanable _cleanable;
+
+		private Lease(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+			_pool = pool;
+			_buffer = buffer;
+			_sizeClass = sizeClass;
+			if (Logger._debug) {
+				_leakCheck = new LeakCheck(new Throwable("Leased here"));
+				_cleanable = CLEANER.register(this, _leakCheck);
+			} else {
+				_leakCheck = null;
+				_cleanable = null;
+			}
+		}
+		/**
+		 * @return the leased buffer. Its position and limit are the lessee's to change.
+		 */
+		public ByteBuffer buffer() {
+			return _buffer;
+		}
+		/**
+		 * @return the array backing a heap buffer.
+		 * @throws UnsupportedOperationException if the buffer is direct.
+		 */
+		public byte[] array() {
+			return _buffer.array();
+		}
+
+		public int capacity() {
+			return _buffer.capacity();
+		}
+		/**
+		 * Return the buffer to its pool. Further calls do nothing.
+		 */
+		public void release() {
+			ByteBuffer buffer = _buffer;
+			if (buffer == null)
+				return;
+			_buffer = null;
+			if (_leakCheck != null) {
+				_leakCheck._released = true;
+				_cleanable.clean();
+			}
+			_pool.recycle(buffer, _sizeClass);
+		}
+	}
+	/**
+	 * Run when a lease made while debugging is released or becomes unreachable.
+	 * It must not reference the lease or the lease would never become unreachable.
+	 */
+	private static final class LeakCheck implements Runnable {
+
+		private final Throwable _trace;
+		private volatile boolean _released;
+
+		LeakCheck(Throwable trace) {
+			_trace = trace;
+		}
+
+		@Override
+		public void run() {
+			if (_released)
+				return;
+			StringBuilder sb = new StringBuilder("Buffer lease collected without release, leased");
+			for (StackTraceElement element : _trace.getStackTrace())
+				if (!element.getClassName().startsWith(BufferPool.class.getName()))
+					sb.append("\n\tat ").append(element);
+			Logger.error(TAG, sb.toString());
+		}
+	}
+}
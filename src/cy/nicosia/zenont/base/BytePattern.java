@@ -0,0 +1,57 @@
+package cy.nicosia.zenont.base;
+
+/**
+ * Byte sequence prepared for repeated searching with the Boyer-Moore-Horspool algorithm.
+ * <p/>
+ * Each mismatch skips ahead by the distance from the last occurrence of the byte under the end of
+ * the pattern to the end of the pattern, so long patterns such as multipart boundaries are found
+ * while looking at a fraction of the bytes. A pattern is immutable and can be shared between threads.
+ */
+public class BytePattern {
+
+	private final byte[] _pattern;
+	//Distance to shift the pattern when the byte under its last position mismatches
+	private final int[] _skip;
+
+	public BytePattern(byte[] pattern) {
+		assert (pattern != null && pattern.length > 0);
+
+		_pattern = pattern.clone();
+		_skip = new int[256];
+		int last = _pattern.length - 1;
+		for (int i = 0; i < _skip.length; i++)
+			_skip[i] = _pattern.length;
+		for (int i = 0; i < last; i++)
+			_skip[_pattern[i] & 0xFF] = last - i;
+	}
+
+	public int length() {
+		return _pattern.length;
+	}
+
+	public byte[] getBytes() {
+		return _pattern.clone();
+	}
+	/**
+	 * @param array Bytes to search.
+	 * @param from Index of the first byte where the pattern may start.
+	 * @param end Index after the last byte which may be read.
+	 * @return the index of the first byte of the first occurrence, or -1 if there is none.
+	 */
+	public int indexOf(byte[] array, int from, int end) {
+		int last = _pattern.length - 1;
+		int index = Math.max(from, 0);
+		while (index + last < end) {
+			byte tail = array[index + last];
+			if (tail == _pattern[last]) {
+				int i = last - 1;
+				while (i >= 0 && array[index + i] == _pattern[i])
+					i--;
+				if (i < 0)
+					return index;
+			}
+			index += _skip[tail & 0xFF];
+		}
+		return -1;
+	}
+}
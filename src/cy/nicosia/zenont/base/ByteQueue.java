@@ -0,0 +1,185 @@
+package cy.nicosia.zenont.base;
+
+import java.nio.ByteBuffer;
+
+/**
+ * First in first out queue of bytes held in a single array, for bytes received but not yet parsed.
+ * <p/>
+ * Consumed bytes are dropped in constant time by moving the start index. Held bytes always sit in
+ * one contiguous run from <code>getOffset()</code> so parsers can index them directly. Space is
+ * reclaimed by moving them back to the start of the array only once they take at most half of it,
+ * and otherwise the array doubles, so appends cost amortized constant time per byte.<br/>
+ * A queue left empty with a capacity above its idle capacity drops its array for a smaller one,
+ * so one large request does not pin memory for the rest of a persistent connection.<br/>
+ * Arrays can be leased from a <b>BufferPool</b>, in which case the queue must be released once it is
+ * no longer used.
+ */
+public class ByteQueue {
+
+	//Largest array size the VM reliably allocates
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final BufferPool _pool;
+	private final int _initialCapacity;
+	private final int _idleCapacity;
+	//Lease of the array when it comes from the pool
+	private BufferPool.Lease _lease;
+	private byte[] _array;
+	//Index of the first held byte
+	private int _start;
+	//Index after the last held byte
+	private int _end;
+
+	public ByteQueue() {
+		this(null, 4 * 1024, 64 * 1024);
+	}
+	/**
+	 * @param pool Pool to lease arrays from or null to allocate them. Arrays are only leased once bytes are appended.
+	 * @param initialCapacity Capacity the queue starts with, rounded up to a power of two.
+	 * @param idleCapacity Capacity kept once the queue is empty. -1 to never shrink.
+	 */
+	public ByteQueue(BufferPool pool, int initialCapacity, int idleCapacity) {
+		_pool = pool;
+		_initialCapacity = powerOfTwo(initialCapacity);
+		_idleCapacity = (idleCapacity < 0 ? -1 : Math.max(powerOfTwo(idleCapacity), _initialCapacity));
+		_array = (pool != null ? EMPTY : new byte[_initialCapacity]);
+	}
+
+	public void concatenate(final byte[] secondary, int secondaryDataLength) {
+		concatenate(secondary, 0, secondaryDataLength);
+	}
+
+	public void concatenate(final byte[] secondary, int offset, int length) {
+
+		assert (secondary != null);
+
+		if (length <= 0)
+			return;
+
+		ensureWritable(length);
+		System.arraycopy(secondary, offset, _array, _end, length);
+		_end += length;
+	}
+	/**
+	 * @param secondary Bytes to append. Its position is advanced past them.
+	 */
+	public void concatenate(final ByteBuffer secondary) {
+
+		assert (secondary != null);
+
+		int length = secondary.remaining();
+		if (length <= 0)
+			return;
+
+		ensureWritable(length);
+		secondary.get(_array, _end, length);
+		_end += length;
+	}
+	/**
+	 * Drop bytes from the front of the queue.
+	 * @param count Number of bytes to drop, at most <code>length()</code>.
+	 */
+	public void shift(int count) {
+		assert (count >= 0 && count <= length());
+
+		_start += count;
+		if (_start == _end) {
+			_start = 0;
+			_end = 0;
+			if (_idleCapacity != -1 && _array.length > _idleCapacity) {
+				if (_pool != null)
+					release();
+				else
+					_array = new byte[_idleCapacity];
+			}
+		}
+	}
+	/**
+	 * Drop the held bytes and return a leased array to the pool. The queue can still be used afterwards.
+	 */
+	public void release() {
+		_start = 0;
+		_end = 0;
+		if (_lease != null) {
+			_lease.release();
+			_lease = null;
+			_array = EMPTY;
+		}
+	}
+	/**
+	 * @param pattern Bytes to search for.
+	 * @param from Index relative to the first held byte where the search starts.
+	 * @return the index relative to the first held byte after the first occurrence of the pattern, or -1 if there is none.
+	 */
+	public int find(BytePattern pattern, int from) {
+		int index = pattern.indexOf(_array, _start + from, _end);
+		return (index == -1 ? -1 : index - _start + pattern.length());
+	}
+	/**
+	 * @return the array holding the bytes from <code>getOffset()</code> for <code>length()</code> bytes.
+	 * Only valid until the queue is next changed.
+	 */
+	public byte[] getArray() {
+		return _array;
+	}
+	/**
+	 * @return the index of the first held byte in <code>getArray()</code>.
+	 */
+	public int getOffset() {
+		return _start;
+	}
+	/**
+	 * @return the held byte at an index relative to the first held byte.
+	 */
+	public byte get(int index) {
+		return _array[_start + index];
+	}
+
+	public int length() {
+		return _end - _start;
+	}
+
+	public int capacity() {
+		return _array.length;
+	}
+
+	private void ensureWritable(int length) {
+		if (_array.length - _end >= length)
+			return;
+
+		int held = _end - _start;
+		long needed = (long) held + length;
+		if (needed > MAX_CAPACITY)
+			throw new OutOfMemoryError("ByteQueue cannot hold " + needed + " bytes");
+
+		byte[] array = _array;
+		BufferPool.Lease lease = _lease;
+		//Keep at least half of the array free after moving the held bytes so moves stay rare
+		if (needed * 2 > _array.length) {
+			int capacity = (int) Math.min(MAX_CAPACITY, Math.max(_initialCapacity, Long.highestOneBit(needed * 2 - 1) << 1));
+			if (_pool != null) {
+				lease = _pool.lease(capacity);
+				array = lease.array();
+			} else {
+				array = new byte[capacity];
+			}
+		}
+		System.arraycopy(_array, _start, array, 0, held);
+		if (lease != _lease) {
+			if (_lease != null)
+				_lease.release();
+			_lease = lease;
+		}
+		_array = array;
+		_start = 0;
+		_end = held;
+	}
+
+	private static int powerOfTwo(int capacity) {
+		if (capacity <= 1)
+			return 1;
+		return (capacity > (1 << 30) ? 1 << 30 : Integer.highestOneBit(capacity - 1) << 1);
+	}
+}
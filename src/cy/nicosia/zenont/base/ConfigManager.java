@@ -1,34 +1,40 @@
 package cy.nicosia.zenont.base;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 public class ConfigManager {
 
 	private static final String TAG = "Configuration Manager";
 
-	private final Map<Class<? extends Config>, Config> _configSettings;
+	private final ConcurrentMap<Class<? extends Config>, Config> _configSettings;
 	
 	private ConfigManager() {
-		_configSettings = new HashMap<Class<? extends Config>, Config>();
+		_configSettings = new ConcurrentHashMap<Class<? extends Config>, Config>();
 	}
 
 	public static ConfigManager getNewInstance() {
 		return new ConfigManager();
 	}
 
-	public synchronized Config getConfig(Class<? extends Config> key) {
-		if (_configSettings.containsKey(key)) {
-			return _configSettings.get(key);
-		} else {
+	/**
+	 * Lock free so that callers running on virtual threads are never pinned.
+	 * @param key Config class.
+	 * @return the shared instance for the class, created with defaults on first use.
+	 */
+	public Config getConfig(Class<? extends Config> key) {
+		Config config = _configSettings.get(key);
+		if (config == null) {
 			try {
-				_configSettings.put(key, key.newInstance());
+				//Only the first instance stored is ever returned
+				_configSettings.putIfAbsent(key, key.newInstance());
 			}  catch (Exception e) {
 				Logger.error(TAG, e);
 			}
-			return _configSettings.get(key);
+			config = _configSettings.get(key);
 		}
+		return config;
 	}
 
 	public abstract static class Config {
@@ -55,26 +55,20 @@ public class DynamicByteArray {
 
 	public static abstract class ByteArrayUtils {
 
+		/**
+		 * @return the index after the first occurrence of <code>chars</code>, or -1 if there is none.
+		 */
 		public static int findBytes(final byte[] buffer, int dataLength, byte[] chars) {
-			int bufferByte = 0;
-			int charByte = 0;
-			while ((bufferByte + (chars.length - 1) - charByte) < dataLength) {
-				//byte in buffer matches byte in char sequence
-				if (buffer[bufferByte] == chars[charByte]) {
-					//Are we at end of character sequence
-					if (charByte < chars.length - 1)
-						//No, so increment both buffers and continue
-						charByte++;
-					else {
-						//Yes so return our findings
-						return bufferByte + 1;
-					}
-				} else {
-					//Reset to beginning
-					charByte = 0;
-				}
-
-				bufferByte++;
+			int last = dataLength - chars.length;
+			for (int bufferByte = 0; bufferByte <= last; bufferByte++) {
+				//Compare the rest of the sequence only where its first byte matches
+				if (buffer[bufferByte] != chars[0])
+					continue;
+				int charByte = 1;
+				while (charByte < chars.length && buffer[bufferByte + charByte] == chars[charByte])
+					charByte++;
+				if (charByte == chars.length)
+					return bufferByte + chars.length;
 			}
 			return -1;
 		}
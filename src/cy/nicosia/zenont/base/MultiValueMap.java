@@ -36,6 +36,13 @@ public class MultiValueMap<T1, T2> {
 		_collection.get(key).clear();
 		_collection.get(key).add(value);
 	}
+	/**
+	 * Use this method to drop a key and all of its values.
+	 * @param key
+	 */
+	public void removeKey(T1 key) {
+		_collection.remove(key);
+	}
 	/**
 	 * @return a Map object containing all headers.
 	 */
@@ -2,7 +2,15 @@ package cy.nicosia.zenont.base;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Typed key value store shared between threads.
+ * <p/>
+ * Guarded by a ReadWriteLock rather than synchronized methods so that readers do not
+ * contend with each other and virtual threads are not pinned to their carrier.
+ */
 public class Pile {
 
 	public static final String TAG = "Pile";
@@ -14,6 +22,7 @@ public class Pile {
 	private Map<String, Float> _floatValues;
 	private Map<String, Object> _objectValues;
 	private Map<String, Boolean> _booleanValues;
+	private final ReadWriteLock _lock = new ReentrantReadWriteLock();
 	
 	{
 		_stringValues = null;
@@ -25,74 +34,144 @@ public class Pile {
 		_booleanValues = null;
 	}
 	
-	public synchronized void addString(String key, String value) {
-		if (_stringValues == null)
-			_stringValues = new HashMap<String, String>();
-		_stringValues.put(key, value);
+	public void addString(String key, String value) {
+		_lock.writeLock().lock();
+		try {
+			if (_stringValues == null)
+				_stringValues = new HashMap<String, String>();
+			_stringValues.put(key, value);
+		} finally {
+			_lock.writeLock().unlock();
+		}
 	}
 
-	public synchronized String getString(String key) {
-		return _stringValues.get(key);
+	public String getString(String key) {
+		_lock.readLock().lock();
+		try {
+			return _stringValues.get(key);
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 
-	public synchronized void addInteger(String key, Integer value) {
-		if (_intValues == null)
-			_intValues = new HashMap<String, Integer>();
-		_intValues.put(key, value);
+	public void addInteger(String key, Integer value) {
+		_lock.writeLock().lock();
+		try {
+			if (_intValues == null)
+				_intValues = new HashMap<String, Integer>();
+			_intValues.put(key, value);
+		} finally {
+			_lock.writeLock().unlock();
+		}
 	}
 
-	public synchronized Integer getInteger(String key) {
-		return _intValues.get(key);
+	public Integer getInteger(String key) {
+		_lock.readLock().lock();
+		try {
+			return _intValues.get(key);
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 
-	public synchronized void addLong(String key, Long value) {
-		if (_longValues == null)
-			_longValues = new HashMap<String, Long>();
-		_longValues.put(key, value);
+	public void addLong(String key, Long value) {
+		_lock.writeLock().lock();
+		try {
+			if (_longValues == null)
+				_longValues = new HashMap<String, Long>();
+			_longValues.put(key, value);
+		} finally {
+			_lock.writeLock().unlock();
+		}
 	}
 
-	public synchronized Long getLong(String key) {
-		return _longValues.get(key);
+	public Long getLong(String key) {
+		_lock.readLock().lock();
+		try {
+			return _longValues.get(key);
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 
-	public synchronized void addDouble(String key, Double value) {
-		if (_doubleValues == null)
-			_doubleValues = new HashMap<String, Double>();
-		_doubleValues.put(key, value);
+	public void addDouble(String key, Double value) {
+		_lock.writeLock().lock();
+		try {
+			if (_doubleValues == null)
+				_doubleValues = new HashMap<String, Double>();
+			_doubleValues.put(key, value);
+		} finally {
+			_lock.writeLock().unlock();
+		}
 	}
 
-	public synchronized Double getDouble(String key) {
-		return _doubleValues.get(key);
+	public Double getDouble(String key) {
+		_lock.readLock().lock();
+		try {
+			return _doubleValues.get(key);
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 
-	public synchronized void addFloat(String key, Float value) {
-		if (_floatValues == null)
-			_floatValues = new HashMap<String, Float>();
-		_floatValues.put(key, value);
+	public void addFloat(String key, Float value) {
+		_lock.writeLock().lock();
+		try {
+			if (_floatValues == null)
+				_floatValues = new HashMap<String, Float>();
+			_floatValues.put(key, value);
+		} finally {
+			_lock.writeLock().unlock();
+		}
 	}
 
-	public synchronized Float getFloat(String key) {
-		return _floatValues.get(key);
+	public Float getFloat(String key) {
+		_lock.readLock().lock();
+		try {
+			return _floatValues.get(key);
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 
-	public synchronized void addObject(String key, Object value) {
-		if (_objectValues == null)
-			_objectValues = new HashMap<String, Object>();
-		_objectValues.put(key, value);
+	public void addObject(String key, Object value) {
+		_lock.writeLock().lock();
+		try {
+			if (_objectValues == null)
+				_objectValues = new HashMap<String, Object>();
+			_objectValues.put(key, value);
+		} finally {
+			_lock.writeLock().unlock();
+		}
 	}
 
-	public synchronized Object getObject(String key) {
-		return _objectValues.get(key);
+	public Object getObject(String key) {
+		_lock.readLock().lock();
+		try {
+			return _objectValues.get(key);
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 	
-	public synchronized void addBool(String key, boolean value) {
-		if (_booleanValues == null)
-			_booleanValues = new HashMap<String, Boolean>();
-		_booleanValues.put(key, value);
+	public void addBool(String key, boolean value) {
+		_lock.writeLock().lock();
+		try {
+			if (_booleanValues == null)
+				_booleanValues = new HashMap<String, Boolean>();
+			_booleanValues.put(key, value);
+		} finally {
+			_lock.writeLock().unlock();
+		}
 	}
 
-	public synchronized Object getBool(String key) {
-		return _booleanValues.get(key);
+	public Object getBool(String key) {
+		_lock.readLock().lock();
+		try {
+			return _booleanValues.get(key);
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 	
 }
@@ -0,0 +1,164 @@
+package cy.nicosia.zenont.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * <b>IConnection</b> backed by a SocketChannel of any protocol family, TCP or Unix domain.
+ * <p/>
+ * The channel is switched to non-blocking mode and the streams block on private Selectors,
+ * which lets reads time out on channels whose socket adaptor does not support SO_TIMEOUT.
+ */
+public class ChannelConnection implements IFileTransferConnection {
+
+	@SuppressWarnings("unused")
+	private static final String TAG = "ChannelConnection";
+
+	private final SocketChannel _channel;
+	private final Selector _readSelector;
+	private final Selector _writeSelector;
+	private final InputStream _inputStream;
+	private final OutputStream _outputStream;
+	private volatile int _readTimeout;
+
+	public ChannelConnection(SocketChannel channel) throws IOException {
+		_channel = channel;
+		_channel.configureBlocking(false);
+		_readSelector = Selector.open();
+		_writeSelector = Selector.open();
+		_channel.register(_readSelector, SelectionKey.OP_READ);
+		_channel.register(_writeSelector, SelectionKey.OP_WRITE);
+		_inputStream = new ChannelInputStream();
+		_outputStream = new ChannelOutputStream();
+	}
+	/**
+	 * @return the underlying channel. It is in non-blocking mode.
+	 */
+	public SocketChannel getChannel() {
+		return _channel;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return _inputStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return _outputStream;
+	}
+
+	@Override
+	public void setReadTimeout(int timeout) {
+		_readTimeout = timeout;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return !_channel.isOpen();
+	}
+
+	@Override
+	public String getRemoteAddress() {
+		try {
+			return String.valueOf(_channel.getRemoteAddress());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public boolean canTransferFile() {
+		return true;
+	}
+
+	@Override
+	public long transferFile(FileChannel file, long position, long count) throws IOException {
+		long sent = 0L;
+		while (sent < count) {
+			long transferred = file.transferTo(position + sent, count - sent, _channel);
+			if (transferred <= 0L) {
+				//Nothing left to read from the file
+				if (position + sent >= file.size())
+					break;
+				//Socket buffer full
+				_writeSelector.select();
+				_writeSelector.selectedKeys().clear();
+			}
+			sent += transferred;
+		}
+		return sent;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			_channel.close();
+		} finally {
+			_readSelector.close();
+			_writeSelector.close();
+		}
+	}
+
+	private class ChannelInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			int read = read(single, 0, 1);
+			return (read == -1 ? -1 : single[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+			int read;
+			while ((read = _channel.read(dst)) == 0) {
+				//Wait for data and time out like a socket would
+				if (_readSelector.select(_readTimeout) == 0 && _readTimeout > 0)
+					throw new SocketTimeoutException("Read timed out");
+				_readSelector.selectedKeys().clear();
+			}
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			ChannelConnection.this.close();
+		}
+	}
+
+	private class ChannelOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer src = ByteBuffer.wrap(b, off, len);
+			while (src.hasRemaining()) {
+				if (_channel.write(src) == 0) {
+					_writeSelector.select();
+					_writeSelector.selectedKeys().clear();
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			ChannelConnection.this.close();
+		}
+	}
+}
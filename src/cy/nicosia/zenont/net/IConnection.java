@@ -0,0 +1,38 @@
+package cy.nicosia.zenont.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Interface for a connection handed to protocol handlers independently of the transport carrying it.
+ * <p/>
+ * Streams are blocking. Reads that exceed the read timeout throw a SocketTimeoutException.
+ */
+public interface IConnection extends Closeable {
+
+	/**
+	 * @return the stream of bytes received from the peer.
+	 * @throws IOException
+	 */
+	public InputStream getInputStream() throws IOException;
+	/**
+	 * @return the stream of bytes sent to the peer.
+	 * @throws IOException
+	 */
+	public OutputStream getOutputStream() throws IOException;
+	/**
+	 * @param timeout Milliseconds a read may block before timing out. 0 blocks forever.
+	 * @throws IOException
+	 */
+	public void setReadTimeout(int timeout) throws IOException;
+	/**
+	 * @return True once the connection has been closed.
+	 */
+	public boolean isClosed();
+	/**
+	 * @return a printable address of the peer.
+	 */
+	public String getRemoteAddress();
+}
@@ -0,0 +1,27 @@
+package cy.nicosia.zenont.net;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Interface for connections which can send file content directly from a FileChannel,
+ * letting the kernel copy the bytes (sendfile) instead of moving them through user space buffers.
+ * <p/>
+ * Protocol handlers should flush the output stream before transferring so the bytes keep their order.
+ */
+public interface IFileTransferConnection extends IConnection {
+
+	/**
+	 * @return True if <code>transferFile</code> can be used on this connection.
+	 */
+	public boolean canTransferFile();
+	/**
+	 * Send part of a file, blocking until all of it has been sent.
+	 * @param file Channel to send from. Its position is not changed.
+	 * @param position Position in the file of the first byte to send.
+	 * @param count Number of bytes to send.
+	 * @return the number of bytes sent, less than <code>count</code> only if the file is shorter.
+	 * @throws IOException
+	 */
+	public long transferFile(FileChannel file, long position, long count) throws IOException;
+}
@@ -0,0 +1,373 @@
+package cy.nicosia.zenont.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cy.nicosia.zenont.base.ConfigManager;
+import cy.nicosia.zenont.base.Logger;
+import cy.nicosia.zenont.base.ConfigManager.Config;
+import cy.nicosia.zenont.net.protocol.IProtocol;
+
+/**
+ * <b>LoopbackSocketD</b> serves protocol handlers over in-memory duplex pipes instead of sockets.
+ * <p/>
+ * Code in the same JVM calls <code>connect</code> to obtain the client end of a new connection
+ * while the server end is handed to a protocol handler on its own thread, exactly as a socket
+ * listener would. No kernel socket is involved, which makes it suitable for benchmarking
+ * handlers and for integration tests that must not open ports.
+ */
+public class LoopbackSocketD implements ISocketD {
+
+	private static final String TAG = "LoopbackSocketD";
+
+	private volatile boolean _started;
+	private final Set<LoopbackConnection> _connections;
+	private final AtomicLong _totalConnects;
+	private LoopbackSocketDConfig _cfg;
+
+	protected ConfigManager _cfgMgr;
+
+	public LoopbackSocketD(ConfigManager configManager) {
+		_cfgMgr = configManager;
+		_cfg = (LoopbackSocketDConfig) _cfgMgr.getConfig(LoopbackSocketDConfig.class);
+		_connections = Collections.newSetFromMap(new ConcurrentHashMap<LoopbackConnection, Boolean>());
+		_totalConnects = new AtomicLong();
+	}
+
+	@Override
+	public boolean start() {
+		_started = true;
+		Logger.debug(TAG, "Server started");
+		return true;
+	}
+
+	@Override
+	public void stop() {
+		_started = false;
+		for (LoopbackConnection connection : _connections) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				Logger.error(TAG, e);
+			}
+		}
+		_connections.clear();
+	}
+	/**
+	 * Open a new connection to the protocol handler.
+	 * @return the client end of the connection.
+	 * @throws IOException if the server has not been started.
+	 */
+	public IConnection connect() throws IOException {
+		if (!_started)
+			throw new IOException("Connection refused");
+
+		Pipe clientToServer = new Pipe(_cfg.getConfigPipeCapacity());
+		Pipe serverToClient = new Pipe(_cfg.getConfigPipeCapacity());
+		LoopbackConnection client = new LoopbackConnection(serverToClient, clientToServer, "loopback-server");
+		LoopbackConnection server = new LoopbackConnection(clientToServer, serverToClient, "loopback-client");
+		_connections.add(server);
+
+		long connectionNumber = _totalConnects.incrementAndGet();
+		Thread connection = new Thread(new ConnectionWorker(server));
+		connection.setName("Connection-Loopback-" + connectionNumber);
+		connection.setDaemon(true);
+		connection.start();
+
+		return client;
+	}
+	/**
+	 * @return The number of total connections opened.
+	 */
+	public long getTotalConnections() {
+		return _totalConnects.get();
+	}
+	/**
+	 * Runnable that hands each connection to protocol handler.
+	 */
+	class ConnectionWorker implements Runnable {
+
+		private static final String TAG = "ConnectionWorker";
+
+		private LoopbackConnection _connection;
+
+		ConnectionWorker(LoopbackConnection connection) {
+			_connection = connection;
+		}
+
+		@Override
+		public void run() {
+			//An instance of our protocol handler
+			IProtocol protocolHandlerInstance = null;
+
+			try {
+				protocolHandlerInstance = _cfg.getProtocolHandler().newInstance();
+				protocolHandlerInstance.exec(_cfgMgr, _connection);
+			} catch (Exception e) {
+				Logger.error(TAG, e);
+			} finally {
+				if (protocolHandlerInstance != null)
+					protocolHandlerInstance.dispose();
+				try {
+					_connection.close();
+				} catch (IOException e) {
+					Logger.error(TAG, e);
+				}
+				_connections.remove(_connection);
+				_connection = null;
+			}
+		}
+	}
+	/**
+	 * One end of an in-memory connection.
+	 * Closing either stream closes the connection, as with a socket.
+	 */
+	public static class LoopbackConnection implements IConnection {
+
+		private final Pipe _in;
+		private final Pipe _out;
+		private final String _remoteAddress;
+		private final InputStream _inputStream;
+		private final OutputStream _outputStream;
+		private volatile int _readTimeout;
+		private volatile boolean _closed;
+
+		private LoopbackConnection(Pipe in, Pipe out, String remoteAddress) {
+			_in = in;
+			_out = out;
+			_remoteAddress = remoteAddress;
+			_inputStream = new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] single = new byte[1];
+					int read = read(single, 0, 1);
+					return (read == -1 ? -1 : single[0] & 0xFF);
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return _in.read(b, off, len, _readTimeout);
+				}
+
+				@Override
+				public int available() {
+					return _in.available();
+				}
+
+				@Override
+				public void close() throws IOException {
+					LoopbackConnection.this.close();
+				}
+			};
+			_outputStream = new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] {(byte) b}, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					_out.write(b, off, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					LoopbackConnection.this.close();
+				}
+			};
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return _inputStream;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return _outputStream;
+		}
+
+		@Override
+		public void setReadTimeout(int timeout) {
+			_readTimeout = timeout;
+		}
+
+		@Override
+		public boolean isClosed() {
+			return _closed;
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return _remoteAddress;
+		}
+
+		@Override
+		public void close() throws IOException {
+			_closed = true;
+			//Peer sees end of stream once it has read what was already written
+			_out.closeWriter();
+			_in.closeReader();
+		}
+	}
+	/**
+	 * Bounded single direction byte pipe.
+	 * Uses a ReentrantLock so that threads blocking on it, including virtual threads, are not pinned.
+	 */
+	static class Pipe {
+
+		private final byte[] _buffer;
+		private final ReentrantLock _lock;
+		private final Condition _notEmpty;
+		private final Condition _notFull;
+		private int _readIndex;
+		private int _count;
+		private boolean _writerClosed;
+		private boolean _readerClosed;
+
+		Pipe(int capacity) {
+			_buffer = new byte[capacity];
+			_lock = new ReentrantLock();
+			_notEmpty = _lock.newCondition();
+			_notFull = _lock.newCondition();
+		}
+
+		int read(byte[] b, int off, int len, int timeout) throws IOException {
+			if (len == 0)
+				return 0;
+
+			_lock.lock();
+			try {
+				long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+				while (_count == 0) {
+					if (_readerClosed)
+						throw new IOException("Connection closed");
+					if (_writerClosed)
+						return -1;
+					if (timeout > 0) {
+						if (nanos <= 0)
+							throw new SocketTimeoutException("Read timed out");
+						nanos = _notEmpty.awaitNanos(nanos);
+					} else {
+						_notEmpty.await();
+					}
+				}
+
+				int read = Math.min(len, _count);
+				int first = Math.min(read, _buffer.length - _readIndex);
+				System.arraycopy(_buffer, _readIndex, b, off, first);
+				System.arraycopy(_buffer, 0, b, off + first, read - first);
+				_readIndex = (_readIndex + read) % _buffer.length;
+				_count -= read;
+				_notFull.signal();
+				return read;
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} finally {
+				_lock.unlock();
+			}
+		}
+
+		void write(byte[] b, int off, int len) throws IOException {
+			_lock.lock();
+			try {
+				while (len > 0) {
+					while (_count == _buffer.length && !_readerClosed && !_writerClosed)
+						_notFull.await();
+					if (_readerClosed || _writerClosed)
+						throw new IOException("Connection closed");
+
+					int writeIndex = (_readIndex + _count) % _buffer.length;
+					int written = Math.min(len, _buffer.length - _count);
+					int first = Math.min(written, _buffer.length - writeIndex);
+					System.arraycopy(b, off, _buffer, writeIndex, first);
+					System.arraycopy(b, off + first, _buffer, 0, written - first);
+					_count += written;
+					off += written;
+					len -= written;
+					_notEmpty.signal();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} finally {
+				_lock.unlock();
+			}
+		}
+
+		int available() {
+			_lock.lock();
+			try {
+				return _count;
+			} finally {
+				_lock.unlock();
+			}
+		}
+
+		void closeWriter() {
+			_lock.lock();
+			try {
+				_writerClosed = true;
+				_notEmpty.signalAll();
+				_notFull.signalAll();
+			} finally {
+				_lock.unlock();
+			}
+		}
+
+		void closeReader() {
+			_lock.lock();
+			try {
+				_readerClosed = true;
+				_count = 0;
+				_notEmpty.signalAll();
+				_notFull.signalAll();
+			} finally {
+				_lock.unlock();
+			}
+		}
+	}
+
+	public static class LoopbackSocketDConfig extends Config {
+
+		@SuppressWarnings("unused")
+		private static final String TAG = "LoopbackSocketDConfig";
+
+		//Configuration settings
+		private volatile Class<? extends IProtocol> _protocolHandler;
+		private volatile int _configPipeCapacity;
+
+		//defaults
+		{
+			setConfigPipeCapacity(64 * 1024);
+		}
+
+		public Class<? extends IProtocol> getProtocolHandler() {
+			return _protocolHandler;
+		}
+
+		public void setProtocolHandler(
+				Class<? extends IProtocol> protocol) {
+			this._protocolHandler = protocol;
+		}
+
+		public int getConfigPipeCapacity() {
+			return _configPipeCapacity;
+		}
+		/**
+		 * @param configPipeCapacity Bytes buffered in each direction before writers block.
+		 */
+		public void setConfigPipeCapacity(int configPipeCapacity) {
+			this._configPipeCapacity = configPipeCapacity;
+		}
+	}
+}
@@ -0,0 +1,663 @@
+package cy.nicosia.zenont.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLException;
+
+import cy.nicosia.zenont.base.ByteQueue;
+import cy.nicosia.zenont.base.ConfigManager;
+import cy.nicosia.zenont.base.Logger;
+import cy.nicosia.zenont.base.ConfigManager.Config;
+import cy.nicosia.zenont.net.TcpSocketD.TcpSocketDConfig;
+import cy.nicosia.zenont.net.protocol.INioProtocol;
+import cy.nicosia.zenont.net.protocol.IProtocol;
+
+/**
+ * <b>NioSocketD</b> is an alternative TCP listener to <b>TcpSocketD</b>.
+ * <p/>
+ * Runs a small fixed set of Selector event loops over non-blocking SocketChannels.
+ * Protocol handlers are taken from <b>TcpSocketDConfig</b> so switching between the two
+ * transports only requires constructing a different class.<br/>
+ * Handlers implementing <b>INioProtocol</b>, such as <b>NioHttpProtocol</b>, are driven from readiness
+ * events. Any other <b>IProtocol</b> handler is blocking by nature and is handed its connection on a
+ * dedicated thread.
+ * <p/>
+ * When <b>TlsConfig</b> is enabled event driven connections are encrypted by a <b>TlsEngine</b> on their
+ * event loop, which closes them if the handshake does not complete within the handshake timeout.
+ * Their handler is only started once the handshake has completed. Blocking handlers get a
+ * <b>TlsConnection</b> as with <b>TcpSocketD</b>.
+ */
+public class NioSocketD implements ISocketD {
+
+	private static final String TAG = "NioSocketD";
+
+	private String _host;
+	private int _port;
+	private ServerSocketChannel _serverChannel;
+	private EventLoop[] _eventLoops;
+	private int _nextEventLoop;
+	private final AtomicLong _totalConnects;
+	private TcpSocketDConfig _cfg;
+	private NioSocketDConfig _nioCfg;
+	private TlsContext _tlsContext;
+
+	protected ConfigManager _cfgMgr;
+
+	public NioSocketD(ConfigManager configManager) {
+		this(configManager, 0);
+	}
+
+	public NioSocketD(ConfigManager configManager, int port) {
+		this(configManager, null, port);
+	}
+
+	public NioSocketD(ConfigManager configManager, String host, int port) {
+		_cfgMgr = configManager;
+		_cfg = (TcpSocketDConfig) _cfgMgr.getConfig(TcpSocketDConfig.class);
+		_nioCfg = (NioSocketDConfig) _cfgMgr.getConfig(NioSocketDConfig.class);
+		_totalConnects = new AtomicLong();
+		setHost(host);
+		setPort(port);
+	}
+
+	@Override
+	public boolean start() {
+		try {
+			if (((TlsContext.TlsConfig) _cfgMgr.getConfig(TlsContext.TlsConfig.class)).isConfigEnabled())
+				_tlsContext = new TlsContext(_cfgMgr);
+			_serverChannel = ServerSocketChannel.open();
+			InetSocketAddress iSockAddr =
+					(getHost() == null ? new InetSocketAddress(getPort()) : new InetSocketAddress(getHost(), getPort()));
+			_serverChannel.bind(iSockAddr);
+			_serverChannel.configureBlocking(false);
+			//In case of port 0 passed as argument assign real port number since it is assigned by system
+			setPort(_serverChannel.socket().getLocalPort());
+
+			_eventLoops = new EventLoop[Math.max(1, _nioCfg.getConfigEventLoops())];
+			for (int i = 0; i < _eventLoops.length; i++) {
+				_eventLoops[i] = new EventLoop(Selector.open());
+				_eventLoops[i].setDaemon(true);
+				_eventLoops[i].setName("Event_Loop_Thread_" + getPort() + "-" + i);
+			}
+			//First event loop also accepts connections
+			_serverChannel.register(_eventLoops[0]._selector, SelectionKey.OP_ACCEPT);
+
+			for (EventLoop loop : _eventLoops)
+				loop.start();
+
+			Logger.debug(TAG, "Server started on port: " + getPort() + " with " + _eventLoops.length + " event loops");
+		} catch (IOException e) {
+			Logger.error(TAG, e);
+			return false;
+		} catch (GeneralSecurityException e) {
+			Logger.error(TAG, e);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void stop() {
+		try {
+			_serverChannel.close();
+		} catch (IOException e) {
+			Logger.error(TAG, e);
+		}
+
+		for (EventLoop loop : _eventLoops)
+			loop.cancel();
+
+		for (EventLoop loop : _eventLoops) {
+			try {
+				loop.join(_cfg.getConfigWaitForSocketClose());
+			} catch (InterruptedException e) {
+				Logger.error(TAG, e);
+			}
+		}
+	}
+	/**
+	 * @return Host that socket is currently binded to.
+	 */
+	public String getHost() {
+		return _host;
+	}
+	/**
+	 * @param host Set host IP address that socket should bind to.
+	 */
+	public void setHost(String host) {
+		this._host = host;
+	}
+	/**
+	 * @return Port that socket is currently binded to.
+	 */
+	public int getPort() {
+		return _port;
+	}
+	/**
+	 * @param host Set port that socket should bind to.
+	 */
+	public void setPort(int port) {
+		this._port = port;
+	}
+	/**
+	 * @return The number of total connections accepted by listener.
+	 */
+	public long getTotalConnections() {
+		return _totalConnects.get();
+	}
+	/**
+	 * @return The TLS context with its handshake counters or null when TLS is not enabled.
+	 */
+	public TlsContext getTlsContext() {
+		return _tlsContext;
+	}
+
+	private void accept() {
+		while (true) {
+			SocketChannel client;
+			try {
+				if ((client = _serverChannel.accept()) == null)
+					return;
+			} catch (IOException e) {
+				if (_serverChannel.isOpen())
+					Logger.error(TAG, e);
+				return;
+			}
+			long connectionNumber = _totalConnects.incrementAndGet();
+
+			//A connection which cannot be handed to a handler is closed, the rest of the batch is still accepted
+			try {
+				IProtocol protocolHandlerInstance = _cfg.getProtocolHandler().newInstance();
+
+				if (protocolHandlerInstance instanceof INioProtocol) {
+					EventLoop loop = _eventLoops[_nextEventLoop];
+					_nextEventLoop = (_nextEventLoop + 1) % _eventLoops.length;
+					loop.register(client, (INioProtocol) protocolHandlerInstance);
+				} else {
+					//Blocking handlers keep the channel in blocking mode and get a thread of their own
+					Thread connection = new Thread(new BlockingConnectionWorker(client, protocolHandlerInstance));
+					connection.setName("Connection-" + connectionNumber);
+					connection.setDaemon(true);
+					connection.start();
+				}
+			} catch (Exception e) {
+				Logger.error(TAG, e);
+				try {
+					client.close();
+				} catch (IOException ex) {
+					Logger.error(TAG, ex);
+				}
+			}
+		}
+	}
+	/**
+	 * Thread running a Selector over the connections assigned to it.
+	 */
+	class EventLoop extends Thread {
+
+		private static final String TAG = "EventLoop";
+
+		private final Selector _selector;
+		private final Queue<Runnable> _tasks;
+		private final ByteBuffer _readBuffer;
+		//TLS connections still handshaking, in deadline order since they all get the same timeout
+		private final Queue<NioConnection> _handshakes;
+
+		EventLoop(Selector selector) {
+			_selector = selector;
+			_tasks = new ConcurrentLinkedQueue<Runnable>();
+			_readBuffer = ByteBuffer.allocateDirect(_nioCfg.getConfigReadBufferLength());
+			_handshakes = new ArrayDeque<NioConnection>();
+		}
+
+		@Override
+		public void run() {
+			Logger.debug(TAG, "Event loop started");
+
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					//Tasks queued by this loop itself run before blocking again
+					Runnable task;
+					while ((task = _tasks.poll()) != null)
+						task.run();
+
+					_selector.select(expireHandshakes());
+
+					Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+
+						if (!key.isValid())
+							continue;
+
+						if (key.isAcceptable()) {
+							accept();
+							continue;
+						}
+
+						NioConnection connection = (NioConnection) key.attachment();
+						if (key.isWritable())
+							connection.flush();
+						if (key.isValid() && key.isReadable())
+							connection.read(_readBuffer);
+					}
+				} catch (IOException e) {
+					if (!Thread.currentThread().isInterrupted())
+						Logger.error(TAG, e);
+				}
+			}
+
+			//Close every connection still owned by this loop
+			for (SelectionKey key : _selector.keys())
+				if (key.attachment() instanceof NioConnection)
+					((NioConnection) key.attachment()).closeNow();
+			try {
+				_selector.close();
+			} catch (IOException e) {
+				Logger.error(TAG, e);
+			}
+			Logger.debug(TAG, "Event loop stopping");
+		}
+
+		void register(final SocketChannel client, final INioProtocol handler) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					NioConnection connection = new NioConnection(EventLoop.this, client, handler, _cfgMgr);
+					try {
+						client.configureBlocking(false);
+						connection._key = client.register(_selector, SelectionKey.OP_READ, connection);
+						if (_tlsContext != null) {
+							//The handler starts once the handshake completes
+							connection.startTls(_tlsContext.createTlsEngine());
+							connection._handshakeDeadline = System.nanoTime() +
+									((TlsContext.TlsConfig) _cfgMgr.getConfig(TlsContext.TlsConfig.class)).getConfigHandshakeTimeout() * 1000000L;
+							_handshakes.add(connection);
+						} else {
+							connection.start();
+						}
+					} catch (Exception e) {
+						Logger.error(TAG, e);
+						connection.closeNow();
+					}
+				}
+			});
+		}
+		/**
+		 * Close the TLS connections whose handshake is past its deadline.
+		 * @return milliseconds until the next deadline, or 0 if no handshake is in progress.
+		 */
+		private long expireHandshakes() {
+			long now = System.nanoTime();
+			NioConnection connection;
+			while ((connection = _handshakes.peek()) != null) {
+				if (!connection._closed && !connection._started) {
+					long remaining = connection._handshakeDeadline - now;
+					if (remaining > 0L)
+						return Math.max(1L, (remaining + 999999L) / 1000000L);
+					Logger.debug(TAG, "TLS handshake timed out");
+					_tlsContext.handshakeFailed();
+					connection.closeNow();
+				}
+				_handshakes.poll();
+			}
+			return 0L;
+		}
+
+		void handshakeFailed() {
+			_tlsContext.handshakeFailed();
+		}
+
+		void execute(Runnable task) {
+			_tasks.add(task);
+			if (Thread.currentThread() != this)
+				_selector.wakeup();
+		}
+
+		boolean inEventLoop() {
+			return Thread.currentThread() == this;
+		}
+
+		void cancel() {
+			interrupt();
+			_selector.wakeup();
+		}
+	}
+	/**
+	 * Non-blocking connection handed to <b>INioProtocol</b> handlers.
+	 * <p/>
+	 * Writes may be issued from any thread. Bytes that cannot be written immediately are
+	 * queued and flushed when the channel becomes writable.<br/>
+	 * With TLS, records read are decrypted before they reach the handler and bytes written
+	 * are encrypted as soon as they are queued.
+	 */
+	public static class NioConnection {
+
+		private static final String TAG = "NioConnection";
+
+		private final EventLoop _eventLoop;
+		private final SocketChannel _channel;
+		private final INioProtocol _handler;
+		private final ConfigManager _configManager;
+		private final Queue<ByteBuffer> _pendingWrites;
+		private Runnable _flushListener;
+		private SelectionKey _key;
+		private boolean _closeAfterFlush;
+		//True once the peer has shut down its side, the handler then decides when to close
+		private boolean _inputShutdown;
+		//True once the handler has been started, after the handshake with TLS
+		private boolean _started;
+		private boolean _closed;
+		//TLS engine and the bytes it has decrypted or produced, null without TLS
+		private TlsEngine _tls;
+		private ByteQueue _tlsApplication;
+		private ByteQueue _tlsNetwork;
+		private long _handshakeDeadline;
+
+		private NioConnection(EventLoop eventLoop, SocketChannel channel, INioProtocol handler, ConfigManager configManager) {
+			_eventLoop = eventLoop;
+			_channel = channel;
+			_handler = handler;
+			_configManager = configManager;
+			_pendingWrites = new ArrayDeque<ByteBuffer>();
+		}
+		/**
+		 * @return the underlying channel. Do not change its blocking mode or use it directly with TLS.
+		 */
+		public SocketChannel getChannel() {
+			return _channel;
+		}
+		/**
+		 * @return the TLS engine of the connection or null without TLS.
+		 */
+		public TlsEngine getTlsEngine() {
+			return _tls;
+		}
+		/**
+		 * Queue bytes for writing. The buffer must not be modified after being passed in.
+		 * @param data Bytes to write.
+		 */
+		public void write(final ByteBuffer data) {
+			if (_eventLoop.inEventLoop()) {
+				if (_closed || _closeAfterFlush)
+					return;
+				if (_tls != null) {
+					try {
+						_tls.wrap(data, _tlsNetwork);
+					} catch (SSLException e) {
+						Logger.error(TAG, e);
+						closeNow();
+						return;
+					}
+					queueRecords();
+				} else {
+					_pendingWrites.add(data);
+				}
+				flush();
+			} else {
+				_eventLoop.execute(new Runnable() {
+					@Override
+					public void run() {
+						write(data);
+					}
+				});
+			}
+		}
+		/**
+		 * @param listener Run on the event loop each time every queued byte has been written, or null.
+		 * Lets a handler produce a large response one buffer at a time. Must be called on the event loop.
+		 */
+		public void setFlushListener(Runnable listener) {
+			_flushListener = listener;
+		}
+		/**
+		 * @return True if queued bytes are still waiting to be written. Must be called on the event loop.
+		 */
+		public boolean hasPendingWrites() {
+			return !_pendingWrites.isEmpty();
+		}
+		/**
+		 * Close the connection once all queued bytes have been written.
+		 */
+		public void close() {
+			if (_eventLoop.inEventLoop()) {
+				if (_closed || _closeAfterFlush)
+					return;
+				//Tell the peer the session ends so it is not taken for a truncation
+				if (_tls != null && _tls.isHandshakeComplete()) {
+					try {
+						_tls.closeOutbound(_tlsNetwork);
+						queueRecords();
+					} catch (SSLException e) {
+						Logger.error(TAG, e);
+					}
+				}
+				_closeAfterFlush = true;
+				if (_pendingWrites.isEmpty())
+					closeNow();
+				else
+					flush();
+			} else {
+				_eventLoop.execute(new Runnable() {
+					@Override
+					public void run() {
+						close();
+					}
+				});
+			}
+		}
+
+		private void startTls(TlsEngine engine) {
+			_tls = engine;
+			_tlsApplication = new ByteQueue();
+			_tlsNetwork = new ByteQueue();
+		}
+
+		private void start() throws Exception {
+			_started = true;
+			_handler.exec(_configManager, this);
+		}
+
+		private void read(ByteBuffer readBuffer) {
+			try {
+				readBuffer.clear();
+				int read = _channel.read(readBuffer);
+				if (read == -1) {
+					endOfStream();
+					return;
+				}
+				readBuffer.flip();
+				if (_tls != null)
+					readRecords(readBuffer);
+				else if (read > 0)
+					_handler.onRead(readBuffer);
+			} catch (Exception e) {
+				Logger.error(TAG, e);
+				closeNow();
+			}
+		}
+		/**
+		 * Decrypt records read, answer the handshake and start the handler once it has completed.
+		 */
+		private void readRecords(ByteBuffer records) throws Exception {
+			boolean open = _tls.unwrap(records, _tlsApplication, _tlsNetwork);
+			//Handshake messages and alerts owed to the peer
+			if (_tlsNetwork.length() > 0) {
+				queueRecords();
+				flush();
+				if (_closed)
+					return;
+			}
+
+			if (!_started) {
+				if (!_tls.isHandshakeComplete()) {
+					if (!open)
+						closeNow();
+					return;
+				}
+				start();
+				if (_closed)
+					return;
+			}
+
+			int length = _tlsApplication.length();
+			if (length > 0) {
+				//The queue is only shifted once the handler is done with its bytes
+				_handler.onRead(ByteBuffer.wrap(_tlsApplication.getArray(), _tlsApplication.getOffset(), length));
+				_tlsApplication.shift(length);
+			}
+			//The peer sent close_notify
+			if (!open && !_closed)
+				endOfStream();
+		}
+
+		private void endOfStream() {
+			if (!_started) {
+				//Closed during the TLS handshake
+				_eventLoop.handshakeFailed();
+				closeNow();
+				return;
+			}
+			//Writes and flush notifications go on so the handler can finish its responses
+			_inputShutdown = true;
+			_key.interestOps(interestOps());
+			_handler.onEndOfStream();
+		}
+		/**
+		 * Move the records produced by the TLS engine to the write queue.
+		 */
+		private void queueRecords() {
+			int length = _tlsNetwork.length();
+			if (length == 0)
+				return;
+			ByteBuffer records = ByteBuffer.allocate(length);
+			records.put(_tlsNetwork.getArray(), _tlsNetwork.getOffset(), length);
+			records.flip();
+			_tlsNetwork.shift(length);
+			_pendingWrites.add(records);
+		}
+
+		private void flush() {
+			try {
+				while (!_pendingWrites.isEmpty()) {
+					ByteBuffer head = _pendingWrites.peek();
+					_channel.write(head);
+					if (head.hasRemaining())
+						break;
+					_pendingWrites.poll();
+				}
+
+				if (_pendingWrites.isEmpty() && _closeAfterFlush) {
+					closeNow();
+					return;
+				}
+				_key.interestOps(interestOps());
+				if (_pendingWrites.isEmpty() && _flushListener != null)
+					_flushListener.run();
+			} catch (ClosedChannelException e) {
+				closeNow();
+			} catch (IOException e) {
+				Logger.error(TAG, e);
+				closeNow();
+			}
+		}
+
+		private int interestOps() {
+			return (_inputShutdown ? 0 : SelectionKey.OP_READ) | (_pendingWrites.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+		}
+
+		private void closeNow() {
+			if (_closed)
+				return;
+			_closed = true;
+			_pendingWrites.clear();
+			try {
+				if (_key != null)
+					_key.cancel();
+				_channel.close();
+			} catch (IOException e) {
+				Logger.error(TAG, e);
+			} finally {
+				_handler.dispose();
+			}
+		}
+	}
+	/**
+	 * Runnable that hands a blocking channel to a protocol handler that does not implement <b>INioProtocol</b>.
+	 */
+	class BlockingConnectionWorker implements Runnable {
+
+		private static final String TAG = "BlockingConnectionWorker";
+
+		private SocketChannel _clientChannel;
+		private IProtocol _protocolHandlerInstance;
+
+		BlockingConnectionWorker(SocketChannel client, IProtocol protocolHandlerInstance) {
+			_clientChannel = client;
+			_protocolHandlerInstance = protocolHandlerInstance;
+		}
+
+		@Override
+		public void run() {
+			try {
+				_clientChannel.configureBlocking(true);
+				Logger.debug(TAG, "Starting protocol handler instance: " + _protocolHandlerInstance.toString());
+				if (_tlsContext != null)
+					_protocolHandlerInstance.exec(_cfgMgr, _tlsContext.accept(new SocketConnection(_clientChannel.socket())));
+				else
+					_protocolHandlerInstance.exec(_cfgMgr, _clientChannel.socket());
+			} catch (Exception e) {
+				Logger.error(TAG, e);
+			} finally {
+				_protocolHandlerInstance.dispose();
+				_clientChannel = null;
+			}
+		}
+	}
+
+	public static class NioSocketDConfig extends Config {
+
+		@SuppressWarnings("unused")
+		private static final String TAG = "NioSocketDConfig";
+
+		//Configuration settings
+		private volatile int _configEventLoops;
+		private volatile int _configReadBufferLength;
+
+		//defaults
+		{
+			setConfigEventLoops(Runtime.getRuntime().availableProcessors());
+			setConfigReadBufferLength(16 * 1024);
+		}
+
+		public int getConfigEventLoops() {
+			return _configEventLoops;
+		}
+
+		public void setConfigEventLoops(int configEventLoops) {
+			this._configEventLoops = configEventLoops;
+		}
+
+		public int getConfigReadBufferLength() {
+			return _configReadBufferLength;
+		}
+
+		public void setConfigReadBufferLength(int configReadBufferLength) {
+			this._configReadBufferLength = configReadBufferLength;
+		}
+	}
+}
@@ -0,0 +1,685 @@
+package cy.nicosia.zenont.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import cy.nicosia.zenont.base.ConfigManager;
+import cy.nicosia.zenont.base.Logger;
+import cy.nicosia.zenont.base.ConfigManager.Config;
+import cy.nicosia.zenont.net.protocol.IProtocol;
+
+/**
+ * <b>SharedMemorySocketD</b> serves protocol handlers to processes on the same host over a memory-mapped file.
+ * <p/>
+ * The file holds a fixed number of connection slots. Each slot carries a pair of
+ * single-producer/single-consumer ring buffers, one per direction. Clients claim a free slot with
+ * <code>connect</code> and the server hands the other end of the slot to a protocol handler on its
+ * own thread as an <b>IConnection</b>. No system call is made per message: both sides publish
+ * positions with release/acquire ordering and wait by spinning briefly before parking.
+ * <p/>
+ * The file header records the process id of the server and each slot that of its client, so all
+ * processes must share a process id namespace. A server refuses to start on a file still served by
+ * a live process, and its accept thread periodically frees the slots of clients which have exited
+ * without closing their connection.
+ */
+public class SharedMemorySocketD implements ISocketD {
+
+	private static final String TAG = "SharedMemorySocketD";
+
+	//File layout, all offsets in bytes
+	private static final int MAGIC = 0x534B4444;
+	//Left by a server which stopped, the file can be taken over
+	private static final int MAGIC_STOPPED = 0x534B4453;
+	private static final int HEADER_LENGTH = 64;
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_SLOTS = 4;
+	private static final int HEADER_RING_CAPACITY = 8;
+	private static final int HEADER_OWNER_PID = 16;
+	private static final int SLOT_CONTROL_LENGTH = 64;
+	private static final int SLOT_STATE = 0;
+	private static final int SLOT_CLOSERS = 4;
+	private static final int SLOT_CLIENT_PID = 8;
+	private static final int RING_CONTROL_LENGTH = 128;
+	private static final int RING_HEAD = 0;
+	private static final int RING_TAIL = 64;
+	private static final int RING_CLOSED = 72;
+
+	//Slot states
+	private static final int SLOT_FREE = 0;
+	private static final int SLOT_RESERVED = 1;
+	private static final int SLOT_CLAIMED = 2;
+	private static final int SLOT_OPEN = 3;
+
+	//Bits set in SLOT_CLOSERS by each side as it closes, the slot is free once both are set
+	private static final int CLOSED_BY_SERVER = 1;
+	private static final int CLOSED_BY_CLIENT = 2;
+	//Interval between checks for slots held by clients which have exited
+	private static final long RECLAIM_INTERVAL_MILLIS = 1000;
+
+	//Clients run without a ConfigManager
+	private static final int CLIENT_SPIN_ITERATIONS = 1000;
+	private static final long CLIENT_PARK_NANOS = 50 * 1000;
+
+	private static final VarHandle INT_VIEW =
+			MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+	private static final VarHandle LONG_VIEW =
+			MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private File _file;
+	private MappedByteBuffer _buffer;
+	private AsyncAcceptThread _asyncAcceptThread;
+	private final AtomicLong _totalConnects;
+	private SharedMemorySocketDConfig _cfg;
+
+	protected ConfigManager _cfgMgr;
+
+	public SharedMemorySocketD(ConfigManager configManager, String path) {
+		_cfgMgr = configManager;
+		_cfg = (SharedMemorySocketDConfig) _cfgMgr.getConfig(SharedMemorySocketDConfig.class);
+		_totalConnects = new AtomicLong();
+		_file = new File(path);
+	}
+
+	@Override
+	public boolean start() {
+		try {
+			int slots = _cfg.getConfigSlots();
+			int ringCapacity = Integer.highestOneBit(Math.max(1024, _cfg.getConfigRingCapacity()));
+			long length = HEADER_LENGTH + (long) slots * slotLength(ringCapacity);
+
+			if (_file.exists() && !isStale(_file)) {
+				Logger.error(TAG, "File in use by another server or not a server file: " + _file.getAbsolutePath());
+				return false;
+			}
+			_file.delete();
+			RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+			try {
+				raf.setLength(length);
+				_buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+			} finally {
+				//The mapping stays valid after the file is closed
+				raf.close();
+			}
+			_buffer.order(ByteOrder.nativeOrder());
+			_buffer.putInt(HEADER_SLOTS, slots);
+			_buffer.putInt(HEADER_RING_CAPACITY, ringCapacity);
+			_buffer.putLong(HEADER_OWNER_PID, ProcessHandle.current().pid());
+			INT_VIEW.setRelease(_buffer, HEADER_MAGIC, MAGIC);
+
+			Logger.debug(TAG, "Server started on file: " + _file.getAbsolutePath());
+			_asyncAcceptThread = new AsyncAcceptThread(slots, ringCapacity);
+			_asyncAcceptThread.setDaemon(true);
+			_asyncAcceptThread.setName("Accept_Worker_Thread_" + _file.getName());
+			_asyncAcceptThread.start();
+		} catch (IOException e) {
+			Logger.error(TAG, e);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void stop() {
+		_asyncAcceptThread.interrupt();
+		try {
+			_asyncAcceptThread.join(_cfg.getConfigWaitForSocketClose());
+		} catch (InterruptedException e) {
+			Logger.error(TAG, e);
+		}
+		//Tell clients the server is gone
+		INT_VIEW.setRelease(_buffer, HEADER_MAGIC, MAGIC_STOPPED);
+		_file.delete();
+	}
+	/**
+	 * @return true if the file is empty, left by a stopped server or by one whose process has exited.
+	 */
+	private static boolean isStale(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() == 0L)
+				return true;
+			if (raf.length() < HEADER_LENGTH)
+				return false;
+			ByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+			header.order(ByteOrder.nativeOrder());
+			int magic = (int) INT_VIEW.getAcquire(header, HEADER_MAGIC);
+			return magic == MAGIC_STOPPED || (magic == MAGIC && !isProcessAlive(header.getLong(HEADER_OWNER_PID)));
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static boolean isProcessAlive(long pid) {
+		return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+	}
+	/**
+	 * @return Path of the shared memory file.
+	 */
+	public String getPath() {
+		return _file.getAbsolutePath();
+	}
+	/**
+	 * @return The number of total connections accepted.
+	 */
+	public long getTotalConnections() {
+		return _totalConnects.get();
+	}
+	/**
+	 * Open a connection to a server running in this or another process.
+	 * @param path Path of the shared memory file created by the server.
+	 * @param timeout Milliseconds to wait for a free slot and for the server to accept it.
+	 * @return the client end of the connection.
+	 * @throws IOException if the file is not a server file or the connection was not accepted in time.
+	 */
+	public static IConnection connect(String path, int timeout) throws IOException {
+		MappedByteBuffer buffer;
+		RandomAccessFile raf = new RandomAccessFile(path, "rw");
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		buffer.order(ByteOrder.nativeOrder());
+
+		if ((int) INT_VIEW.getAcquire(buffer, HEADER_MAGIC) != MAGIC)
+			throw new IOException("Connection refused");
+
+		int slots = buffer.getInt(HEADER_SLOTS);
+		int ringCapacity = buffer.getInt(HEADER_RING_CAPACITY);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		Waiter waiter = new Waiter(CLIENT_SPIN_ITERATIONS, CLIENT_PARK_NANOS);
+
+		while (true) {
+			for (int slot = 0; slot < slots; slot++) {
+				int slotOffset = slotOffset(slot, ringCapacity);
+				if (!INT_VIEW.compareAndSet(buffer, slotOffset + SLOT_STATE, SLOT_FREE, SLOT_RESERVED))
+					continue;
+
+				//Reset the slot before making it visible to the server
+				LONG_VIEW.setRelease(buffer, slotOffset + SLOT_CLIENT_PID, ProcessHandle.current().pid());
+				Ring clientToServer = new Ring(buffer, slotOffset + SLOT_CONTROL_LENGTH, ringCapacity);
+				Ring serverToClient = new Ring(buffer, slotOffset + SLOT_CONTROL_LENGTH + ringLength(ringCapacity), ringCapacity);
+				clientToServer.reset();
+				serverToClient.reset();
+				INT_VIEW.setRelease(buffer, slotOffset + SLOT_CLOSERS, 0);
+				INT_VIEW.setRelease(buffer, slotOffset + SLOT_STATE, SLOT_CLAIMED);
+
+				while ((int) INT_VIEW.getAcquire(buffer, slotOffset + SLOT_STATE) != SLOT_OPEN) {
+					if (System.nanoTime() > deadline) {
+						if (INT_VIEW.compareAndSet(buffer, slotOffset + SLOT_STATE, SLOT_CLAIMED, SLOT_FREE))
+							throw new SocketTimeoutException("Connect timed out");
+					}
+					waiter.idle();
+				}
+
+				return new SharedMemoryConnection(buffer, slotOffset, serverToClient, clientToServer, "shm-server",
+						CLOSED_BY_CLIENT, CLIENT_SPIN_ITERATIONS, CLIENT_PARK_NANOS);
+			}
+
+			if (System.nanoTime() > deadline)
+				throw new SocketTimeoutException("No free connection slot");
+			waiter.idle();
+		}
+	}
+
+	private static int ringLength(int ringCapacity) {
+		return RING_CONTROL_LENGTH + ringCapacity;
+	}
+
+	private static int slotLength(int ringCapacity) {
+		return SLOT_CONTROL_LENGTH + 2 * ringLength(ringCapacity);
+	}
+
+	private static int slotOffset(int slot, int ringCapacity) {
+		return HEADER_LENGTH + slot * slotLength(ringCapacity);
+	}
+	/**
+	 * Thread which scans the slots for connections claimed by clients.
+	 */
+	class AsyncAcceptThread extends Thread {
+
+		private static final String TAG = "AsyncAcceptThread";
+		//Not 0, the id of a new client reads 0 until it writes its own and that slot must wait a check too
+		private static final long NO_CLIENT = -1L;
+
+		private final int _slots;
+		private final int _ringCapacity;
+		//Client of each slot found reserved by an exited process on the previous check, or NO_CLIENT
+		private final long[] _reservedBy;
+		private long _nextReclaim;
+
+		AsyncAcceptThread(int slots, int ringCapacity) {
+			_slots = slots;
+			_ringCapacity = ringCapacity;
+			_reservedBy = new long[slots];
+			Arrays.fill(_reservedBy, NO_CLIENT);
+		}
+
+		@Override
+		public void run() {
+			Logger.debug(TAG, "Async Accept Thread started");
+			Waiter waiter = new Waiter(_cfg.getConfigSpinIterations(), _cfg.getConfigParkNanos());
+
+			while (!Thread.currentThread().isInterrupted()) {
+				boolean accepted = false;
+				for (int slot = 0; slot < _slots; slot++) {
+					int slotOffset = slotOffset(slot, _ringCapacity);
+					if (!INT_VIEW.compareAndSet(_buffer, slotOffset + SLOT_STATE, SLOT_CLAIMED, SLOT_OPEN))
+						continue;
+
+					accepted = true;
+					long connectionNumber = _totalConnects.incrementAndGet();
+					Ring clientToServer = new Ring(_buffer, slotOffset + SLOT_CONTROL_LENGTH, _ringCapacity);
+					Ring serverToClient = new Ring(_buffer, slotOffset + SLOT_CONTROL_LENGTH + ringLength(_ringCapacity), _ringCapacity);
+					SharedMemoryConnection connection = new SharedMemoryConnection(_buffer, slotOffset,
+							clientToServer, serverToClient, "shm-client-" + slot,
+							CLOSED_BY_SERVER, _cfg.getConfigSpinIterations(), _cfg.getConfigParkNanos());
+
+					Thread worker = new Thread(new ConnectionWorker(connection));
+					worker.setName("Connection-" + connectionNumber);
+					worker.setDaemon(true);
+					worker.start();
+				}
+
+				if (accepted)
+					waiter.reset();
+				else
+					waiter.idle();
+
+				if (System.currentTimeMillis() >= _nextReclaim) {
+					reclaimSlots();
+					_nextReclaim = System.currentTimeMillis() + RECLAIM_INTERVAL_MILLIS;
+				}
+			}
+			Logger.debug(TAG, "Async Accept Thread stopping");
+		}
+		/**
+		 * Free the slots of clients which exited without closing, closing their end for them.
+		 */
+		private void reclaimSlots() {
+			for (int slot = 0; slot < _slots; slot++) {
+				int slotOffset = slotOffset(slot, _ringCapacity);
+				int state = (int) INT_VIEW.getAcquire(_buffer, slotOffset + SLOT_STATE);
+				long pid = (long) LONG_VIEW.getAcquire(_buffer, slotOffset + SLOT_CLIENT_PID);
+				if (state == SLOT_FREE || isProcessAlive(pid)) {
+					_reservedBy[slot] = NO_CLIENT;
+					continue;
+				}
+
+				if (state == SLOT_RESERVED) {
+					//The id may be that of the previous client until the new one writes its own, so wait a check
+					if (_reservedBy[slot] == pid)
+						INT_VIEW.compareAndSet(_buffer, slotOffset + SLOT_STATE, SLOT_RESERVED, SLOT_FREE);
+					_reservedBy[slot] = pid;
+				} else if (state == SLOT_CLAIMED) {
+					INT_VIEW.compareAndSet(_buffer, slotOffset + SLOT_STATE, SLOT_CLAIMED, SLOT_FREE);
+				} else if (state == SLOT_OPEN) {
+					//The worker reads end of stream and closes its end, which frees the slot
+					new Ring(_buffer, slotOffset + SLOT_CONTROL_LENGTH, _ringCapacity).close();
+					new Ring(_buffer, slotOffset + SLOT_CONTROL_LENGTH + ringLength(_ringCapacity), _ringCapacity).close();
+					if (markClosed(_buffer, slotOffset, CLOSED_BY_CLIENT))
+						Logger.debug(TAG, "Reclaimed slot " + slot + " of exited client " + pid);
+				}
+			}
+		}
+	}
+	/**
+	 * Record that one side closed the connection of a slot and free the slot once both have.
+	 * @return true if that side had not closed already.
+	 */
+	private static boolean markClosed(ByteBuffer buffer, int slotOffset, int closedBy) {
+		int closers = (int) INT_VIEW.getAndBitwiseOr(buffer, slotOffset + SLOT_CLOSERS, closedBy);
+		boolean first = (closers & closedBy) == 0;
+		if (first && (closers | closedBy) == (CLOSED_BY_SERVER | CLOSED_BY_CLIENT))
+			INT_VIEW.setRelease(buffer, slotOffset + SLOT_STATE, SLOT_FREE);
+		return first;
+	}
+	/**
+	 * Runnable that hands each connection to protocol handler.
+	 */
+	class ConnectionWorker implements Runnable {
+
+		private static final String TAG = "ConnectionWorker";
+
+		private SharedMemoryConnection _connection;
+
+		ConnectionWorker(SharedMemoryConnection connection) {
+			_connection = connection;
+		}
+
+		@Override
+		public void run() {
+			//An instance of our protocol handler
+			IProtocol protocolHandlerInstance = null;
+
+			try {
+				protocolHandlerInstance = _cfg.getProtocolHandler().newInstance();
+				protocolHandlerInstance.exec(_cfgMgr, _connection);
+			} catch (Exception e) {
+				Logger.error(TAG, e);
+			} finally {
+				if (protocolHandlerInstance != null)
+					protocolHandlerInstance.dispose();
+				_connection.close();
+				_connection = null;
+			}
+		}
+	}
+	/**
+	 * Spins for a number of iterations and then parks for a fixed interval on every call.
+	 * Parking with a timeout lets the peer in another process make progress without any signalling.
+	 */
+	static class Waiter {
+
+		private final int _spinIterations;
+		private final long _parkNanos;
+		private int _idle;
+
+		Waiter(int spinIterations, long parkNanos) {
+			_spinIterations = spinIterations;
+			_parkNanos = parkNanos;
+		}
+
+		void idle() {
+			if (_idle < _spinIterations) {
+				_idle++;
+				Thread.onSpinWait();
+			} else {
+				LockSupport.parkNanos(_parkNanos);
+			}
+		}
+
+		void reset() {
+			_idle = 0;
+		}
+	}
+	/**
+	 * Single-producer/single-consumer byte ring inside the mapped file.
+	 * Head and tail are ever increasing positions kept on separate cache lines.
+	 */
+	static class Ring {
+
+		private final ByteBuffer _buffer;
+		private final int _controlOffset;
+		private final ByteBuffer _data;
+		private final int _mask;
+
+		Ring(ByteBuffer buffer, int offset, int capacity) {
+			_buffer = buffer;
+			_controlOffset = offset;
+			_data = buffer.slice(offset + RING_CONTROL_LENGTH, capacity);
+			_mask = capacity - 1;
+		}
+
+		void reset() {
+			LONG_VIEW.setRelease(_buffer, _controlOffset + RING_HEAD, 0L);
+			LONG_VIEW.setRelease(_buffer, _controlOffset + RING_TAIL, 0L);
+			INT_VIEW.setRelease(_buffer, _controlOffset + RING_CLOSED, 0);
+		}
+		/**
+		 * @return bytes copied, 0 if the ring is empty or -1 if it is empty and closed.
+		 */
+		int read(byte[] b, int off, int len) {
+			long head = (long) LONG_VIEW.getOpaque(_buffer, _controlOffset + RING_HEAD);
+			long tail = (long) LONG_VIEW.getAcquire(_buffer, _controlOffset + RING_TAIL);
+			int available = (int) (tail - head);
+			if (available == 0)
+				return ((int) INT_VIEW.getAcquire(_buffer, _controlOffset + RING_CLOSED) != 0 &&
+						(long) LONG_VIEW.getAcquire(_buffer, _controlOffset + RING_TAIL) == head ? -1 : 0);
+
+			int read = Math.min(len, available);
+			int index = (int) (head & _mask);
+			int first = Math.min(read, _mask + 1 - index);
+			_data.get(index, b, off, first);
+			_data.get(0, b, off + first, read - first);
+			LONG_VIEW.setRelease(_buffer, _controlOffset + RING_HEAD, head + read);
+			return read;
+		}
+		/**
+		 * @return bytes copied, 0 if the ring is full or -1 if the reader has gone.
+		 */
+		int write(byte[] b, int off, int len) {
+			if ((int) INT_VIEW.getAcquire(_buffer, _controlOffset + RING_CLOSED) != 0)
+				return -1;
+
+			long tail = (long) LONG_VIEW.getOpaque(_buffer, _controlOffset + RING_TAIL);
+			long head = (long) LONG_VIEW.getAcquire(_buffer, _controlOffset + RING_HEAD);
+			int free = (int) (_mask + 1 - (tail - head));
+			if (free == 0)
+				return 0;
+
+			int written = Math.min(len, free);
+			int index = (int) (tail & _mask);
+			int first = Math.min(written, _mask + 1 - index);
+			_data.put(index, b, off, first);
+			_data.put(0, b, off + first, written - first);
+			LONG_VIEW.setRelease(_buffer, _controlOffset + RING_TAIL, tail + written);
+			return written;
+		}
+
+		void close() {
+			INT_VIEW.setRelease(_buffer, _controlOffset + RING_CLOSED, 1);
+		}
+	}
+	/**
+	 * One end of a shared memory connection.
+	 * Closing either stream closes the connection, as with a socket.
+	 */
+	public static class SharedMemoryConnection implements IConnection {
+
+		private final ByteBuffer _buffer;
+		private final int _slotOffset;
+		private final Ring _in;
+		private final Ring _out;
+		private final String _remoteAddress;
+		private final int _closedBy;
+		private final InputStream _inputStream;
+		private final OutputStream _outputStream;
+		private final Waiter _readWaiter;
+		private final Waiter _writeWaiter;
+		private volatile int _readTimeout;
+		private volatile boolean _closed;
+
+		private SharedMemoryConnection(ByteBuffer buffer, int slotOffset, Ring in, Ring out, String remoteAddress,
+				int closedBy, int spinIterations, long parkNanos) {
+			_buffer = buffer;
+			_slotOffset = slotOffset;
+			_in = in;
+			_out = out;
+			_remoteAddress = remoteAddress;
+			_closedBy = closedBy;
+			_readWaiter = new Waiter(spinIterations, parkNanos);
+			_writeWaiter = new Waiter(spinIterations, parkNanos);
+			_inputStream = new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] single = new byte[1];
+					int read = read(single, 0, 1);
+					return (read == -1 ? -1 : single[0] & 0xFF);
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					if (len == 0)
+						return 0;
+
+					long deadline = (_readTimeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_readTimeout) : 0L);
+					int read;
+					_readWaiter.reset();
+					while ((read = _in.read(b, off, len)) == 0) {
+						if (_closed)
+							throw new IOException("Connection closed");
+						if (deadline != 0L && System.nanoTime() > deadline)
+							throw new SocketTimeoutException("Read timed out");
+						_readWaiter.idle();
+					}
+					return read;
+				}
+
+				@Override
+				public void close() {
+					SharedMemoryConnection.this.close();
+				}
+			};
+			_outputStream = new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] {(byte) b}, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					_writeWaiter.reset();
+					while (len > 0) {
+						int written = _out.write(b, off, len);
+						if (written == -1 || _closed)
+							throw new IOException("Connection closed");
+						if (written == 0) {
+							_writeWaiter.idle();
+						} else {
+							off += written;
+							len -= written;
+							_writeWaiter.reset();
+						}
+					}
+				}
+
+				@Override
+				public void close() {
+					SharedMemoryConnection.this.close();
+				}
+			};
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return _inputStream;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return _outputStream;
+		}
+
+		@Override
+		public void setReadTimeout(int timeout) {
+			_readTimeout = timeout;
+		}
+
+		@Override
+		public boolean isClosed() {
+			return _closed;
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return _remoteAddress;
+		}
+
+		@Override
+		public void close() {
+			if (_closed)
+				return;
+			_closed = true;
+			//Peer reads end of stream on our outgoing ring and write failures on its outgoing ring
+			_out.close();
+			_in.close();
+			//The second side to close frees the slot
+			markClosed(_buffer, _slotOffset, _closedBy);
+		}
+	}
+
+	public static class SharedMemorySocketDConfig extends Config {
+
+		@SuppressWarnings("unused")
+		private static final String TAG = "SharedMemorySocketDConfig";
+
+		//Configuration settings
+		private volatile Class<? extends IProtocol> _protocolHandler;
+		private volatile int _configWaitForSocketClose;
+		private volatile int _configSlots;
+		private volatile int _configRingCapacity;
+		private volatile int _configSpinIterations;
+		private volatile long _configParkNanos;
+
+		//defaults
+		{
+			setConfigWaitForSocketClose(5);
+			setConfigSlots(16);
+			setConfigRingCapacity(64 * 1024);
+			setConfigSpinIterations(1000);
+			setConfigParkNanos(50 * 1000);
+		}
+
+		public Class<? extends IProtocol> getProtocolHandler() {
+			return _protocolHandler;
+		}
+
+		public void setProtocolHandler(
+				Class<? extends IProtocol> protocol) {
+			this._protocolHandler = protocol;
+		}
+
+		public int getConfigWaitForSocketClose() {
+			return _configWaitForSocketClose;
+		}
+
+		public void setConfigWaitForSocketClose(int configWaitForSocketClose) {
+			this._configWaitForSocketClose = configWaitForSocketClose * 1000;
+		}
+
+		public int getConfigSlots() {
+			return _configSlots;
+		}
+		/**
+		 * @param configSlots Maximum number of concurrent connections.
+		 */
+		public void setConfigSlots(int configSlots) {
+			this._configSlots = configSlots;
+		}
+
+		public int getConfigRingCapacity() {
+			return _configRingCapacity;
+		}
+		/**
+		 * @param configRingCapacity Bytes buffered per direction. Rounded down to a power of two.
+		 */
+		public void setConfigRingCapacity(int configRingCapacity) {
+			this._configRingCapacity = configRingCapacity;
+		}
+
+		public int getConfigSpinIterations() {
+			return _configSpinIterations;
+		}
+		/**
+		 * @param configSpinIterations Busy wait iterations before a waiting side starts parking.
+		 */
+		public void setConfigSpinIterations(int configSpinIterations) {
+			this._configSpinIterations = configSpinIterations;
+		}
+
+		public long getConfigParkNanos() {
+			return _configParkNanos;
+		}
+		/**
+		 * @param configParkNanos Interval a waiting side parks for between checks once spinning has failed.
+		 */
+		public void setConfigParkNanos(long configParkNanos) {
+			this._configParkNanos = configParkNanos;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package cy.nicosia.zenont.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * <b>IConnection</b> backed by a TCP Socket.
+ * <p/>
+ * Sockets accepted from a ServerSocketChannel can send files without copying them.
+ */
+public class SocketConnection implements IFileTransferConnection {
+
+	@SuppressWarnings("unused")
+	private static final String TAG = "SocketConnection";
+
+	private final Socket _socket;
+
+	public SocketConnection(Socket socket) {
+		_socket = socket;
+	}
+	/**
+	 * @return the underlying socket.
+	 */
+	public Socket getSocket() {
+		return _socket;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return _socket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return _socket.getOutputStream();
+	}
+
+	@Override
+	public void setReadTimeout(int timeout) throws IOException {
+		_socket.setSoTimeout(timeout);
+	}
+
+	@Override
+	public boolean isClosed() {
+		return _socket.isClosed();
+	}
+
+	@Override
+	public String getRemoteAddress() {
+		return (_socket.getInetAddress() != null ? _socket.getInetAddress().getHostAddress() : null);
+	}
+
+	@Override
+	public boolean canTransferFile() {
+		SocketChannel channel = _socket.getChannel();
+		return (channel != null && channel.isBlocking());
+	}
+
+	@Override
+	public long transferFile(FileChannel file, long position, long count) throws IOException {
+		SocketChannel channel = _socket.getChannel();
+		long sent = 0L;
+		while (sent < count) {
+			long transferred = file.transferTo(position + sent, count - sent, channel);
+			//Nothing left to read from the file
+			if (transferred <= 0L && position + sent >= file.size())
+				break;
+			sent += transferred;
+		}
+		return sent;
+	}
+
+	@Override
+	public void close() throws IOException {
+		_socket.close();
+	}
+}
@@ -1,9 +1,22 @@
 package cy.nicosia.zenont.net;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import cy.nicosia.zenont.base.ConfigManager;
 import cy.nicosia.zenont.base.Logger;
@@ -16,6 +29,14 @@ import cy.nicosia.zenont.net.protocol.IProtocol;
  * Implementation which starts a multithreaded TCP listener and is assigned
  * an <b>IProtocol</b> implementation for communication over any
  * established connections. 
+ * <p/>
+ * Connections are dispatched according to <b>TcpSocketDConfig</b>, either on a new thread
+ * per connection, on a bounded worker pool or on a virtual thread per connection (JDK 21+).
+ * Several acceptor threads may be started. With SO_REUSEPORT each acceptor owns a listener
+ * bound to the same port and the kernel spreads new connections across them.
+ * <p/>
+ * When <b>TlsConfig</b> is enabled every connection is handshaked with an SSLEngine and handed
+ * to the protocol handler as a <b>TlsConnection</b> instead of a Socket.
  */
 public class TcpSocketD implements ISocketD {
 
@@ -23,8 +44,11 @@ public class TcpSocketD implements ISocketD {
 
 	private String _host;
 	private int _port;
-	private ServerSocket _serverSocket;
-	private AsyncAcceptThread _asyncAcceptThread;
+	private AsyncAcceptThread[] _asyncAcceptThreads;
+	private final AtomicLong _totalConnects;
+	private ThreadPoolExecutor _workerPool;
+	private ThreadFactory _virtualThreadFactory;
+	private TlsContext _tlsContext;
 	private TcpSocketDConfig _cfg;
 	
 	protected ConfigManager _cfgMgr;
@@ -40,6 +64,7 @@ public class TcpSocketD implements ISocketD {
 	public TcpSocketD(ConfigManager configManager, String host, int port) {
 		_cfgMgr = configManager;
 		_cfg = (TcpSocketDConfig) _cfgMgr.getConfig(TcpSocketDConfig.class);
+		_totalConnects = new AtomicLong();
 		setHost(host);
 		setPort(port);
 		
@@ -48,31 +73,73 @@ public class TcpSocketD implements ISocketD {
 	@Override
 	public boolean start() {
 		try {
-			_serverSocket = new ServerSocket();
-			InetSocketAddress iSockAddr =
-					(getHost() == null ? new InetSocketAddress(getPort()) : new InetSocketAddress(getHost(), getPort()));		
-			_serverSocket.bind(iSockAddr);
+			int acceptors = Math.max(1, _cfg.getConfigAcceptorThreads());
+			if (((TlsContext.TlsConfig) _cfgMgr.getConfig(TlsContext.TlsConfig.class)).isConfigEnabled())
+				_tlsContext = new TlsContext(_cfgMgr);
+			ServerSocket serverSocket = bindServerSocket();
 			//In case of port 0 passed as argument assign real port number since it is assigned by system
-			setPort(_serverSocket.getLocalPort());
+			setPort(serverSocket.getLocalPort());
+			boolean reusePort = _cfg.isConfigReusePort() && 
+					serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+			if (_cfg.isConfigReusePort() && !reusePort)
+				Logger.error(TAG, "SO_REUSEPORT not supported, acceptors will share one listener");
 			Logger.debug(TAG, "Server started on port: " + getPort());
-			_asyncAcceptThread = new AsyncAcceptThread();
-			_asyncAcceptThread.setDaemon(true);
-			_asyncAcceptThread.setName("Accept_Worker_Thread_" + getPort());
-			_asyncAcceptThread.start();
+			if (DispatchMode.WORKER_POOL.equals(_cfg.getConfigDispatchMode()))
+				_workerPool = createWorkerPool();
+			else if (DispatchMode.VIRTUAL_THREAD.equals(_cfg.getConfigDispatchMode()))
+				_virtualThreadFactory = createVirtualThreadFactory();
+			_asyncAcceptThreads = new AsyncAcceptThread[acceptors];
+			for (int i = 0; i < acceptors; i++) {
+				//Every acceptor gets its own listener on the same port when SO_REUSEPORT is available
+				if (i > 0 && reusePort)
+					serverSocket = bindServerSocket();
+				_asyncAcceptThreads[i] = new AsyncAcceptThread(serverSocket);
+				_asyncAcceptThreads[i].setDaemon(true);
+				_asyncAcceptThreads[i].setName("Accept_Worker_Thread_" + getPort() + "-" + i);
+			}
+			for (AsyncAcceptThread acceptThread : _asyncAcceptThreads)
+				acceptThread.start();
 		} catch (IOException e) {
+			Logger.error(TAG, e);
+			abortStart();
+			return false;
+		} catch (GeneralSecurityException e) {
 			Logger.error(TAG, e);
 			return false;
 		}
 		return true;
 	}
 	
+	/**
+	 * Close the listeners bound before a later one failed to bind, so the port is not held half started.
+	 */
+	private void abortStart() {
+		if (_asyncAcceptThreads != null) {
+			for (AsyncAcceptThread acceptThread : _asyncAcceptThreads)
+				if (acceptThread != null)
+					acceptThread.cancel();
+			_asyncAcceptThreads = new AsyncAcceptThread[0];
+		}
+		if (_workerPool != null) {
+			_workerPool.shutdown();
+			_workerPool = null;
+		}
+	}
+
 	@Override
 	public void stop() {
-		_asyncAcceptThread.cancel();
-		try {
-			_asyncAcceptThread.join(_cfg.getConfigWaitForSocketClose());
-		} catch (InterruptedException e) {
-			Logger.error(TAG, e);
+		for (AsyncAcceptThread acceptThread : _asyncAcceptThreads)
+			acceptThread.cancel();
+		for (AsyncAcceptThread acceptThread : _asyncAcceptThreads) {
+			try {
+				acceptThread.join(_cfg.getConfigWaitForSocketClose());
+			} catch (InterruptedException e) {
+				Logger.error(TAG, e);
+			}
+		}
+		if (_workerPool != null) {
+			_workerPool.shutdown();
+			_workerPool = null;
 		}
 	}	
 	/**
@@ -103,7 +170,99 @@ public class TcpSocketD implements ISocketD {
 	 * @return The number of total connections accepted by listener.
 	 */
 	public long getTotalConnections() {
-		return _asyncAcceptThread.getTotalConnects();
+		return _totalConnects.get();
+	}
+	/**
+	 * Create a listener bound to the configured host and port with the configured backlog.
+	 * The listener is opened from a channel so accepted sockets can send files with sendfile.
+	 * @return The bound listener.
+	 * @throws IOException
+	 */
+	private ServerSocket bindServerSocket() throws IOException {
+		ServerSocket serverSocket = ServerSocketChannel.open().socket();
+		if (_cfg.isConfigReusePort() && 
+				serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+			serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		InetSocketAddress iSockAddr =
+				(getHost() == null ? new InetSocketAddress(getPort()) : new InetSocketAddress(getHost(), getPort()));		
+		try {
+			serverSocket.bind(iSockAddr, _cfg.getConfigAcceptBacklog());
+		} catch (IOException e) {
+			serverSocket.close();
+			throw e;
+		}
+		return serverSocket;
+	}
+	/**
+	 * @return The TLS context with its handshake counters or null when TLS is not enabled.
+	 */
+	public TlsContext getTlsContext() {
+		return _tlsContext;
+	}
+	/**
+	 * @return The worker pool used for dispatching connections or null when running a thread per connection.
+	 */
+	public ThreadPoolExecutor getWorkerPool() {
+		return _workerPool;
+	}
+	/**
+	 * Hand a connection to a worker according to the configured dispatch mode.
+	 * @param client Accepted connection.
+	 * @param connectionNumber Sequence number used to name threads.
+	 */
+	private void dispatch(Socket client, long connectionNumber) {
+		ConnectionWorker worker = new ConnectionWorker(client);
+		if (_workerPool != null) {
+			_workerPool.execute(worker);
+		} else if (_virtualThreadFactory != null) {
+			_virtualThreadFactory.newThread(worker).start();
+		} else {
+			Thread connection = new Thread(worker);
+			connection.setName("Connection-" + connectionNumber);
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+
+	private ThreadPoolExecutor createWorkerPool() {
+		int coreThreads = _cfg.getConfigWorkerCoreThreads();
+		int maxThreads = Math.max(coreThreads, _cfg.getConfigWorkerMaxThreads());
+		//A zero length queue hands connections directly to a free or new worker
+		BlockingQueue<Runnable> queue = (_cfg.getConfigWorkerQueueLength() > 0 ? 
+				new ArrayBlockingQueue<Runnable>(_cfg.getConfigWorkerQueueLength()) : new SynchronousQueue<Runnable>());
+
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(coreThreads, maxThreads, 
+				_cfg.getConfigWorkerKeepAliveSeconds(), TimeUnit.SECONDS, queue, new ThreadFactory() {
+					private final AtomicInteger _count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread worker = new Thread(r);
+						worker.setName("Connection_Worker_" + getPort() + "-" + _count.incrementAndGet());
+						worker.setDaemon(true);
+						return worker;
+					}
+				}, _cfg.getConfigRejectionHandler());
+		Logger.debug(TAG, "Worker pool started with " + coreThreads + "-" + maxThreads + " threads");
+		return pool;
+	}
+	/**
+	 * Looks up the virtual thread builder reflectively so the class still loads on JDKs without it.
+	 * @return a factory for virtual threads or null if the running JDK does not support them.
+	 */
+	private ThreadFactory createVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, "Connection-Virtual-" + getPort() + "-", 1L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			Logger.debug(TAG, "Dispatching connections on virtual threads");
+			return factory;
+		} catch (Exception e) {
+			Logger.error(TAG, "Virtual threads not supported, falling back to a thread per connection");
+			return null;
+		}
 	}
 	/**
 	 * Thread which binds socket port and accepts connections.
@@ -113,35 +272,51 @@ public class TcpSocketD implements ISocketD {
 
 		private static final String TAG = "AsyncAcceptThread";
 
-		private long _totalConnects;
+		private final ServerSocket _serverSocket;
+
+		AsyncAcceptThread(ServerSocket serverSocket) {
+			_serverSocket = serverSocket;
+		}
 
 		@Override
 		public void run() {
 			Logger.debug(TAG, "Async Accept Thread started");
-			_totalConnects = 0;
 
 			while (!Thread.currentThread().isInterrupted()) {
-				Socket client;
+				Socket client = null;
 				try {
 					client = _serverSocket.accept();
-					_totalConnects++;
-					Logger.debug(TAG, "Connection accepted from: " + client.getInetAddress().getHostAddress());
-					Thread connection = new Thread(new ConnectionWorker(client));
-					connection.setName("Connection-" + _totalConnects);
-					connection.setDaemon(true);
-					connection.start();
+					long connectionNumber = _totalConnects.incrementAndGet();
+					//Keep the accept loop tight, only build the message when it will be printed
+					if (Logger._debug)
+						Logger.debug(TAG, "Connection accepted from: " + client.getInetAddress().getHostAddress());
+					dispatch(client, connectionNumber);
 				} catch (IOException e) {
 					//If we close the socket to stop the thread do not log an error 
 					if (!Thread.currentThread().isInterrupted())
 						Logger.error(TAG, e);
-				} 
+				} catch (RuntimeException e) {
+					//A rejection handler such as AbortPolicy throws, the connection is dropped but accepting goes on
+					Logger.error(TAG, e);
+					closeQuietly(client);
+				}
 			}
 			Logger.debug(TAG, "Async Accept Thread stopping");
 		}
 
+		private void closeQuietly(Socket client) {
+			if (client == null)
+				return;
+			try {
+				client.close();
+			} catch (IOException e) {
+				Logger.error(TAG, e);
+			}
+		}
+
 		void cancel() {
 			//Set interrupt flag
-			_asyncAcceptThread.interrupt();
+			interrupt();
 			try {
 				//Cause an IOException to stop blocking
 				if (!_serverSocket.isClosed())
@@ -151,10 +326,6 @@ public class TcpSocketD implements ISocketD {
 				Logger.error(TAG, e);
 			}
 		}
-
-		synchronized long getTotalConnects() {
-			return _totalConnects;
-		}
 	}
 	/**
 	 * Runnable that hands each connection to protocol handler.
@@ -180,15 +351,58 @@ public class TcpSocketD implements ISocketD {
 				protocolHandlerInstance = _cfg.getProtocolHandler().newInstance();
 
 				Logger.debug(TAG, "Starting protocol handler instance: " + protocolHandlerInstance.toString());
-				protocolHandlerInstance.exec(_cfgMgr, _clientSocket);	
+				if (_tlsContext != null)
+					protocolHandlerInstance.exec(_cfgMgr, _tlsContext.accept(new SocketConnection(_clientSocket)));
+				else
+					protocolHandlerInstance.exec(_cfgMgr, _clientSocket);	
 			} catch (Exception e) {
 				Logger.error(TAG, e);
 			} finally {
-				protocolHandlerInstance.dispose();
+				if (protocolHandlerInstance != null)
+					protocolHandlerInstance.dispose();
+				_clientSocket = null;
+			}
+		}
+		/**
+		 * Close the connection without running a protocol handler.
+		 */
+		void reject() {
+			try {
+				Logger.debug(TAG, "Connection rejected for client: " + _clientSocket.getInetAddress().getHostAddress());
+				_clientSocket.close();
+			} catch (IOException e) {
+				Logger.error(TAG, e);
+			} finally {
 				_clientSocket = null;
 			}
 		}
 	}
+	/**
+	 * Default rejection behaviour for the worker pool. 
+	 * Closes connections that cannot be queued instead of blocking the accept thread.
+	 */
+	public static class CloseConnectionPolicy implements RejectedExecutionHandler {
+
+		private static final String TAG = "CloseConnectionPolicy";
+
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			Logger.error(TAG, "Worker pool saturated");
+			if (r instanceof ConnectionWorker)
+				((ConnectionWorker) r).reject();
+		}
+	}
+	/**
+	 * Dispatch modes for accepted connections.
+	 */
+	public static abstract class DispatchMode {
+		/** Start a new thread for every connection. */
+		public static final String THREAD_PER_CONNECTION = "ThreadPerConnection";
+		/** Run connections on a bounded pool of reusable worker threads. */
+		public static final String WORKER_POOL = "WorkerPool";
+		/** Start a new virtual thread for every connection. Requires JDK 21 or later. */
+		public static final String VIRTUAL_THREAD = "VirtualThread";
+	}
 	
 	public static class TcpSocketDConfig extends Config {
 		
@@ -198,10 +412,28 @@ public class TcpSocketD implements ISocketD {
 		//Configuration settings
 		private volatile Class<? extends IProtocol> _protocolHandler;
 		private volatile int _configWaitForSocketClose;
+		private volatile String _configDispatchMode;
+		private volatile int _configWorkerCoreThreads;
+		private volatile int _configWorkerMaxThreads;
+		private volatile int _configWorkerQueueLength;
+		private volatile int _configWorkerKeepAliveSeconds;
+		private volatile RejectedExecutionHandler _configRejectionHandler;
+		private volatile int _configAcceptorThreads;
+		private volatile int _configAcceptBacklog;
+		private volatile boolean _configReusePort;
 		
 		//defaults
 		{
 			setConfigWaitForSocketClose(5);
+			setConfigDispatchMode(DispatchMode.THREAD_PER_CONNECTION);
+			setConfigWorkerCoreThreads(Runtime.getRuntime().availableProcessors() * 2);
+			setConfigWorkerMaxThreads(256);
+			setConfigWorkerQueueLength(0);
+			setConfigWorkerKeepAliveSeconds(60);
+			setConfigRejectionHandler(new CloseConnectionPolicy());
+			setConfigAcceptorThreads(1);
+			setConfigAcceptBacklog(50);
+			setConfigReusePort(false);
 		}
 		
 		public Class<? extends IProtocol> getProtocolHandler() {
@@ -219,6 +451,91 @@ public class TcpSocketD implements ISocketD {
 		public void setConfigWaitForSocketClose(int configWaitForSocketClose) {
 			this._configWaitForSocketClose = configWaitForSocketClose * 1000;
 		}
+
+		public String getConfigDispatchMode() {
+			return _configDispatchMode;
+		}
+		/**
+		 * @param configDispatchMode One of the <b>DispatchMode</b> constants.
+		 */
+		public void setConfigDispatchMode(String configDispatchMode) {
+			this._configDispatchMode = configDispatchMode;
+		}
+
+		public int getConfigWorkerCoreThreads() {
+			return _configWorkerCoreThreads;
+		}
+
+		public void setConfigWorkerCoreThreads(int configWorkerCoreThreads) {
+			this._configWorkerCoreThreads = configWorkerCoreThreads;
+		}
+
+		public int getConfigWorkerMaxThreads() {
+			return _configWorkerMaxThreads;
+		}
+
+		public void setConfigWorkerMaxThreads(int configWorkerMaxThreads) {
+			this._configWorkerMaxThreads = configWorkerMaxThreads;
+		}
+
+		public int getConfigWorkerQueueLength() {
+			return _configWorkerQueueLength;
+		}
+		/**
+		 * A worker stays with its connection for as long as it is kept alive, so queued connections wait
+		 * behind idle ones until their keep-alive timeout. The pool only grows past its core threads once
+		 * the queue is full, hence the default of 0 which grows it up to its max threads before rejecting.
+		 * @param configWorkerQueueLength Connections waiting for a worker. 0 hands connections off directly.
+		 */
+		public void setConfigWorkerQueueLength(int configWorkerQueueLength) {
+			this._configWorkerQueueLength = configWorkerQueueLength;
+		}
+
+		public int getConfigWorkerKeepAliveSeconds() {
+			return _configWorkerKeepAliveSeconds;
+		}
+
+		public void setConfigWorkerKeepAliveSeconds(int configWorkerKeepAliveSeconds) {
+			this._configWorkerKeepAliveSeconds = configWorkerKeepAliveSeconds;
+		}
+
+		public RejectedExecutionHandler getConfigRejectionHandler() {
+			return _configRejectionHandler;
+		}
+		/**
+		 * @param configRejectionHandler Called when both workers and queue are full.
+		 */
+		public void setConfigRejectionHandler(RejectedExecutionHandler configRejectionHandler) {
+			this._configRejectionHandler = configRejectionHandler;
+		}
+
+		public int getConfigAcceptorThreads() {
+			return _configAcceptorThreads;
+		}
+
+		public void setConfigAcceptorThreads(int configAcceptorThreads) {
+			this._configAcceptorThreads = configAcceptorThreads;
+		}
+
+		public int getConfigAcceptBacklog() {
+			return _configAcceptBacklog;
+		}
+		/**
+		 * @param configAcceptBacklog Pending connections queued by the kernel per listener.
+		 */
+		public void setConfigAcceptBacklog(int configAcceptBacklog) {
+			this._configAcceptBacklog = configAcceptBacklog;
+		}
+
+		public boolean isConfigReusePort() {
+			return _configReusePort;
+		}
+		/**
+		 * @param configReusePort Bind one listener per acceptor thread using SO_REUSEPORT.
+		 */
+		public void setConfigReusePort(boolean configReusePort) {
+			this._configReusePort = configReusePort;
+		}
 		
 	}
 }
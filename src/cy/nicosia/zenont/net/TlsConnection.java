@@ -0,0 +1,328 @@
+package cy.nicosia.zenont.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * <b>IConnection</b> which encrypts another connection with an SSLEngine.
+ * <p/>
+ * The engine does not own any socket, so the same class terminates TLS over TCP, Unix domain
+ * or in-memory transports. Reads and writes are guarded by separate ReentrantLocks so a
+ * reader blocked on the transport never stalls a writer and virtual threads are not pinned.<br/>
+ * Records are read from the blocking streams of the transport, so this class cannot run on an
+ * event loop. Non-blocking transports drive a <b>TlsEngine</b> with buffers instead.
+ */
+public class TlsConnection implements IConnection {
+
+	@SuppressWarnings("unused")
+	private static final String TAG = "TlsConnection";
+
+	private final IConnection _transport;
+	private final SSLEngine _engine;
+	private final TlsContext _context;
+	private final ReentrantLock _readLock;
+	private final ReentrantLock _writeLock;
+	private final InputStream _inputStream;
+	private final OutputStream _outputStream;
+	//Encrypted bytes read from the transport, kept in write mode
+	private ByteBuffer _netIn;
+	//Encrypted bytes to send to the transport
+	private ByteBuffer _netOut;
+	//Decrypted bytes, kept ready for reading
+	private ByteBuffer _appIn;
+	//System.nanoTime by which the handshake must complete, 0 for none
+	private long _handshakeDeadline;
+	private volatile boolean _closed;
+
+	TlsConnection(IConnection transport, SSLEngine engine, TlsContext context) throws IOException {
+		_transport = transport;
+		_engine = engine;
+		_context = context;
+		_readLock = new ReentrantLock();
+		_writeLock = new ReentrantLock();
+		SSLSession session = engine.getSession();
+		_netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+		_netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+		_appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+		_appIn.flip();
+		_inputStream = new TlsInputStream();
+		_outputStream = new TlsOutputStream();
+	}
+	/**
+	 * @return the session negotiated by the handshake.
+	 */
+	public SSLSession getSession() {
+		return _engine.getSession();
+	}
+	/**
+	 * Run the handshake to completion.
+	 * @throws IOException if the peer fails the handshake or the transport closes.
+	 */
+	public void handshake() throws IOException {
+		handshake(0);
+	}
+	/**
+	 * Run the handshake to completion within a time limit. Each read from the transport
+	 * is given the time left, so a peer sending a byte at a time cannot extend the handshake.
+	 * @param timeout Milliseconds the whole handshake may take. 0 for no limit.
+	 * @throws SocketTimeoutException if the handshake did not complete in time.
+	 * @throws IOException if the peer fails the handshake or the transport closes.
+	 */
+	public void handshake(int timeout) throws IOException {
+		long start = System.nanoTime();
+		long startMillis = System.currentTimeMillis();
+		_readLock.lock();
+		try {
+			_handshakeDeadline = (timeout > 0 ? start + TimeUnit.MILLISECONDS.toNanos(timeout) : 0L);
+			_engine.beginHandshake();
+			HandshakeStatus status = _engine.getHandshakeStatus();
+			while (status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED) {
+				switch (status) {
+				case NEED_WRAP:
+					status = wrap(ByteBuffer.allocate(0));
+					break;
+				case NEED_TASK:
+					status = runDelegatedTasks();
+					break;
+				default:
+					status = unwrap();
+					if (status == null)
+						throw new EOFException("Connection closed during handshake");
+					break;
+				}
+			}
+		} finally {
+			_handshakeDeadline = 0L;
+			_readLock.unlock();
+		}
+		//A resumed session keeps the creation time of the session it was resumed from
+		_context.handshakeCompleted(System.nanoTime() - start, _engine.getSession().getCreationTime() < startMillis);
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return _inputStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return _outputStream;
+	}
+
+	@Override
+	public void setReadTimeout(int timeout) throws IOException {
+		_transport.setReadTimeout(timeout);
+	}
+
+	@Override
+	public boolean isClosed() {
+		return _closed || _transport.isClosed();
+	}
+
+	@Override
+	public String getRemoteAddress() {
+		return _transport.getRemoteAddress();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (_closed)
+			return;
+		_closed = true;
+		try {
+			//Send close_notify if the transport is still writable
+			_engine.closeOutbound();
+			if (!_transport.isClosed() && _writeLock.tryLock()) {
+				try {
+					wrap(ByteBuffer.allocate(0));
+				} finally {
+					_writeLock.unlock();
+				}
+			}
+		} catch (IOException e) {
+			//Peer may already be gone
+		} finally {
+			_transport.close();
+		}
+	}
+	/**
+	 * Unwrap one record into the application buffer, reading from the transport when more bytes are needed.
+	 * Called with the read lock held.
+	 * @return the handshake status after the record or null at end of stream.
+	 */
+	private HandshakeStatus unwrap() throws IOException {
+		while (true) {
+			_netIn.flip();
+			_appIn.compact();
+			SSLEngineResult result;
+			try {
+				result = _engine.unwrap(_netIn, _appIn);
+			} finally {
+				_appIn.flip();
+				_netIn.compact();
+			}
+
+			switch (result.getStatus()) {
+			case OK:
+				return result.getHandshakeStatus();
+			case CLOSED:
+				//Answer the peer close_notify
+				if (!_engine.isOutboundDone() && result.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+					wrap(ByteBuffer.allocate(0));
+				return null;
+			case BUFFER_OVERFLOW:
+				_appIn = enlarge(_appIn, _engine.getSession().getApplicationBufferSize(), true);
+				break;
+			case BUFFER_UNDERFLOW:
+				if (!_netIn.hasRemaining())
+					_netIn = enlarge(_netIn, _engine.getSession().getPacketBufferSize(), false);
+				if (_handshakeDeadline != 0L) {
+					long left = TimeUnit.NANOSECONDS.toMillis(_handshakeDeadline - System.nanoTime());
+					if (left <= 0L)
+						throw new SocketTimeoutException("Handshake timed out");
+					_transport.setReadTimeout((int) Math.min(left, Integer.MAX_VALUE));
+				}
+				int read = _transport.getInputStream().read(_netIn.array(), _netIn.arrayOffset() + _netIn.position(), _netIn.remaining());
+				if (read == -1) {
+					try {
+						_engine.closeInbound();
+					} catch (SSLException e) {
+						//Peer closed without close_notify
+					}
+					return null;
+				}
+				_netIn.position(_netIn.position() + read);
+				break;
+			}
+		}
+	}
+	/**
+	 * Wrap and send application data, or a handshake message when <code>src</code> is empty.
+	 * @return the handshake status after the last record.
+	 */
+	private HandshakeStatus wrap(ByteBuffer src) throws IOException {
+		_writeLock.lock();
+		try {
+			OutputStream out = _transport.getOutputStream();
+			while (true) {
+				_netOut.clear();
+				SSLEngineResult result = _engine.wrap(src, _netOut);
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					_netOut = enlarge(_netOut, _engine.getSession().getPacketBufferSize(), false);
+					continue;
+				}
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED && src.hasRemaining())
+					throw new IOException("Connection closed");
+				if (result.bytesProduced() > 0) {
+					out.write(_netOut.array(), _netOut.arrayOffset(), _netOut.position());
+					out.flush();
+				}
+				if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+					runDelegatedTasks();
+				if (!src.hasRemaining() || result.getStatus() == SSLEngineResult.Status.CLOSED)
+					break;
+			}
+			return _engine.getHandshakeStatus();
+		} finally {
+			_writeLock.unlock();
+		}
+	}
+
+	private HandshakeStatus runDelegatedTasks() {
+		Runnable task;
+		while ((task = _engine.getDelegatedTask()) != null)
+			task.run();
+		return _engine.getHandshakeStatus();
+	}
+	/**
+	 * Grow a buffer to at least <code>size</code>, keeping its content and mode.
+	 */
+	private static ByteBuffer enlarge(ByteBuffer buffer, int size, boolean readMode) {
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+		if (readMode) {
+			bigger.put(buffer);
+			bigger.flip();
+		} else {
+			buffer.flip();
+			bigger.put(buffer);
+		}
+		return bigger;
+	}
+
+	private class TlsInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			int read = read(single, 0, 1);
+			return (read == -1 ? -1 : single[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			_readLock.lock();
+			try {
+				while (!_appIn.hasRemaining()) {
+					if (_engine.isInboundDone())
+						return -1;
+					HandshakeStatus status = unwrap();
+					if (status == null)
+						return -1;
+					//Post handshake messages such as session tickets or key updates
+					while (status == HandshakeStatus.NEED_WRAP || status == HandshakeStatus.NEED_TASK)
+						status = (status == HandshakeStatus.NEED_WRAP ? wrap(ByteBuffer.allocate(0)) : runDelegatedTasks());
+				}
+				int read = Math.min(len, _appIn.remaining());
+				_appIn.get(b, off, read);
+				return read;
+			} finally {
+				_readLock.unlock();
+			}
+		}
+
+		@Override
+		public int available() {
+			return _appIn.remaining();
+		}
+
+		@Override
+		public void close() throws IOException {
+			TlsConnection.this.close();
+		}
+	}
+
+	private class TlsOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (_closed)
+				throw new IOException("Connection closed");
+			wrap(ByteBuffer.wrap(b, off, len));
+		}
+
+		@Override
+		public void close() throws IOException {
+			TlsConnection.this.close();
+		}
+	}
+}
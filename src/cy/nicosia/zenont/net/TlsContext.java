@@ -0,0 +1,303 @@
+package cy.nicosia.zenont.net;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+
+import cy.nicosia.zenont.base.ConfigManager;
+import cy.nicosia.zenont.base.Logger;
+import cy.nicosia.zenont.base.ConfigManager.Config;
+
+/**
+ * <b>TlsContext</b> holds the server SSLContext built from <b>TlsConfig</b> and
+ * creates server side <b>TlsConnection</b>s on top of any other <b>IConnection</b>, or
+ * <b>TlsEngine</b>s for transports driven by an event loop.
+ * <p/>
+ * Sessions are kept in the server session cache of the SSLContext so clients can resume them.
+ * Handshake counters are shared by every connection created by the same context.
+ */
+public class TlsContext {
+
+	private static final String TAG = "TlsContext";
+
+	private static final String SESSION_TICKET_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+	private final SSLContext _sslContext;
+	private final TlsConfig _cfg;
+	private final AtomicLong _handshakes;
+	private final AtomicLong _resumedHandshakes;
+	private final AtomicLong _failedHandshakes;
+	private final AtomicLong _handshakeNanos;
+
+	public TlsContext(ConfigManager configManager) throws IOException, GeneralSecurityException {
+		_cfg = (TlsConfig) configManager.getConfig(TlsConfig.class);
+		_handshakes = new AtomicLong();
+		_resumedHandshakes = new AtomicLong();
+		_failedHandshakes = new AtomicLong();
+		_handshakeNanos = new AtomicLong();
+
+		//Read by the JDK when the TLS provider initialises, so it must be set before the first SSLContext
+		if (System.getProperty(SESSION_TICKET_PROPERTY) == null)
+			System.setProperty(SESSION_TICKET_PROPERTY, String.valueOf(_cfg.isConfigSessionTickets()));
+
+		KeyStore keyStore = KeyStore.getInstance(_cfg.getConfigKeyStoreType());
+		InputStream keyStoreStream = new FileInputStream(_cfg.getConfigKeyStore());
+		try {
+			keyStore.load(keyStoreStream, toChars(_cfg.getConfigKeyStorePassword()));
+		} finally {
+			keyStoreStream.close();
+		}
+		KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagerFactory.init(keyStore, toChars(_cfg.getConfigKeyPassword() != null ?
+				_cfg.getConfigKeyPassword() : _cfg.getConfigKeyStorePassword()));
+
+		_sslContext = SSLContext.getInstance("TLS");
+		_sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+		SSLSessionContext sessionContext = _sslContext.getServerSessionContext();
+		sessionContext.setSessionCacheSize(_cfg.getConfigSessionCacheSize());
+		sessionContext.setSessionTimeout(_cfg.getConfigSessionTimeout() / 1000);
+		Logger.debug(TAG, "TLS context initialised with keystore: " + _cfg.getConfigKeyStore());
+	}
+	/**
+	 * @return the SSLContext used for new connections.
+	 */
+	public SSLContext getSSLContext() {
+		return _sslContext;
+	}
+	/**
+	 * @return a new server side engine with the configured protocols and cipher suites.
+	 */
+	public SSLEngine createEngine() {
+		SSLEngine engine = _sslContext.createSSLEngine();
+		engine.setUseClientMode(false);
+		if (_cfg.getConfigProtocols() != null)
+			engine.setEnabledProtocols(_cfg.getConfigProtocols());
+		if (_cfg.getConfigCipherSuites() != null)
+			engine.setEnabledCipherSuites(_cfg.getConfigCipherSuites());
+		return engine;
+	}
+	/**
+	 * Wrap a plaintext transport and complete the server handshake on it.
+	 * The whole handshake must complete within the handshake timeout.
+	 * The transport is closed if the handshake fails.
+	 * @param transport Connection carrying the encrypted records.
+	 * @return the connection carrying application data.
+	 * @throws IOException if the handshake fails or times out.
+	 */
+	public TlsConnection accept(IConnection transport) throws IOException {
+		TlsConnection connection = new TlsConnection(transport, createEngine(), this);
+		try {
+			connection.handshake(_cfg.getConfigHandshakeTimeout());
+			//Reads keep the handshake timeout until the protocol sets its own
+			transport.setReadTimeout(_cfg.getConfigHandshakeTimeout());
+		} catch (IOException e) {
+			_failedHandshakes.incrementAndGet();
+			connection.close();
+			throw e;
+		}
+		return connection;
+	}
+	/**
+	 * @return a server side engine driven with buffers, for connections owned by an event loop.
+	 * @throws SSLException if the handshake cannot be started.
+	 */
+	public TlsEngine createTlsEngine() throws SSLException {
+		return new TlsEngine(createEngine(), this);
+	}
+	/**
+	 * @return Completed handshakes.
+	 */
+	public long getHandshakes() {
+		return _handshakes.get();
+	}
+	/**
+	 * @return Completed handshakes that resumed a cached session or a session ticket.
+	 */
+	public long getResumedHandshakes() {
+		return _resumedHandshakes.get();
+	}
+	/**
+	 * @return Handshakes that failed or timed out.
+	 */
+	public long getFailedHandshakes() {
+		return _failedHandshakes.get();
+	}
+	/**
+	 * @return Share of completed handshakes that were resumptions, between 0 and 1.
+	 */
+	public double getResumptionRate() {
+		long handshakes = _handshakes.get();
+		return (handshakes == 0 ? 0 : (double) _resumedHandshakes.get() / handshakes);
+	}
+	/**
+	 * @return Total time spent in completed handshakes in nanoseconds.
+	 */
+	public long getHandshakeNanos() {
+		return _handshakeNanos.get();
+	}
+	/**
+	 * @return Average time of a completed handshake in milliseconds.
+	 */
+	public double getAverageHandshakeMillis() {
+		long handshakes = _handshakes.get();
+		return (handshakes == 0 ? 0 : _handshakeNanos.get() / 1000000.0 / handshakes);
+	}
+
+	void handshakeFailed() {
+		_failedHandshakes.incrementAndGet();
+	}
+
+	void handshakeCompleted(long nanos, boolean resumed) {
+		_handshakes.incrementAndGet();
+		_handshakeNanos.addAndGet(nanos);
+		if (resumed)
+			_resumedHandshakes.incrementAndGet();
+	}
+
+	private static char[] toChars(String password) {
+		return (password != null ? password.toCharArray() : null);
+	}
+
+	public static class TlsConfig extends Config {
+
+		@SuppressWarnings("unused")
+		private static final String TAG = "TlsConfig";
+
+		//Configuration settings
+		private volatile boolean _configEnabled;
+		private volatile String _configKeyStore;
+		private volatile String _configKeyStoreType;
+		private volatile String _configKeyStorePassword;
+		private volatile String _configKeyPassword;
+		private volatile String[] _configProtocols;
+		private volatile String[] _configCipherSuites;
+		private volatile int _configSessionCacheSize;
+		private volatile int _configSessionTimeout;
+		private volatile boolean _configSessionTickets;
+		private volatile int _configHandshakeTimeout;
+
+		//defaults
+		{
+			setConfigEnabled(false);
+			setConfigKeyStoreType("PKCS12");
+			setConfigProtocols(new String[] {"TLSv1.3", "TLSv1.2"});
+			setConfigSessionCacheSize(20000);
+			setConfigSessionTimeout(86400);
+			setConfigSessionTickets(true);
+			setConfigHandshakeTimeout(10);
+		}
+
+		public boolean isConfigEnabled() {
+			return _configEnabled;
+		}
+		/**
+		 * @param configEnabled Terminate TLS on connections accepted by listeners reading this config.
+		 */
+		public void setConfigEnabled(boolean configEnabled) {
+			this._configEnabled = configEnabled;
+		}
+
+		public String getConfigKeyStore() {
+			return _configKeyStore;
+		}
+		/**
+		 * @param configKeyStore Path of the keystore holding the server key and certificate chain.
+		 */
+		public void setConfigKeyStore(String configKeyStore) {
+			this._configKeyStore = configKeyStore;
+		}
+
+		public String getConfigKeyStoreType() {
+			return _configKeyStoreType;
+		}
+
+		public void setConfigKeyStoreType(String configKeyStoreType) {
+			this._configKeyStoreType = configKeyStoreType;
+		}
+
+		public String getConfigKeyStorePassword() {
+			return _configKeyStorePassword;
+		}
+
+		public void setConfigKeyStorePassword(String configKeyStorePassword) {
+			this._configKeyStorePassword = configKeyStorePassword;
+		}
+
+		public String getConfigKeyPassword() {
+			return _configKeyPassword;
+		}
+		/**
+		 * @param configKeyPassword Password of the private key. Null uses the keystore password.
+		 */
+		public void setConfigKeyPassword(String configKeyPassword) {
+			this._configKeyPassword = configKeyPassword;
+		}
+
+		public String[] getConfigProtocols() {
+			return _configProtocols;
+		}
+		/**
+		 * @param configProtocols Enabled protocol versions. Null keeps the JDK defaults.
+		 */
+		public void setConfigProtocols(String[] configProtocols) {
+			this._configProtocols = configProtocols;
+		}
+
+		public String[] getConfigCipherSuites() {
+			return _configCipherSuites;
+		}
+		/**
+		 * @param configCipherSuites Enabled cipher suites. Null keeps the JDK defaults.
+		 */
+		public void setConfigCipherSuites(String[] configCipherSuites) {
+			this._configCipherSuites = configCipherSuites;
+		}
+
+		public int getConfigSessionCacheSize() {
+			return _configSessionCacheSize;
+		}
+		/**
+		 * @param configSessionCacheSize Sessions kept for resumption. 0 is unlimited.
+		 */
+		public void setConfigSessionCacheSize(int configSessionCacheSize) {
+			this._configSessionCacheSize = configSessionCacheSize;
+		}
+
+		public int getConfigSessionTimeout() {
+			return _configSessionTimeout;
+		}
+
+		public void setConfigSessionTimeout(int configSessionTimeout) {
+			this._configSessionTimeout = configSessionTimeout * 1000;
+		}
+
+		public boolean isConfigSessionTickets() {
+			return _configSessionTickets;
+		}
+		/**
+		 * @param configSessionTickets Resume sessions from tickets held by clients instead of the cache.
+		 * Applies to the whole JVM and only if set before the first TLS context is created.
+		 */
+		public void setConfigSessionTickets(boolean configSessionTickets) {
+			this._configSessionTickets = configSessionTickets;
+		}
+
+		public int getConfigHandshakeTimeout() {
+			return _configHandshakeTimeout;
+		}
+
+		public void setConfigHandshakeTimeout(int configHandshakeTimeout) {
+			this._configHandshakeTimeout = configHandshakeTimeout * 1000;
+		}
+	}
+}
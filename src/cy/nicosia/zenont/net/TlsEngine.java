@@ -0,0 +1,193 @@
+package cy.nicosia.zenont.net;
+
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+import cy.nicosia.zenont.base.ByteQueue;
+
+/**
+ * Server side TLS driven with buffers instead of a blocking transport, for connections owned by an
+ * event loop such as those of <b>NioSocketD</b>.
+ * <p/>
+ * Encrypted bytes received from the peer are handed to <code>unwrap</code>, which appends the
+ * decrypted application bytes to one queue and the records owed to the peer, such as handshake
+ * messages or the reply to a close_notify, to another. <code>wrap</code> encrypts application
+ * bytes into the same queue of records. No call blocks: the caller writes the queued records to
+ * its transport whenever it can. Delegated tasks of the engine run on the calling thread.<br/>
+ * The handshake timeout of <b>TlsConfig</b> is not enforced here, the owner of the connection
+ * must close it if <code>isHandshakeComplete</code> stays false for too long, as the event loops
+ * of <b>NioSocketD</b> do.
+ * <p/>
+ * An instance is not thread safe, it is meant to be used by the one thread owning the connection.
+ */
+public class TlsEngine {
+
+	@SuppressWarnings("unused")
+	private static final String TAG = "TlsEngine";
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SSLEngine _engine;
+	private final TlsContext _context;
+	private final long _start;
+	private final long _startMillis;
+	//Encrypted bytes received but not yet forming a whole record, kept in write mode
+	private ByteBuffer _netIn;
+	private ByteBuffer _netOut;
+	private ByteBuffer _appIn;
+	private boolean _handshakeComplete;
+
+	TlsEngine(SSLEngine engine, TlsContext context) throws SSLException {
+		_engine = engine;
+		_context = context;
+		_start = System.nanoTime();
+		_startMillis = System.currentTimeMillis();
+		SSLSession session = engine.getSession();
+		_netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+		_netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+		_appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+		_engine.beginHandshake();
+	}
+	/**
+	 * @return the session, negotiated once the handshake is complete.
+	 */
+	public SSLSession getSession() {
+		return _engine.getSession();
+	}
+
+	public boolean isHandshakeComplete() {
+		return _handshakeComplete;
+	}
+	/**
+	 * Decrypt the records received from the peer, progressing the handshake as needed.
+	 * @param data Encrypted bytes received. All of them are consumed, partial records are kept for the next call.
+	 * @param application Receives the decrypted application bytes.
+	 * @param network Receives the records to send to the peer.
+	 * @return false once the peer has closed the TLS session.
+	 * @throws SSLException if the records are invalid or the handshake fails.
+	 */
+	public boolean unwrap(ByteBuffer data, ByteQueue application, ByteQueue network) throws SSLException {
+		try {
+			if (_netIn.remaining() < data.remaining())
+				_netIn = enlarge(_netIn, _netIn.position() + data.remaining());
+			_netIn.put(data);
+
+			while (true) {
+				HandshakeStatus status = _engine.getHandshakeStatus();
+				//A wrap producing nothing, once the outbound side is closed, falls through to unwrap
+				if (status == HandshakeStatus.NEED_WRAP && (wrapRecord(EMPTY, network).bytesProduced() > 0 ||
+						_engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP))
+					continue;
+				if (status == HandshakeStatus.NEED_TASK) {
+					runDelegatedTasks();
+					continue;
+				}
+
+				_netIn.flip();
+				_appIn.clear();
+				SSLEngineResult result;
+				try {
+					result = _engine.unwrap(_netIn, _appIn);
+				} finally {
+					_netIn.compact();
+				}
+				_appIn.flip();
+				application.concatenate(_appIn);
+				checkHandshake(result);
+
+				switch (result.getStatus()) {
+				case OK:
+					break;
+				case CLOSED:
+					//Answer the peer close_notify
+					while (_engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP && !_engine.isOutboundDone())
+						if (wrapRecord(EMPTY, network).bytesProduced() == 0)
+							break;
+					return false;
+				case BUFFER_OVERFLOW:
+					_appIn = ByteBuffer.allocate(Math.max(_engine.getSession().getApplicationBufferSize(), _appIn.capacity() * 2));
+					break;
+				case BUFFER_UNDERFLOW:
+					//Wait for the rest of the record
+					if (_netIn.capacity() < _engine.getSession().getPacketBufferSize())
+						_netIn = enlarge(_netIn, _engine.getSession().getPacketBufferSize());
+					return true;
+				}
+			}
+		} catch (SSLException e) {
+			if (!_handshakeComplete)
+				_context.handshakeFailed();
+			throw e;
+		}
+	}
+	/**
+	 * Encrypt application bytes. Must only be called once the handshake is complete.
+	 * @param data Application bytes. Its position is advanced past them.
+	 * @param network Receives the records to send to the peer.
+	 * @throws SSLException if the session has been closed or the handshake is not complete.
+	 */
+	public void wrap(ByteBuffer data, ByteQueue network) throws SSLException {
+		if (!_handshakeComplete)
+			throw new SSLException("Handshake not complete");
+		while (data.hasRemaining()) {
+			SSLEngineResult result = wrapRecord(data, network);
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+				throw new SSLException("Connection closed");
+		}
+	}
+	/**
+	 * Start closing the session by queuing a close_notify for the peer.
+	 * @param network Receives the records to send to the peer.
+	 */
+	public void closeOutbound(ByteQueue network) throws SSLException {
+		_engine.closeOutbound();
+		while (!_engine.isOutboundDone())
+			if (wrapRecord(EMPTY, network).bytesProduced() == 0)
+				break;
+	}
+
+	private SSLEngineResult wrapRecord(ByteBuffer src, ByteQueue network) throws SSLException {
+		while (true) {
+			_netOut.clear();
+			SSLEngineResult result = _engine.wrap(src, _netOut);
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				_netOut = ByteBuffer.allocate(Math.max(_engine.getSession().getPacketBufferSize(), _netOut.capacity() * 2));
+				continue;
+			}
+			_netOut.flip();
+			network.concatenate(_netOut);
+			if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+				runDelegatedTasks();
+			checkHandshake(result);
+			return result;
+		}
+	}
+
+	private void checkHandshake(SSLEngineResult result) {
+		if (_handshakeComplete || result.getHandshakeStatus() != HandshakeStatus.FINISHED)
+			return;
+		_handshakeComplete = true;
+		//A resumed session keeps the creation time of the session it was resumed from
+		_context.handshakeCompleted(System.nanoTime() - _start, _engine.getSession().getCreationTime() < _startMillis);
+	}
+
+	private void runDelegatedTasks() {
+		Runnable task;
+		while ((task = _engine.getDelegatedTask()) != null)
+			task.run();
+	}
+	/**
+	 * Grow a buffer in write mode to at least <code>size</code>, keeping its content.
+	 */
+	private static ByteBuffer enlarge(ByteBuffer buffer, int size) {
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+}
@@ -0,0 +1,426 @@
+package cy.nicosia.zenont.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cy.nicosia.zenont.base.ConfigManager;
+import cy.nicosia.zenont.base.Logger;
+import cy.nicosia.zenont.base.ConfigManager.Config;
+import cy.nicosia.zenont.net.protocol.IDatagramProtocol;
+
+/**
+ * <b>UdpSocketD</b> starts a UDP listener and hands received datagrams to an
+ * <b>IDatagramProtocol</b> implementation.
+ * <p/>
+ * A receive thread drains the DatagramChannel in batches into pooled buffers and each
+ * batch is processed on a fixed pool of worker threads. Once the buffer pool is warm
+ * payload buffers are reused rather than allocated per datagram. No more buffers than the
+ * pool holds are ever allocated, so direct memory stays bounded during bursts: datagrams
+ * received while every buffer waits for a worker are dropped and counted, as are batches
+ * that cannot be queued, which suits fire-and-forget traffic.
+ */
+public class UdpSocketD implements ISocketD {
+
+	private static final String TAG = "UdpSocketD";
+
+	private String _host;
+	private int _port;
+	private DatagramChannel _channel;
+	private Selector _selector;
+	private AsyncReceiveThread _asyncReceiveThread;
+	private ThreadPoolExecutor _workerPool;
+	private BlockingQueue<ByteBuffer> _bufferPool;
+	//Buffers allocated so far, never more than the pool holds
+	private final AtomicInteger _allocatedBuffers;
+	private IDatagramProtocol _protocolHandlerInstance;
+	private final AtomicLong _totalDatagrams;
+	private final AtomicLong _droppedDatagrams;
+	private UdpSocketDConfig _cfg;
+
+	protected ConfigManager _cfgMgr;
+
+	public UdpSocketD(ConfigManager configManager) {
+		this(configManager, 0);
+	}
+
+	public UdpSocketD(ConfigManager configManager, int port) {
+		this(configManager, null, port);
+	}
+
+	public UdpSocketD(ConfigManager configManager, String host, int port) {
+		_cfgMgr = configManager;
+		_cfg = (UdpSocketDConfig) _cfgMgr.getConfig(UdpSocketDConfig.class);
+		_totalDatagrams = new AtomicLong();
+		_droppedDatagrams = new AtomicLong();
+		_allocatedBuffers = new AtomicInteger();
+		setHost(host);
+		setPort(port);
+	}
+
+	@Override
+	public boolean start() {
+		try {
+			_channel = DatagramChannel.open();
+			if (_cfg.getConfigReceiveBufferSize() > 0)
+				_channel.setOption(StandardSocketOptions.SO_RCVBUF, _cfg.getConfigReceiveBufferSize());
+			InetSocketAddress iSockAddr =
+					(getHost() == null ? new InetSocketAddress(getPort()) : new InetSocketAddress(getHost(), getPort()));
+			_channel.bind(iSockAddr);
+			_channel.configureBlocking(false);
+			_selector = Selector.open();
+			_channel.register(_selector, SelectionKey.OP_READ);
+			//In case of port 0 passed as argument assign real port number since it is assigned by system
+			setPort(_channel.socket().getLocalPort());
+
+			_protocolHandlerInstance = _cfg.getProtocolHandler().newInstance();
+			_protocolHandlerInstance.exec(_cfgMgr, _channel);
+
+			_bufferPool = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, _cfg.getConfigPooledBuffers()));
+			_allocatedBuffers.set(0);
+			_workerPool = createWorkerPool();
+
+			Logger.debug(TAG, "Server started on port: " + getPort());
+			_asyncReceiveThread = new AsyncReceiveThread();
+			_asyncReceiveThread.setDaemon(true);
+			_asyncReceiveThread.setName("Receive_Worker_Thread_" + getPort());
+			_asyncReceiveThread.start();
+		} catch (Exception e) {
+			Logger.error(TAG, e);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void stop() {
+		_asyncReceiveThread.cancel();
+		try {
+			_asyncReceiveThread.join(_cfg.getConfigWaitForSocketClose());
+		} catch (InterruptedException e) {
+			Logger.error(TAG, e);
+		}
+		_workerPool.shutdown();
+		try {
+			_workerPool.awaitTermination(_cfg.getConfigWaitForSocketClose(), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Logger.error(TAG, e);
+		}
+		_protocolHandlerInstance.dispose();
+		_bufferPool.clear();
+	}
+	/**
+	 * @return Host that socket is currently binded to.
+	 */
+	public String getHost() {
+		return _host;
+	}
+	/**
+	 * @param host Set host IP address that socket should bind to.
+	 */
+	public void setHost(String host) {
+		this._host = host;
+	}
+	/**
+	 * @return Port that socket is currently binded to.
+	 */
+	public int getPort() {
+		return _port;
+	}
+	/**
+	 * @param host Set port that socket should bind to.
+	 */
+	public void setPort(int port) {
+		this._port = port;
+	}
+	/**
+	 * @return The number of datagrams received.
+	 */
+	public long getTotalDatagrams() {
+		return _totalDatagrams.get();
+	}
+	/**
+	 * @return The number of datagrams dropped because the workers could not keep up or every buffer was in use.
+	 */
+	public long getDroppedDatagrams() {
+		return _droppedDatagrams.get();
+	}
+
+	private ThreadPoolExecutor createWorkerPool() {
+		int threads = Math.max(1, _cfg.getConfigWorkerThreads());
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, _cfg.getConfigWorkerQueueLength())),
+				new ThreadFactory() {
+					private final AtomicInteger _count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread worker = new Thread(r);
+						worker.setName("Datagram_Worker_" + getPort() + "-" + _count.incrementAndGet());
+						worker.setDaemon(true);
+						return worker;
+					}
+				}, new RejectedExecutionHandler() {
+					@Override
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						((DatagramBatch) r).drop();
+					}
+				});
+	}
+
+	/**
+	 * @return a cleared buffer, or null if all buffers the pool may hold are in use.
+	 */
+	private ByteBuffer leaseBuffer() {
+		ByteBuffer buffer = _bufferPool.poll();
+		if (buffer == null) {
+			if (_allocatedBuffers.incrementAndGet() > Math.max(1, _cfg.getConfigPooledBuffers())) {
+				_allocatedBuffers.decrementAndGet();
+				return null;
+			}
+			buffer = ByteBuffer.allocateDirect(_cfg.getConfigMaxDatagramLength());
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	private void releaseBuffer(ByteBuffer buffer) {
+		//Always fits since no more buffers are allocated than the pool holds
+		_bufferPool.offer(buffer);
+	}
+	/**
+	 * Thread which drains the channel in batches whenever it becomes readable.
+	 */
+	class AsyncReceiveThread extends Thread {
+
+		private static final String TAG = "AsyncReceiveThread";
+
+		@Override
+		public void run() {
+			Logger.debug(TAG, "Async Receive Thread started");
+			int batchSize = Math.max(1, _cfg.getConfigBatchSize());
+			//Receives the datagrams dropped while every pooled buffer is in use
+			ByteBuffer discard = ByteBuffer.allocateDirect(_cfg.getConfigMaxDatagramLength());
+
+			while (!Thread.currentThread().isInterrupted() && _selector.isOpen()) {
+				try {
+					_selector.select();
+					_selector.selectedKeys().clear();
+
+					boolean drained = false;
+					while (!drained) {
+						DatagramBatch batch = new DatagramBatch(batchSize);
+						ByteBuffer buffer = leaseBuffer();
+						SocketAddress source;
+						while (batch._count < batchSize) {
+							if (buffer == null) {
+								//Still drain the channel or the selector would report it readable forever
+								discard.clear();
+								if (_channel.receive(discard) == null)
+									break;
+								_totalDatagrams.incrementAndGet();
+								_droppedDatagrams.incrementAndGet();
+								buffer = leaseBuffer();
+								continue;
+							}
+							if ((source = _channel.receive(buffer)) == null)
+								break;
+							buffer.flip();
+							batch.add(source, buffer);
+							buffer = leaseBuffer();
+						}
+						if (buffer != null)
+							releaseBuffer(buffer);
+						drained = batch._count < batchSize;
+
+						if (batch._count > 0) {
+							_totalDatagrams.addAndGet(batch._count);
+							_workerPool.execute(batch);
+						}
+					}
+				} catch (IOException e) {
+					//If we close the channel to stop the thread do not log an error
+					if (!Thread.currentThread().isInterrupted())
+						Logger.error(TAG, e);
+				} catch (ClosedSelectorException e) {
+					//Closed by cancel while selecting
+					break;
+				}
+			}
+			Logger.debug(TAG, "Async Receive Thread stopping");
+		}
+
+		void cancel() {
+			//Set interrupt flag
+			interrupt();
+			try {
+				_selector.close();
+				_channel.close();
+			} catch (IOException e) {
+				Logger.error(TAG, e);
+			}
+		}
+	}
+	/**
+	 * Datagrams received together and processed by one worker.
+	 */
+	class DatagramBatch implements Runnable {
+
+		private static final String TAG = "DatagramBatch";
+
+		private final SocketAddress[] _sources;
+		private final ByteBuffer[] _datagrams;
+		private int _count;
+
+		DatagramBatch(int batchSize) {
+			_sources = new SocketAddress[batchSize];
+			_datagrams = new ByteBuffer[batchSize];
+		}
+
+		void add(SocketAddress source, ByteBuffer datagram) {
+			_sources[_count] = source;
+			_datagrams[_count] = datagram;
+			_count++;
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0; i < _count; i++) {
+				try {
+					_protocolHandlerInstance.receive(_channel, _sources[i], _datagrams[i]);
+				} catch (Exception e) {
+					Logger.error(TAG, e);
+				} finally {
+					releaseBuffer(_datagrams[i]);
+					_datagrams[i] = null;
+				}
+			}
+		}
+
+		void drop() {
+			_droppedDatagrams.addAndGet(_count);
+			for (int i = 0; i < _count; i++) {
+				releaseBuffer(_datagrams[i]);
+				_datagrams[i] = null;
+			}
+		}
+	}
+
+	public static class UdpSocketDConfig extends Config {
+
+		@SuppressWarnings("unused")
+		private static final String TAG = "UdpSocketDConfig";
+
+		//Configuration settings
+		private volatile Class<? extends IDatagramProtocol> _protocolHandler;
+		private volatile int _configWaitForSocketClose;
+		private volatile int _configWorkerThreads;
+		private volatile int _configWorkerQueueLength;
+		private volatile int _configBatchSize;
+		private volatile int _configMaxDatagramLength;
+		private volatile int _configPooledBuffers;
+		private volatile int _configReceiveBufferSize;
+
+		//defaults
+		{
+			setConfigWaitForSocketClose(5);
+			setConfigWorkerThreads(Runtime.getRuntime().availableProcessors());
+			setConfigWorkerQueueLength(1024);
+			setConfigBatchSize(32);
+			setConfigMaxDatagramLength(64 * 1024);
+			setConfigPooledBuffers(1024);
+			setConfigReceiveBufferSize(0);
+		}
+
+		public Class<? extends IDatagramProtocol> getProtocolHandler() {
+			return _protocolHandler;
+		}
+
+		public void setProtocolHandler(
+				Class<? extends IDatagramProtocol> protocol) {
+			this._protocolHandler = protocol;
+		}
+
+		public int getConfigWaitForSocketClose() {
+			return _configWaitForSocketClose;
+		}
+
+		public void setConfigWaitForSocketClose(int configWaitForSocketClose) {
+			this._configWaitForSocketClose = configWaitForSocketClose * 1000;
+		}
+
+		public int getConfigWorkerThreads() {
+			return _configWorkerThreads;
+		}
+
+		public void setConfigWorkerThreads(int configWorkerThreads) {
+			this._configWorkerThreads = configWorkerThreads;
+		}
+
+		public int getConfigWorkerQueueLength() {
+			return _configWorkerQueueLength;
+		}
+		/**
+		 * @param configWorkerQueueLength Batches waiting for a worker before new batches are dropped.
+		 */
+		public void setConfigWorkerQueueLength(int configWorkerQueueLength) {
+			this._configWorkerQueueLength = configWorkerQueueLength;
+		}
+
+		public int getConfigBatchSize() {
+			return _configBatchSize;
+		}
+		/**
+		 * @param configBatchSize Maximum datagrams received before the batch is handed to a worker.
+		 */
+		public void setConfigBatchSize(int configBatchSize) {
+			this._configBatchSize = configBatchSize;
+		}
+
+		public int getConfigMaxDatagramLength() {
+			return _configMaxDatagramLength;
+		}
+		/**
+		 * @param configMaxDatagramLength Size of each pooled buffer. Longer datagrams are truncated.
+		 */
+		public void setConfigMaxDatagramLength(int configMaxDatagramLength) {
+			this._configMaxDatagramLength = configMaxDatagramLength;
+		}
+
+		public int getConfigPooledBuffers() {
+			return _configPooledBuffers;
+		}
+
+		/**
+		 * @param configPooledBuffers Most payload buffers allocated, each of the max datagram length in direct memory.
+		 * Datagrams received while all of them wait for a worker are dropped.
+		 */
+		public void setConfigPooledBuffers(int configPooledBuffers) {
+			this._configPooledBuffers = configPooledBuffers;
+		}
+
+		public int getConfigReceiveBufferSize() {
+			return _configReceiveBufferSize;
+		}
+		/**
+		 * @param configReceiveBufferSize SO_RCVBUF in bytes. 0 keeps the system default.
+		 */
+		public void setConfigReceiveBufferSize(int configReceiveBufferSize) {
+			this._configReceiveBufferSize = configReceiveBufferSize;
+		}
+	}
+}
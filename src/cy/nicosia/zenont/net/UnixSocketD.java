@@ -0,0 +1,289 @@
+package cy.nicosia.zenont.net;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cy.nicosia.zenont.base.ConfigManager;
+import cy.nicosia.zenont.base.Logger;
+import cy.nicosia.zenont.base.ConfigManager.Config;
+import cy.nicosia.zenont.net.protocol.IProtocol;
+
+/**
+ * <b>UnixSocketD</b> starts a multithreaded Unix domain socket listener (JDK 16+).
+ * <p/>
+ * Meant for clients on the same host, such as a sidecar proxy, that would otherwise
+ * connect over loopback TCP. Protocol handlers receive the ConfigManager and an
+ * <b>IConnection</b> as transferables, which <b>HttpProtocol</b> subclasses accept as is.
+ * A stale socket file left at the path by a previous run is removed on start and the file is removed
+ * on stop. Start fails instead if the path holds anything else, or a socket still accepting connections.
+ */
+public class UnixSocketD implements ISocketD {
+
+	private static final String TAG = "UnixSocketD";
+
+	private Path _path;
+	private ServerSocketChannel _serverChannel;
+	private AsyncAcceptThread _asyncAcceptThread;
+	private final AtomicLong _totalConnects;
+	private UnixSocketDConfig _cfg;
+
+	protected ConfigManager _cfgMgr;
+
+	public UnixSocketD(ConfigManager configManager, String path) {
+		_cfgMgr = configManager;
+		_cfg = (UnixSocketDConfig) _cfgMgr.getConfig(UnixSocketDConfig.class);
+		_totalConnects = new AtomicLong();
+		setPath(path);
+	}
+
+	@Override
+	public boolean start() {
+		try {
+			//Remove socket file left behind by a previous run, never a live server's socket or another file
+			if (!removeStaleSocket())
+				return false;
+			_serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			_serverChannel.bind(UnixDomainSocketAddress.of(_path), _cfg.getConfigAcceptBacklog());
+
+			if (_cfg.getConfigFilePermissions() != null &&
+					FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+				Files.setPosixFilePermissions(_path, PosixFilePermissions.fromString(_cfg.getConfigFilePermissions()));
+
+			Logger.debug(TAG, "Server started on path: " + _path);
+			_asyncAcceptThread = new AsyncAcceptThread();
+			_asyncAcceptThread.setDaemon(true);
+			_asyncAcceptThread.setName("Accept_Worker_Thread_" + _path.getFileName());
+			_asyncAcceptThread.start();
+		} catch (IOException e) {
+			Logger.error(TAG, e);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void stop() {
+		//Never started, the file at the path belongs to someone else
+		if (_asyncAcceptThread == null)
+			return;
+		_asyncAcceptThread.cancel();
+		try {
+			_asyncAcceptThread.join(_cfg.getConfigWaitForSocketClose());
+		} catch (InterruptedException e) {
+			Logger.error(TAG, e);
+		}
+		try {
+			Files.deleteIfExists(_path);
+		} catch (IOException e) {
+			Logger.error(TAG, e);
+		}
+	}
+	/**
+	 * @return false if something other than a stale socket file is at the path.
+	 */
+	private boolean removeStaleSocket() throws IOException {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(_path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (NoSuchFileException e) {
+			return true;
+		}
+		//Sockets are neither regular files, directories nor links
+		if (!attributes.isOther()) {
+			Logger.error(TAG, "Not a socket file: " + _path);
+			return false;
+		}
+		SocketChannel probe = null;
+		try {
+			probe = SocketChannel.open(UnixDomainSocketAddress.of(_path));
+		} catch (IOException e) {
+			//Refused, nothing listens on it any more
+		}
+		if (probe != null) {
+			probe.close();
+			Logger.error(TAG, "Socket in use by another server: " + _path);
+			return false;
+		}
+		Files.deleteIfExists(_path);
+		return true;
+	}
+	/**
+	 * @return Path of the socket file.
+	 */
+	public String getPath() {
+		return _path.toString();
+	}
+	/**
+	 * @param path Set path of the socket file the listener should bind to.
+	 */
+	public void setPath(String path) {
+		this._path = Paths.get(path);
+	}
+	/**
+	 * @return The number of total connections accepted by listener.
+	 */
+	public long getTotalConnections() {
+		return _totalConnects.get();
+	}
+	/**
+	 * Thread which accepts connections.
+	 * Starts Runnable to handle each connection.
+	 */
+	class AsyncAcceptThread extends Thread {
+
+		private static final String TAG = "AsyncAcceptThread";
+
+		@Override
+		public void run() {
+			Logger.debug(TAG, "Async Accept Thread started");
+
+			while (!Thread.currentThread().isInterrupted()) {
+				SocketChannel client = null;
+				try {
+					client = _serverChannel.accept();
+					long connectionNumber = _totalConnects.incrementAndGet();
+					Thread connection = new Thread(new ConnectionWorker(new ChannelConnection(client)));
+					connection.setName("Connection-" + connectionNumber);
+					connection.setDaemon(true);
+					connection.start();
+				} catch (IOException e) {
+					//If we close the channel to stop the thread do not log an error
+					if (!Thread.currentThread().isInterrupted())
+						Logger.error(TAG, e);
+					//Accepted but not handed to a worker, such as when its selectors cannot be opened
+					closeQuietly(client);
+				} catch (RuntimeException e) {
+					Logger.error(TAG, e);
+					closeQuietly(client);
+				}
+			}
+			Logger.debug(TAG, "Async Accept Thread stopping");
+		}
+
+		private void closeQuietly(SocketChannel client) {
+			if (client == null)
+				return;
+			try {
+				client.close();
+			} catch (IOException e) {
+				Logger.error(TAG, e);
+			}
+		}
+
+		void cancel() {
+			//Set interrupt flag
+			interrupt();
+			try {
+				//Cause an IOException to stop blocking
+				if (_serverChannel.isOpen())
+					_serverChannel.close();
+			} catch (IOException e) {
+				Logger.error(TAG, e);
+			}
+		}
+	}
+	/**
+	 * Runnable that hands each connection to protocol handler.
+	 */
+	class ConnectionWorker implements Runnable {
+
+		private static final String TAG = "ConnectionWorker";
+
+		private IConnection _connection;
+
+		ConnectionWorker(IConnection connection) {
+			_connection = connection;
+		}
+
+		@Override
+		public void run() {
+			//An instance of our protocol handler
+			IProtocol protocolHandlerInstance = null;
+
+			try {
+				protocolHandlerInstance = _cfg.getProtocolHandler().newInstance();
+
+				Logger.debug(TAG, "Starting protocol handler instance: " + protocolHandlerInstance.toString());
+				protocolHandlerInstance.exec(_cfgMgr, _connection);
+			} catch (Exception e) {
+				Logger.error(TAG, e);
+			} finally {
+				if (protocolHandlerInstance != null)
+					protocolHandlerInstance.dispose();
+				try {
+					_connection.close();
+				} catch (IOException e) {
+					Logger.error(TAG, e);
+				}
+				_connection = null;
+			}
+		}
+	}
+
+	public static class UnixSocketDConfig extends Config {
+
+		@SuppressWarnings("unused")
+		private static final String TAG = "UnixSocketDConfig";
+
+		//Configuration settings
+		private volatile Class<? extends IProtocol> _protocolHandler;
+		private volatile int _configWaitForSocketClose;
+		private volatile int _configAcceptBacklog;
+		private volatile String _configFilePermissions;
+
+		//defaults
+		{
+			setConfigWaitForSocketClose(5);
+			setConfigAcceptBacklog(50);
+			setConfigFilePermissions("rw-rw----");
+		}
+
+		public Class<? extends IProtocol> getProtocolHandler() {
+			return _protocolHandler;
+		}
+
+		public void setProtocolHandler(
+				Class<? extends IProtocol> protocol) {
+			this._protocolHandler = protocol;
+		}
+
+		public int getConfigWaitForSocketClose() {
+			return _configWaitForSocketClose;
+		}
+
+		public void setConfigWaitForSocketClose(int configWaitForSocketClose) {
+			this._configWaitForSocketClose = configWaitForSocketClose * 1000;
+		}
+
+		public int getConfigAcceptBacklog() {
+			return _configAcceptBacklog;
+		}
+
+		public void setConfigAcceptBacklog(int configAcceptBacklog) {
+			this._configAcceptBacklog = configAcceptBacklog;
+		}
+
+		public String getConfigFilePermissions() {
+			return _configFilePermissions;
+		}
+		/**
+		 * @param configFilePermissions Permissions of the socket file in <code>rwxr-x---</code> form.
+		 * Null leaves the permissions given by the process umask.
+		 */
+		public void setConfigFilePermissions(String configFilePermissions) {
+			this._configFilePermissions = configFilePermissions;
+		}
+	}
+}
@@ -1,54 +1,72 @@
 package cy.nicosia.zenont.net.protocol;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.net.URI;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Locale;
-import java.util.Map;
-import java.util.StringTokenizer;
-import java.util.TimeZone;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 
+import cy.nicosia.zenont.base.BufferPool;
 import cy.nicosia.zenont.base.ConfigManager;
 import cy.nicosia.zenont.base.ConfigManager.Config;
-import cy.nicosia.zenont.base.DynamicByteArray;
-import cy.nicosia.zenont.base.DynamicByteArray.ByteArrayUtils;
 import cy.nicosia.zenont.base.Logger;
-import cy.nicosia.zenont.net.protocol.http.HttpMessage.HttpMultiValueCollection;
-import cy.nicosia.zenont.net.protocol.http.HttpMessage.MimeTypes;
+import cy.nicosia.zenont.net.IConnection;
+import cy.nicosia.zenont.net.IFileTransferConnection;
+import cy.nicosia.zenont.net.SocketConnection;
+import cy.nicosia.zenont.net.protocol.http.HttpByteRanges;
+import cy.nicosia.zenont.net.protocol.http.HttpCompression;
 import cy.nicosia.zenont.net.protocol.http.HttpRequest;
 import cy.nicosia.zenont.net.protocol.http.HttpRequest.Method;
 import cy.nicosia.zenont.net.protocol.http.HttpRequest.ProtocolVersion;
+import cy.nicosia.zenont.net.protocol.http.HttpRequestDecoder;
+import cy.nicosia.zenont.net.protocol.http.HttpRequestDecoder.DecoderException;
 import cy.nicosia.zenont.net.protocol.http.HttpResponse;
+import cy.nicosia.zenont.net.protocol.http.HttpResponseEncoder;
+import cy.nicosia.zenont.net.protocol.http.HttpMessage.HttpMultiValueCollection;
 import cy.nicosia.zenont.net.protocol.http.HttpSessionManager;
 import cy.nicosia.zenont.net.protocol.http.HttpSessionManager.HttpSession;
 
 /**
- * Abstract implementation of the HTTP protocol 1.0<br/>
+ * Abstract implementation of the HTTP protocol 1.1<br/>
  * This class needs to be extended and method<p/>
  * <code>public HttpResponse executeRequest(HttpRequest httpRequest)</code><p/>
  * needs to be implemented in the subclass.
  * Implementations will receive a valid HTTP request to process and must return a response.
+ * <p/>
+ * Requests are decoded by <b>HttpRequestDecoder</b> and responses encoded by <b>HttpResponseEncoder</b>.
+ * This class only moves bytes between the blocking connection streams and the codec.
+ * The connection may be passed to <code>exec</code> as a Socket or as any <b>IConnection</b>.
+ * <p/>
+ * Connections persist between requests as negotiated with the Connection header, up to the
+ * maximum requests and idle timeout set in <b>HttpProtocolConfig</b>. With pipelining enabled
+ * every request already received is answered in order before the responses are flushed at once.
+ * Range requests for file bodies are answered with the requested parts by <b>HttpByteRanges</b>
+ * and textual bodies are compressed for clients accepting it by <b>HttpCompression</b>.
+ * <p/>
+ * Requests can be refused from their headers with <code>rejectRequest</code> or for exceeding the maximum
+ * body length, before their body is read. Clients expecting 100-continue are only asked for the body afterwards.
  */
 public abstract class HttpProtocol implements IProtocol {
 
 	private static final String TAG = "HttpProtocol";
-	private static final byte[] DOUBLE_EOL = new byte[] {'\r', '\n', '\r', '\n'};
+	static final byte[] CONTINUE = (ProtocolVersion.HTTP_1_1 + " " + HttpResponse.Status.CONTINUE + "\r\n\r\n").getBytes();
 
-	private Socket _client;
+	private IConnection _client;
 	private InputStream _inputStream;
 	private OutputStream _outputStream;
 	private HttpProtocolConfig _cfg;
+	private HttpResponseEncoder _encoder;
+	private int _readTimeout = -1;
+	//True while pipelined responses sit in the output buffer
+	private boolean _unflushed;
+	//Pooled buffers of the connection
+	private BufferPool.Lease _readLease;
+	private HttpRequestDecoder _decoder;
 
 	protected HttpSession _session;
 	protected ConfigManager _configManager;
@@ -67,54 +85,67 @@ public abstract class HttpProtocol implements IProtocol {
 		Logger.debug(TAG,"Exec started");
 		assert (transferable != null && transferable.length > 1) : "No transferables found";
 		_configManager = (ConfigManager)transferable[0];
-		Socket clientSocket = (Socket)transferable[1];
+		IConnection connection = (transferable[1] instanceof Socket ? 
+				new SocketConnection((Socket)transferable[1]) : (IConnection)transferable[1]);
 		_cfg = (HttpProtocolConfig) _configManager.getConfig(HttpProtocolConfig.class);
-		setClient(clientSocket);
-
-		//Used to hold data from input stream
-		byte[] buffer = new byte[_cfg.getConfigBufferLength()];
-		//Used to hold leftover bytes from buffer after it has been parsed
-		DynamicByteArray holdingBuffer = new DynamicByteArray();
+		setConnection(connection);
+
+		//Used to hold data from input stream, returned to the pool by dispose
+		_readLease = BufferPool.getShared().lease(_cfg.getConfigBufferLength());
+		byte[] buffer = _readLease.array();
+		//Holds leftover bytes from buffer after they have been decoded
+		HttpRequestDecoder decoder = new HttpRequestDecoder(BufferPool.getShared());
+		_decoder = decoder;
+		decoder.setSpoolThreshold(_cfg.getConfigBodySpoolThreshold());
+		decoder.setBodyListener(getBodyListener());
+		decoder.setMaxBodyLength(_cfg.getConfigMaxBodyLength());
+		decoder.setMaxFormLength(_cfg.getConfigMaxFormLength());
+		decoder.setHeaderLimits(_cfg.getConfigMaxHeaderCount(), _cfg.getConfigMaxHeaderLineLength());
+		decoder.setListener(new HeadersListener(decoder));
+		_encoder = new HttpResponseEncoder();
 		//Default Timeout
-		getClient().setSoTimeout(_cfg.getConfigDefaultConnectionTimeoutSeconds());
+		setReadTimeout(_cfg.getConfigDefaultConnectionTimeoutSeconds());
+		int requests = 0;
+		boolean keepAlive;
 		do {
 
-			HttpRequest request = new HttpRequest();
+			HttpRequest request = null;
 			HttpResponse response = null;
 
 			//create HttpRequest
 			try {
-				receive(request, holdingBuffer, buffer);
+				request = receive(decoder, buffer, requests > 0);
 			} catch (Exception e) {
 				Logger.error(TAG, e);
-				if (request != null) {
-					request.dispose();
-					request = null;
-				}
+				decoder.dispose();
 				//close connection
 				throw e;
 			} 
 
+			//Client closed or left an idle persistent connection
+			if (request == null) {
+				Logger.debug(TAG, "Persistent connection closed after " + requests + " requests");
+				return;
+			}
+			requests++;
+			//Answers to HEAD carry the headers of a GET without its body
+			_encoder.setBodyOmitted(Method.HEAD.equals(request.getMethod()));
+
+			//Handlers read compressed request bodies as plain content
+			String status = decompress(request, _cfg);
+			if (status != null) {
+				sendAndClose(new HttpResponse(status, null, status));
+				request.dispose();
+				return;
+			}
+
 			//Session write control variable
 			boolean isNewSession = true;
 			//establish HttpSession
 			try {
-				String previousKey = null;
-				String sessionKey = null;
 				if (_cfg.isConfigSessionEnabled()) {
-
-					//Only get first Index
-					if (request.getHeaders().hasKeyValueStartsWith(
-							"Cookie", _cfg.getConfigSessionCookieIdentifier())) {
-
-						sessionKey = request.getHeaders().getFirstKeyValueStartsWith(
-								"Cookie", _cfg.getConfigSessionCookieIdentifier());
-
-						sessionKey = sessionKey.replace(_cfg.getConfigSessionCookieIdentifier() + "=", "");
-						previousKey = sessionKey;
-					}
-
-					_session = HttpSessionManager.getInstance(_configManager).getSession(sessionKey);
+					String previousKey = getSessionKey(request, _cfg);
+					_session = HttpSessionManager.getInstance(_configManager).getSession(previousKey);
 
 					//Check if it is a new _session
 					if (previousKey != null && previousKey.equals(_session.getSessionKey()))
@@ -130,18 +161,15 @@ public abstract class HttpProtocol implements IProtocol {
 			try {
 				response = executeRequest(_session, request);
 
-				//Set the cookie if it is a new _session
-				if (_cfg.isConfigSessionEnabled() && isNewSession) {	
-					String sessionKey = null;
+				boolean chunkingAllowed = ProtocolVersion.HTTP_1_1.equals(request.getProtocolVersion());
+				completeResponse(request, response, _cfg, (isNewSession ? _session : null));
 
-					sessionKey = _cfg.getConfigSessionCookieIdentifier() + "=" + _session.getSessionKey() + ";path=/";
-
-					if (sessionKey != null) {
-						response.getHeaders().appendValueToKey("Set-Cookie", sessionKey);
-					}
-				}
-
-				send(response);
+				//Bodies of unknown length are chunked for HTTP/1.1 clients
+				_encoder.setChunkingAllowed(chunkingAllowed);
+				keepAlive = isKeepAlive(request, response, requests, _cfg, _encoder);
+				setConnectionHeaders(request, response, keepAlive, requests, _cfg);
+				//Flushing is left to the next blocking read so responses to buffered requests go out in one write
+				send(response, !keepAlive || !_cfg.isConfigPipeliningEnabled());
 
 			} catch (Exception e) {
 				Logger.error(TAG, e);
@@ -149,7 +177,7 @@ public abstract class HttpProtocol implements IProtocol {
 						new HttpResponse(HttpResponse.Status.INTERNAL_ERROR, 
 								null, HttpResponse.Status.INTERNAL_ERROR);
 
-				send(errorResponse);	
+				sendAndClose(errorResponse);	
 				//close connection
 				throw e;
 			} finally {
@@ -160,11 +188,47 @@ public abstract class HttpProtocol implements IProtocol {
 				}
 				response = null;
 			}
-		} while (!getClient().isClosed());
+		} while (keepAlive && !getConnection().isClosed());
+	}
+
+	/**
+	 * Override this method to refuse requests from their headers alone, before any body byte is read.
+	 * Clients which sent <code>Expect: 100-continue</code> are only asked for the body once the request is accepted.
+	 * @param httpRequest A request whose headers have been decoded. It has no body yet.
+	 * @return a response refusing the request, sent before the connection is closed, or null to accept it.
+	 */
+	protected HttpResponse rejectRequest(HttpRequest httpRequest) {
+		return null;
+	}
+	/**
+	 * Override this method to process each body or multipart part as soon as it has been received,
+	 * while the parts after it are still arriving. The request reaches <code>executeRequest</code> once all have.
+	 * @param httpRequest The request being received.
+	 * @param index Index of the part in the bodies of the request. Its metadata holds the part headers.
+	 * @throws Exception Refuses the request with 400 and closes the connection.
+	 */
+	protected void bodyPartReceived(HttpRequest httpRequest, int index) throws Exception {
+	}
+	/**
+	 * Override this method to receive the data of chunked request bodies as it arrives
+	 * instead of finding it stored as a body of the request in <code>executeRequest</code>.
+	 * @return a listener for chunked body data or null to store the data.
+	 */
+	protected HttpRequestDecoder.BodyListener getBodyListener() {
+		return null;
 	}
 
 	@Override
 	public void dispose() {
+		//Buffers go back to the pool even when exec failed
+		if (_decoder != null) {
+			_decoder.dispose();
+			_decoder = null;
+		}
+		if (_readLease != null) {
+			_readLease.release();
+			_readLease = null;
+		}
 		try {
 			Logger.debug(TAG, "Closing connection.");
 			if (_client != null)
@@ -174,20 +238,29 @@ public abstract class HttpProtocol implements IProtocol {
 		}
 	}
 	/**
-	 * @return the client socket.
+	 * @return the client socket or null if the connection is not carried by a TCP socket.
 	 */
 	public final Socket getClient() {
+		return (_client instanceof SocketConnection ? ((SocketConnection)_client).getSocket() : null);
+	}
+	/**
+	 * @return the client connection.
+	 */
+	public final IConnection getConnection() {
 		return _client;
 	}
 	/**
-	 * Set the client socket and get the InputStream and OutputStream.
-	 * @param clientSocket
+	 * Set the client connection and get the InputStream and OutputStream.
+	 * @param connection
 	 */
-	private final void setClient(Socket clientSocket) {
-		this._client = clientSocket;
+	private final void setConnection(IConnection connection) {
+		this._client = connection;
 		try {
-			this._inputStream = ((Socket)clientSocket).getInputStream();
-			this._outputStream = ((Socket)clientSocket).getOutputStream();
+			this._inputStream = connection.getInputStream();
+			this._outputStream = connection.getOutputStream();
+			//Responses to pipelined requests are coalesced and written together
+			if (_cfg.isConfigPipeliningEnabled())
+				this._outputStream = new BufferedOutputStream(_outputStream, _cfg.getConfigPipelineBufferLength());
 		} catch (Exception e) {
 			Logger.error(TAG, e);
 		}
@@ -199,475 +272,246 @@ public abstract class HttpProtocol implements IProtocol {
 		return _inputStream;
 	}
 	/**
-	 * @return the output stream for the client
+	 * @return the output stream for the client. It is buffered when pipelining is enabled.
 	 */
 	public final OutputStream getOutputStream() {
 		return _outputStream;
 	}
 
-	private final void receive(HttpRequest request, DynamicByteArray holdingBuffer, byte[] buffer) throws Exception {
+	/**
+	 * Read from the client until the decoder has a complete request.
+	 * @param idle True when waiting for the next request on a persistent connection.
+	 * @return the decoded request or null if the client closed an idle connection or left it idle too long.
+	 */
+	private final HttpRequest receive(HttpRequestDecoder decoder, byte[] buffer, boolean idle) throws Exception {
 
-		assert holdingBuffer != null : "holdingBuffer is null";
+		assert decoder != null : "decoder is null";
 		assert buffer != null : "buffer is null";
 
 		Logger.debug(TAG,"Receive started");
 
-		//Get headers
-		parseHeaders(request, holdingBuffer, buffer);
-
-		//Get Body
-		if (request.getMethod().equals(Method.POST) || request.getMethod().equals(Method.PUT)) {
-			//Parse a multipart form
-			if (request.getHeaders().hasKeyValue("Content-Type", MimeTypes.MULTIPART_FORM)) 
-				parseMultiPartBody(
-						request, request.getHeaders(), holdingBuffer, buffer);
-			else 
-				parseBody(request, holdingBuffer, buffer);
-		}
-
-	}
+		//A pipelined request may already be buffered
+		idle = idle && !decoder.hasPartialRequest();
+		if (idle)
+			setReadTimeout(_cfg.getConfigKeepAliveTimeoutSeconds());
 
-	private final void send(HttpResponse response) throws Exception {
-		PrintWriter pw = null;
+		//Requests refused before they are decoded are answered with a body
+		_encoder.setBodyOmitted(false);
+		HttpRequest request = null;
 		try {
-			OutputStream output = getOutputStream();
-			//Check for needed headers
-			if (response.getHeaders() == null)
-				response.setHeaders(new HttpMultiValueCollection());
-
-			if (!response.getHeaders().hasKey("Date")) {
-				SimpleDateFormat gmtFrmt = 
-						new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-				gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-				response.getHeaders().overwriteKeyValue("Date", gmtFrmt.format(new Date()));
-			}
-
-			if (!response.getHeaders().hasKey("Content-Length") && 
-					response.getBodyLength(response.getBody()) > 0L) {
-				response.getHeaders().overwriteKeyValue(
-						"Content-Length", Long.toString(response.getBodyLength(response.getBody())));
-			}
-
-			pw = new PrintWriter((output));
-			Logger.debug(TAG, response.getHttpResponseLine());
-			pw.print(response.getHttpResponseLine());
-			Logger.debug(TAG, response.getHeadersResponseFormat());
-			pw.print(response.getHeadersResponseFormat());
-			pw.print("\r\n");
-			pw.flush();
-
-			if (response.getBody() != null) {
-				int totalRead = 0;
-				byte[] buffer = new byte[_cfg.getConfigBufferLength()];
-
-				while (totalRead < response.getBodyLength(response.getBody())) {
-					int read = 0;
-					read = response.getBody().read(buffer, 0, _cfg.getConfigBufferLength());
-					totalRead += read;
-					output.write(buffer,0, read);
+			while ((request = decoder.decode()) == null) {
+				//Every buffered request has been answered, send the responses before waiting for more
+				if (_unflushed) {
+					getOutputStream().flush();
+					_unflushed = false;
 				}
-				output.flush();
-			}	
-		} catch (Exception e) {
-			//Do nothing - just cleanup below
-		} finally {
-			pw.close();
-			response.dispose();
-			response = null;
-		}
-	}
 
-	private final void parseHeaders(HttpRequest request, 
-			DynamicByteArray holdingBuffer, byte[] buffer) throws Exception {
-
-		HttpResponse errorResponse = null;
-		//Bytes read into buffer
-		int read = 0;
-		int splitIndex = -1;
-		try {
-			do {
-				read = getInputStream().read(
+				int read = getInputStream().read(
 						buffer, 0, _cfg.getConfigBufferLength()); //read exceptions caught by exec
 
-				//append any previously unparsed data to newly received data
-				holdingBuffer.concatenate(buffer, read);
-
-				//Check to see if we have a double EOL in our buffer
-				splitIndex = holdingBuffer.find(DOUBLE_EOL);
-			}  while (read != -1 && splitIndex == -1);
-
-			Logger.debug(TAG, "Parsing headers");
-
-			BufferedReader bReader = 
-					new BufferedReader(
-							new InputStreamReader(
-									new ByteArrayInputStream(holdingBuffer.getArray(), 0, splitIndex)));
-
-			//Parse Request Line
-			{
-				String line = "";				
-				//Ignore empty lines preceding request line
-				do {line = bReader.readLine();} while (line.equals(""));
-
-				Logger.debug(TAG, line);
-				//Get request line
-				String method = Method.validate(line.substring(0, line.indexOf(" ")));
-				request.setMethod(method);
-				line = line.substring(line.indexOf(" ") + 1);
-
-				URI uri = URI.create(line.substring(0, line.indexOf(" ")));
-				request.setUri(uri);
-				line = line.substring(line.indexOf(" ") + 1);
-
-				String protocolVersion = ProtocolVersion.validate(line);
-				request.setProtocolVersion(protocolVersion);
-
-				Map<String, String> parameters = null;
-				//Parse any parameters if GET was requested
-				if (method.equals(Method.GET) &&
-						(line = uri.getQuery()) != null) {
-					line = parsePercentEncoding(line);
-					parameters = parseParameters(line);
+				if (read == -1) {
+					//Closing between requests is how clients end persistent connections
+					if (idle || !decoder.hasPartialRequest())
+						return null;
+					throw new EOFException("Connection closed by client");
 				}
-				request.setParameters(parameters);
-			}//End Parse Request Line
-
-			//Parse Headers
-			{
-				HttpMultiValueCollection headers = parseKeyValue(bReader);
-
-				request.setHeaders(headers);
-				//extract remaining data which might include body or next request
-				holdingBuffer.shift(splitIndex);
-
-				Logger.debug(TAG, headers.toString());
 
-			}//End Parse Headers
+				//The next request has started, give it the full timeout
+				if (idle) {
+					idle = false;
+					setReadTimeout(_cfg.getConfigDefaultConnectionTimeoutSeconds());
+				}
 
-			//finished parsing headers
-			bReader.close();
-		} catch (SocketTimeoutException ex) {
-			if (read != -1 && errorResponse == null) {
-				errorResponse = 
-						new HttpResponse(
-								HttpResponse.Status.REQUEST_TIMEOUT, null, HttpResponse.Status.REQUEST_TIMEOUT);
-				send(errorResponse);
+				//append any previously unparsed data to newly received data
+				decoder.feed(buffer, read);
 			}
+		} catch (SocketTimeoutException ex) {
+			//Idle persistent connections are closed without a response
+			if (idle)
+				return null;
+			sendAndClose(new HttpResponse(
+					HttpResponse.Status.REQUEST_TIMEOUT, null, HttpResponse.Status.REQUEST_TIMEOUT));
 			throw ex;
-		} catch (Exception ex){
+		} catch (DecoderException ex) {
 			//Catch BAD REQUESTS and send response
-			//If the client connects and immediately disconnects read == -1
-			if (read != -1 && errorResponse == null) {
-				errorResponse = 
-						new HttpResponse(
-								HttpResponse.Status.BAD_REQUEST, 
-								null, HttpResponse.Status.BAD_REQUEST + "-Invalid Headers");
-				send(errorResponse);
-			}
+			sendAndClose(ex.getResponse() != null ? ex.getResponse() : new HttpResponse(
+					ex.getStatus(), null, ex.getStatus() + "-" + ex.getMessage()));
 			throw ex;
 		}
-	}
-
-	private final void parseBody(HttpRequest request, 
-			DynamicByteArray holdingBuffer, byte[] buffer) throws Exception {
 
-		//Bytes read into buffer
-		int read = 0;
+		return request;
+	}
+	/**
+	 * Replace a compressed request body by its plain content when request decompression is enabled.
+	 * @return the status refusing the request or null if it can be handled.
+	 */
+	static String decompress(HttpRequest request, HttpProtocolConfig cfg) {
+		if (!cfg.isConfigRequestDecompressionEnabled() || !request.getHeaders().hasKey("Content-Encoding"))
+			return null;
 		try {
-			int contentLength = 
-					Integer.parseInt(request.getHeaders().getKeyValues("Content-Length").get(0));
-
-			String parameterLine = null;
-
-			//Get complete body according to content length
-			while (read != -1 && holdingBuffer.length() < contentLength) {
-				read = getInputStream().read(
-						buffer, 0, _cfg.getConfigBufferLength()); //read exceptions caught by exec
-
-				//append any previously unparsed data to newly received data
-				holdingBuffer.concatenate(buffer, read);
-			}
-
-			Logger.debug(TAG, "Parsing body");
-
-			ByteArrayInputStream bin = new ByteArrayInputStream(holdingBuffer.getArray(), 0, contentLength);
-			byte[] body;
-			//get application/x-www-form-urlencoded
-			if (request.getHeaders().hasKeyValue("Content-Type", MimeTypes.URLENCODED)) {
-				BufferedReader bReader = new BufferedReader(new InputStreamReader(bin));
-
-				char[] params = new char[contentLength];
-				bReader.read(params, 0, contentLength);
-				parameterLine = parsePercentEncoding(new String(params));
-				request.setParameters(parseParameters(parameterLine));
-
-				body = new byte[0];
-			} else { //get raw body
-				body = new byte[contentLength];
-				bin.read(body, 0, contentLength);
-			}
-
-			//extract remaining data to return which might include body or next request
-			holdingBuffer.shift(contentLength);
-
-			request.addBody(body);
-		} catch (Exception ex){
-			//Catch BAD REQUESTS and send response
-			//If the client connects and immediately disconnects read == -1
-			if (read != -1) {
-				HttpResponse errorResponse = 
-						new HttpResponse(
-								HttpResponse.Status.BAD_REQUEST, 
-								null, HttpResponse.Status.BAD_REQUEST + "-Invalid Body");
-				send(errorResponse);
-			}
-			throw ex;
+			if (!HttpCompression.decompress(request, cfg.getConfigRequestDecompressionMaxLength()))
+				return HttpResponse.Status.UNSUPPORTED_MEDIA_TYPE;
+		} catch (IOException e) {
+			Logger.error(TAG, e);
+			return HttpResponse.Status.BAD_REQUEST;
 		}
-
+		return null;
 	}
-
-	private final void parseMultiPartBody(HttpRequest request, HttpMultiValueCollection metadata,
-			DynamicByteArray holdingBuffer, byte[] buffer) throws Exception {
-
-		int read = 0;
-
-		try {
-			//Get boundary
-			String startBoundary = metadata.getKeyValueStartsWith("Content-Type", "boundary=").get(0);
-			startBoundary = startBoundary.replace("boundary=", "").replace("\"", "").trim();
-			startBoundary = "--" + startBoundary;
-			String endBoundary = startBoundary + "--";
-			byte[] startBoundaryBytes = startBoundary.getBytes("UTF-8");
-			byte[] endBoundaryBytes = endBoundary.getBytes("UTF-8");
-
-			int splitIndex = -1;
-
-			Logger.debug(TAG, "Parsing multipart");
-
-			do {
-				//Find 2 EOL in holdingBuffer
-				splitIndex = holdingBuffer.find(DOUBLE_EOL);
-
-				while (read != -1 && splitIndex == -1) {
-
-					read = getInputStream().read(buffer, 0, _cfg.getConfigBufferLength());
-
-					//append any previously unparsed data to newly received data
-					holdingBuffer.concatenate(buffer, read);
-
-					splitIndex = holdingBuffer.find(DOUBLE_EOL);
-				}
-
-				Logger.debug(TAG, "Found boundary");
-
-				BufferedReader bReader = 
-						new BufferedReader(
-								new InputStreamReader(
-										new ByteArrayInputStream(holdingBuffer.getArray(), 0, splitIndex)));
-
-				Logger.debug(TAG, "Parsing body metadata");
-				//Dispose of boundary
-				bReader.readLine();
-				//Parse body metadata
-				HttpMultiValueCollection bodyMetadata = parseKeyValue(bReader);
-
-				//finished parsing headers
-				bReader.close();
-				//extract remaining data
-				holdingBuffer.shift(splitIndex);
-
-				//Inner boundary found
-				if (bodyMetadata.hasKeyValue("Content-Type", MimeTypes.MULTIPART_MIXED))
-					parseMultiPartBody(request, bodyMetadata, holdingBuffer, buffer);
-
-				if (bodyMetadata.hasKeyValueStartsWith("Content-Disposition", "filename=")) {
-					Logger.debug(TAG, "Found file body");
-
-					String tmpFilename = bodyMetadata.getFirstKeyValueStartsWith(
-							"Content-Disposition", "filename=");
-
-					tmpFilename = tmpFilename.replace("filename=", "").replace("\"", "").trim();
-
-					File tmpFile = File.createTempFile("$SocketD-" + tmpFilename, ".tmpsd");
-					Logger.debug(TAG, "File absolute path: " + tmpFile.getAbsolutePath());
-
-					FileOutputStream fos = new FileOutputStream(tmpFile);
-
-					splitIndex = holdingBuffer.find(startBoundaryBytes);
-
-					while (read != -1 && splitIndex == -1) {
-
-						read = getInputStream().read(buffer, 0, _cfg.getConfigBufferLength());
-
-						//append any previously unparsed data to newly received data
-						holdingBuffer.concatenate(buffer, read);
-
-						splitIndex = holdingBuffer.find(startBoundaryBytes);
-
-					}
-
-					splitIndex = splitIndex - startBoundaryBytes.length;
-
-					fos.write(holdingBuffer.getArray(), 0, splitIndex - 2); //Remove newline
-					fos.flush();
-					fos.close();
-					//extract remaining data
-					holdingBuffer.shift(splitIndex);
-
-					request.addBody(tmpFile, bodyMetadata, true);
-				} else {
-					Logger.debug(TAG, "Found body");
-					splitIndex = holdingBuffer.find(startBoundaryBytes);
-
-					while (read != -1 && splitIndex == -1) {
-
-						read = getInputStream().read(buffer, 0, _cfg.getConfigBufferLength());
-
-						//append any previously unparsed data to newly received data
-						holdingBuffer.concatenate(buffer, read);
-
-						splitIndex = holdingBuffer.find(startBoundaryBytes);
-
-					}
-
-					splitIndex = splitIndex - startBoundaryBytes.length;
-
-					byte[] body = 
-							ByteArrayUtils.extractBytesFromByteArray(
-									holdingBuffer.getArray(), 
-									0, 
-									splitIndex - 2); //Remove newline after body
-
-					//extract remaining data
-					holdingBuffer.shift(splitIndex);
-
-					request.addBody(body, bodyMetadata);
-				}
-
-				Logger.debug(TAG, "Finished parsing body");
-
-				//Need to find next boundary or end boundary to know what to do
-				do {
-
-					//If we have the end boundary in buffer then we know if we can do the loop again
-					//data in buffer needs to be bigger than end boundary to do loop again
-					//controlled by while below
-					splitIndex = holdingBuffer.find(endBoundaryBytes);
-
-					//Found end boundary so break
-					if (splitIndex != -1)
-						break;
-					//If no end boundary found check for a start boundary
-					splitIndex = holdingBuffer.find(startBoundaryBytes);
-
-					//If a start boundary is found read at least two more bytes to make sure
-					//it is not a partial end boundary that looks like a start boundary
-					if (splitIndex != -1) {
-						int readCount = 0;
-						//Read at least two more bytes
-						while (read != -1 && readCount < 2) {
-							read = getInputStream().read(buffer, 0, _cfg.getConfigBufferLength());
-							//append any previously unparsed data to newly received data
-							holdingBuffer.concatenate(buffer, read);
-							readCount += read;
-						}
-						//Check again to see if it is indeed an end boundary
-						splitIndex = holdingBuffer.find(endBoundaryBytes);
-						break;
-					}
-
-					//Keep reading until we find either an end or start boundary
-					read = getInputStream().read(buffer, 0, _cfg.getConfigBufferLength());
-					//append any previously unparsed data to newly received data
-					holdingBuffer.concatenate(buffer, read);
-
-				} while (true && read != -1);
-
-			} while (splitIndex == -1 || splitIndex != endBoundaryBytes.length);
-
-			Logger.debug(TAG, "Found boundary end");
-
-			//extract remaining data
-			holdingBuffer.shift(splitIndex);
-
-		} catch (Exception ex) {
-			//Catch BAD REQUESTS and send response
-			//If the client connects and immediately disconnects read == -1
-			if (read != -1) {
-				HttpResponse errorResponse = 
-						new HttpResponse(
-								HttpResponse.Status.BAD_REQUEST, 
-								null, HttpResponse.Status.BAD_REQUEST + "-Invalid Body");
-
-				send(errorResponse);
-			}
-			throw ex;
+	/**
+	 * @return the session key sent in the first session cookie of a request or null if there is none.
+	 */
+	static String getSessionKey(HttpRequest request, HttpProtocolConfig cfg) {
+		ArrayList<String> cookies = request.getHeaders().getKeyElements("Cookie", ';');
+		String cookiePrefix = cfg.getConfigSessionCookieIdentifier() + "=";
+		for (int i = 0; cookies != null && i < cookies.size(); i++) {
+			if (cookies.get(i).startsWith(cookiePrefix))
+				return cookies.get(i).substring(cookiePrefix.length());
+		}
+		return null;
+	}
+	/**
+	 * Apply byte ranges and compression to the response of a handler and set the cookie of a new session.
+	 * @param newSession Session created for the request or null.
+	 */
+	static void completeResponse(HttpRequest request, HttpResponse response, HttpProtocolConfig cfg, HttpSession newSession) throws Exception {
+		//Resumed downloads and seeking only need part of a file body
+		if (cfg.isConfigRangesEnabled())
+			HttpByteRanges.apply(request, response);
+		if (cfg.isConfigCompressionEnabled())
+			HttpCompression.apply(request, response, cfg.getConfigCompressionLevel(),
+					cfg.getConfigCompressionMinLength(), ProtocolVersion.HTTP_1_1.equals(request.getProtocolVersion()));
+
+		if (cfg.isConfigSessionEnabled() && newSession != null)
+			response.getHeaders().appendValueToKey("Set-Cookie",
+					cfg.getConfigSessionCookieIdentifier() + "=" + newSession.getSessionKey() + ";path=/");
+	}
+	/**
+	 * Decide if the connection stays open after responding to a request.
+	 * HTTP/1.1 connections persist unless either side asks to close, HTTP/1.0 connections only if the client asks for keep-alive.
+	 */
+	static boolean isKeepAlive(HttpRequest request, HttpResponse response, int requests,
+			HttpProtocolConfig cfg, HttpResponseEncoder encoder) {
+		if (!cfg.isConfigKeepAliveEnabled() || requests >= cfg.getConfigKeepAliveMaxRequests())
+			return false;
+		if (response.getHeaders() != null && response.getHeaders().hasKeyValue("Connection", "close"))
+			return false;
+		if (encoder.isCloseDelimited(response))
+			return false;
+		if (request.getHeaders().hasKeyElement("Connection", "close", ','))
+			return false;
+		if (ProtocolVersion.HTTP_1_1.equals(request.getProtocolVersion()))
+			return true;
+		return request.getHeaders().hasKeyElement("Connection", "keep-alive", ',');
+	}
+	/**
+	 * Set the Connection and Keep-Alive headers advertising the outcome of <code>isKeepAlive</code>.
+	 */
+	static void setConnectionHeaders(HttpRequest request, HttpResponse response, boolean keepAlive, int requests,
+			HttpProtocolConfig cfg) {
+		if (response.getHeaders() == null)
+			response.setHeaders(new HttpMultiValueCollection());
+
+		if (!keepAlive) {
+			response.getHeaders().overwriteKeyValue("Connection", "close");
+		} else {
+			//HTTP/1.0 clients need the keep-alive token echoed to keep the connection open
+			if (!ProtocolVersion.HTTP_1_1.equals(request.getProtocolVersion()))
+				response.getHeaders().overwriteKeyValue("Connection", "keep-alive");
+			response.getHeaders().overwriteKeyValue("Keep-Alive", 
+					"timeout=" + (cfg.getConfigKeepAliveTimeoutSeconds() / 1000) + 
+					", max=" + (cfg.getConfigKeepAliveMaxRequests() - requests));
 		}
 	}
 
-	private final Map<String, String> parseParameters(String parameterLine) {
-		assert parameterLine != null;
-		Map<String, String> parameters = new HashMap<String, String>();
-		StringTokenizer parms = new StringTokenizer(parameterLine, "&");
-		//Parse pairs
-		while (parms.hasMoreTokens()) {
-			StringTokenizer pair = new StringTokenizer(parms.nextToken(), "=");
-			String key = pair.nextToken();
-			String value = "";
-			//Handle 'key=' case with no value
-			if (pair.hasMoreTokens())
-				value = pair.nextToken();
-			
-			parameters.put(key, value);		
-		}
-
-		return parameters;
+	private final void setReadTimeout(int timeout) throws Exception {
+		if (timeout != _readTimeout) {
+			getConnection().setReadTimeout(timeout);
+			_readTimeout = timeout;
+		}
+	}
+	/**
+	 * Send a response which ends the connection.
+	 */
+	private final void sendAndClose(HttpResponse response) throws Exception {
+		if (response.getHeaders() == null)
+			response.setHeaders(new HttpMultiValueCollection());
+		response.getHeaders().overwriteKeyValue("Connection", "close");
+		send(response, true);
 	}
+	/**
+	 * Write a response. The connection is left open, the caller decides whether to reuse it.
+	 * @param flush False to leave the response buffered behind further pipelined responses.
+	 */
+	private final void send(HttpResponse response, boolean flush) throws Exception {
+		OutputStream output = getOutputStream();
+		try {
+			ByteBuffer head = _encoder.encodeHead(response);
+			output.write(head.array(), head.arrayOffset() + head.position(), head.remaining());
 
-	private final String parsePercentEncoding(String uriString) {
-		//Rebuild string and decode percent encoding
-		StringBuilder s = new StringBuilder();
-		for (int i = 0; i < uriString.length(); i++) {
-			char c = uriString.charAt(i);
-			switch (c) {
-			case '+':
-				s.append(' ');
-				break;
-			case '%':
-				s.append((char) Integer.parseInt(uriString.substring(i + 1, i + 3), 16));
-				i += 2;
-				break;
-			default:
-				s.append(c);
-				break;		
+			//Let the kernel send file bodies, the copy loop below sends anything left
+			FileChannel file = _encoder.getFileChannel();
+			if (file != null && _cfg.isConfigZeroCopyEnabled() && getConnection() instanceof IFileTransferConnection &&
+					((IFileTransferConnection)getConnection()).canTransferFile()) {
+				output.flush();
+				long count = response.getBodyLength(response.getBody());
+				_encoder.transferred(((IFileTransferConnection)getConnection()).transferFile(file, file.position(), count));
 			}
-		}
 
-		return s.toString();
+			BufferPool.Lease lease = BufferPool.getShared().lease(_cfg.getConfigBufferLength());
+			try {
+				byte[] buffer = lease.array();
+				ByteBuffer body = ByteBuffer.wrap(buffer, 0, _cfg.getConfigBufferLength());
+				while (_encoder.encodeBody(body) != -1) {
+					output.write(buffer, 0, body.position());
+					body.clear();
+				}
+			} finally {
+				lease.release();
+			}
+			if (flush)
+				output.flush();
+			_unflushed = !flush;
+		} catch (Exception e) {
+			//A partly written response leaves the connection unusable
+			Logger.error(TAG, e);
+			getConnection().close();
+		} finally {
+			response.dispose();
+			response = null;
+		}
 	}
 
-	private final HttpMultiValueCollection parseKeyValue(BufferedReader reader) throws Exception {
+	/**
+	 * Lets <code>rejectRequest</code> refuse a request once its headers are decoded
+	 * and answers <code>Expect: 100-continue</code> when it is accepted.
+	 */
+	private class HeadersListener implements HttpRequestDecoder.Listener {
 
-		String line = null;
+		private final HttpRequestDecoder _decoder;
 
-		HttpMultiValueCollection pair = new HttpMultiValueCollection();
-		while ((line = reader.readLine()) != null) {
-			StringTokenizer eol = new StringTokenizer(line,"\r\n");
-			//Parse lines
-			while (eol.hasMoreTokens()) {
-				StringTokenizer colon = new StringTokenizer(eol.nextToken(), ":");
-				String key = colon.nextToken().trim();
-				StringTokenizer sep = new StringTokenizer(colon.nextToken(), ",;");
+		private HeadersListener(HttpRequestDecoder decoder) {
+			_decoder = decoder;
+		}
 
-				while (sep.hasMoreTokens()) {
-					String value = sep.nextToken().trim();
-					pair.appendValueToKey(key, value);
-				};			
+		@Override
+		public void onHeaders(HttpRequest request) throws Exception {
+			HttpResponse rejection = rejectRequest(request);
+			if (rejection != null)
+				throw new DecoderException(rejection, "Request rejected");
+
+			//The client waits for this before sending the body
+			if (_decoder.isDecodingBody() && ProtocolVersion.HTTP_1_1.equals(request.getProtocolVersion()) &&
+					request.getHeaders().hasKeyElement("Expect", "100-continue", ',')) {
+				getOutputStream().write(CONTINUE);
+				getOutputStream().flush();
+				_unflushed = false;
 			}
 		}
 
-		return pair;
-
+		@Override
+		public void onBodyPart(HttpRequest request, int index) throws Exception {
+			bodyPartReceived(request, index);
+		}
 	}
 
 	public static class HttpProtocolConfig extends Config {
@@ -680,6 +524,23 @@ public abstract class HttpProtocol implements IProtocol {
 		private volatile int _configDefaultConnectionTimeoutSeconds;
 		private volatile boolean _configSessionEnabled;
 		private volatile String _configSessionCookieIdentifier;
+		private volatile boolean _configKeepAliveEnabled;
+		private volatile int _configKeepAliveMaxRequests;
+		private volatile int _configKeepAliveTimeoutSeconds;
+		private volatile boolean _configPipeliningEnabled;
+		private volatile int _configPipelineBufferLength;
+		private volatile int _configBodySpoolThreshold;
+		private volatile boolean _configZeroCopyEnabled;
+		private volatile boolean _configRangesEnabled;
+		private volatile boolean _configCompressionEnabled;
+		private volatile int _configCompressionLevel;
+		private volatile int _configCompressionMinLength;
+		private volatile boolean _configRequestDecompressionEnabled;
+		private volatile int _configRequestDecompressionMaxLength;
+		private volatile long _configMaxBodyLength;
+		private volatile long _configMaxFormLength;
+		private volatile int _configMaxHeaderCount;
+		private volatile int _configMaxHeaderLineLength;
 
 		//defaults
 		{
@@ -687,6 +548,23 @@ public abstract class HttpProtocol implements IProtocol {
 			setConfigDefaultConnectionTimeoutSeconds(20);
 			setConfigSessionEnabled(true);
 			setConfigSessionCookieIdentifier("SocketD");
+			setConfigKeepAliveEnabled(true);
+			setConfigKeepAliveMaxRequests(100);
+			setConfigKeepAliveTimeoutSeconds(5);
+			setConfigPipeliningEnabled(false);
+			setConfigPipelineBufferLength(64 * 1024);
+			setConfigBodySpoolThreshold(64 * 1024);
+			setConfigZeroCopyEnabled(true);
+			setConfigRangesEnabled(true);
+			setConfigCompressionEnabled(true);
+			setConfigCompressionLevel(6);
+			setConfigCompressionMinLength(1024);
+			setConfigRequestDecompressionEnabled(true);
+			setConfigRequestDecompressionMaxLength(16 * 1024 * 1024);
+			setConfigMaxBodyLength(100 * 1024 * 1024);
+			setConfigMaxFormLength(1024 * 1024);
+			setConfigMaxHeaderCount(100);
+			setConfigMaxHeaderLineLength(8 * 1024);
 		}
 
 		public int getConfigBufferLength() {
@@ -722,6 +600,176 @@ public abstract class HttpProtocol implements IProtocol {
 				String configSessionCookieIdentifier) {
 			this._configSessionCookieIdentifier = configSessionCookieIdentifier;
 		}
+
+		public boolean isConfigKeepAliveEnabled() {
+			return _configKeepAliveEnabled;
+		}
+		/**
+		 * @param configKeepAliveEnabled Serve several requests per connection as requested by the client.
+		 */
+		public void setConfigKeepAliveEnabled(boolean configKeepAliveEnabled) {
+			this._configKeepAliveEnabled = configKeepAliveEnabled;
+		}
+
+		public int getConfigKeepAliveMaxRequests() {
+			return _configKeepAliveMaxRequests;
+		}
+		/**
+		 * @param configKeepAliveMaxRequests Requests served on a connection before it is closed.
+		 */
+		public void setConfigKeepAliveMaxRequests(int configKeepAliveMaxRequests) {
+			this._configKeepAliveMaxRequests = configKeepAliveMaxRequests;
+		}
+
+		public int getConfigKeepAliveTimeoutSeconds() {
+			return _configKeepAliveTimeoutSeconds;
+		}
+		/**
+		 * @param configKeepAliveTimeoutSeconds Time a connection may stay idle waiting for the next request.
+		 */
+		public void setConfigKeepAliveTimeoutSeconds(int configKeepAliveTimeoutSeconds) {
+			this._configKeepAliveTimeoutSeconds = configKeepAliveTimeoutSeconds * 1000;
+		}
+
+		public boolean isConfigPipeliningEnabled() {
+			return _configPipeliningEnabled;
+		}
+		/**
+		 * @param configPipeliningEnabled Answer every request already buffered before flushing the responses together.
+		 */
+		public void setConfigPipeliningEnabled(boolean configPipeliningEnabled) {
+			this._configPipeliningEnabled = configPipeliningEnabled;
+		}
+
+		public int getConfigPipelineBufferLength() {
+			return _configPipelineBufferLength;
+		}
+		/**
+		 * @param configPipelineBufferLength Bytes of responses coalesced before they are written. Larger responses are written through.
+		 */
+		public void setConfigPipelineBufferLength(int configPipelineBufferLength) {
+			this._configPipelineBufferLength = configPipelineBufferLength;
+		}
+
+		public int getConfigBodySpoolThreshold() {
+			return _configBodySpoolThreshold;
+		}
+		/**
+		 * @param configBodySpoolThreshold Bytes of a chunked or Content-Length request body kept in memory before it is moved to a temp file.
+		 */
+		public void setConfigBodySpoolThreshold(int configBodySpoolThreshold) {
+			this._configBodySpoolThreshold = configBodySpoolThreshold;
+		}
+
+		public boolean isConfigZeroCopyEnabled() {
+			return _configZeroCopyEnabled;
+		}
+		/**
+		 * @param configZeroCopyEnabled Send file bodies with FileChannel.transferTo when the connection supports it.
+		 */
+		public void setConfigZeroCopyEnabled(boolean configZeroCopyEnabled) {
+			this._configZeroCopyEnabled = configZeroCopyEnabled;
+		}
+
+		public boolean isConfigRangesEnabled() {
+			return _configRangesEnabled;
+		}
+		/**
+		 * @param configRangesEnabled Answer Range requests for file bodies with 206 Partial Content.
+		 */
+		public void setConfigRangesEnabled(boolean configRangesEnabled) {
+			this._configRangesEnabled = configRangesEnabled;
+		}
+
+		public boolean isConfigCompressionEnabled() {
+			return _configCompressionEnabled;
+		}
+		/**
+		 * @param configCompressionEnabled Compress textual bodies for clients sending Accept-Encoding.
+		 */
+		public void setConfigCompressionEnabled(boolean configCompressionEnabled) {
+			this._configCompressionEnabled = configCompressionEnabled;
+		}
+
+		public int getConfigCompressionLevel() {
+			return _configCompressionLevel;
+		}
+		/**
+		 * @param configCompressionLevel Deflater level from 1 (fastest) to 9 (smallest).
+		 */
+		public void setConfigCompressionLevel(int configCompressionLevel) {
+			this._configCompressionLevel = configCompressionLevel;
+		}
+
+		public int getConfigCompressionMinLength() {
+			return _configCompressionMinLength;
+		}
+		/**
+		 * @param configCompressionMinLength Bodies known to be shorter are not worth compressing.
+		 */
+		public void setConfigCompressionMinLength(int configCompressionMinLength) {
+			this._configCompressionMinLength = configCompressionMinLength;
+		}
+
+		public boolean isConfigRequestDecompressionEnabled() {
+			return _configRequestDecompressionEnabled;
+		}
+		/**
+		 * @param configRequestDecompressionEnabled Hand request bodies sent with a Content-Encoding to handlers decompressed.
+		 */
+		public void setConfigRequestDecompressionEnabled(boolean configRequestDecompressionEnabled) {
+			this._configRequestDecompressionEnabled = configRequestDecompressionEnabled;
+		}
+
+		public int getConfigRequestDecompressionMaxLength() {
+			return _configRequestDecompressionMaxLength;
+		}
+		/**
+		 * @param configRequestDecompressionMaxLength Reading more decompressed bytes from a request body fails.
+		 */
+		public void setConfigRequestDecompressionMaxLength(int configRequestDecompressionMaxLength) {
+			this._configRequestDecompressionMaxLength = configRequestDecompressionMaxLength;
+		}
+
+		public long getConfigMaxBodyLength() {
+			return _configMaxBodyLength;
+		}
+		/**
+		 * @param configMaxBodyLength Requests with longer bodies are refused with 413 before the body is read. -1 for no limit.
+		 */
+		public void setConfigMaxBodyLength(long configMaxBodyLength) {
+			this._configMaxBodyLength = configMaxBodyLength;
+		}
+
+		public long getConfigMaxFormLength() {
+			return _configMaxFormLength;
+		}
+		/**
+		 * @param configMaxFormLength Url encoded forms with longer bodies are refused with 413, they are parsed in memory. -1 for no limit.
+		 */
+		public void setConfigMaxFormLength(long configMaxFormLength) {
+			this._configMaxFormLength = configMaxFormLength;
+		}
+
+		public int getConfigMaxHeaderCount() {
+			return _configMaxHeaderCount;
+		}
+		/**
+		 * @param configMaxHeaderCount Requests with more header fields are refused with 431.
+		 */
+		public void setConfigMaxHeaderCount(int configMaxHeaderCount) {
+			this._configMaxHeaderCount = configMaxHeaderCount;
+		}
+
+		public int getConfigMaxHeaderLineLength() {
+			return _configMaxHeaderLineLength;
+		}
+		/**
+		 * @param configMaxHeaderLineLength Requests with a longer request line or header line are refused with 414 or 431.
+		 */
+		public void setConfigMaxHeaderLineLength(int configMaxHeaderLineLength) {
+			this._configMaxHeaderLineLength = configMaxHeaderLineLength;
+		}
 	}
 }	
 
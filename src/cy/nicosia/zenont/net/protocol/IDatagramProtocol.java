@@ -0,0 +1,25 @@
+package cy.nicosia.zenont.net.protocol;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Interface for protocol handlers receiving datagrams.
+ * <p/>
+ * When used with <b>UdpSocketD</b> a single instance serves the listener. The inherited
+ * <code>exec</code> method is called once when the listener starts, with the ConfigManager and
+ * the DatagramChannel as transferables, and <code>dispose</code> once it stops.
+ * <code>receive</code> is called concurrently from several worker threads and must be thread safe.
+ */
+public interface IDatagramProtocol extends IProtocol {
+
+	/**
+	 * Called on a worker thread for every datagram received.
+	 * @param channel Channel the datagram arrived on. May be used to send replies.
+	 * @param source Address of the sender.
+	 * @param datagram Datagram payload. The buffer is pooled and is only valid for the duration of the call.
+	 * @throws Exception Logged, the datagram is dropped.
+	 */
+	public abstract void receive(DatagramChannel channel, SocketAddress source, ByteBuffer datagram) throws Exception;
+}
@@ -0,0 +1,27 @@
+package cy.nicosia.zenont.net.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Interface for protocol handlers driven by readiness events instead of blocking reads.
+ * <p/>
+ * When used with <b>NioSocketD</b> the inherited <code>exec</code> method is called once on the
+ * event loop when the connection is accepted, with the ConfigManager and the connection as transferables.
+ * It must not block. Every subsequent read is delivered through <code>onRead</code> and
+ * <code>dispose</code> is called once the connection has been closed.
+ */
+public interface INioProtocol extends IProtocol {
+
+	/**
+	 * Called on the event loop each time bytes have been read from the connection.
+	 * @param data Bytes read. The buffer is reused by the event loop and is only valid for the duration of the call.
+	 * @throws Exception Any exception closes the connection.
+	 */
+	public abstract void onRead(ByteBuffer data) throws Exception;
+	/**
+	 * Called on the event loop when the peer has shut down its side of the connection.
+	 * The connection stays open so responses still owed to the peer can be written,
+	 * the handler must close it once it has nothing more to send.
+	 */
+	public abstract void onEndOfStream();
+}
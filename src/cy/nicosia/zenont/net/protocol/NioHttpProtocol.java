@@ -0,0 +1,311 @@
+package cy.nicosia.zenont.net.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import cy.nicosia.zenont.base.BufferPool;
+import cy.nicosia.zenont.base.ConfigManager;
+import cy.nicosia.zenont.base.Logger;
+import cy.nicosia.zenont.net.NioSocketD.NioConnection;
+import cy.nicosia.zenont.net.protocol.HttpProtocol.HttpProtocolConfig;
+import cy.nicosia.zenont.net.protocol.http.HttpRequest;
+import cy.nicosia.zenont.net.protocol.http.HttpRequest.Method;
+import cy.nicosia.zenont.net.protocol.http.HttpRequest.ProtocolVersion;
+import cy.nicosia.zenont.net.protocol.http.HttpRequestDecoder;
+import cy.nicosia.zenont.net.protocol.http.HttpRequestDecoder.DecoderException;
+import cy.nicosia.zenont.net.protocol.http.HttpResponse;
+import cy.nicosia.zenont.net.protocol.http.HttpResponseEncoder;
+import cy.nicosia.zenont.net.protocol.http.HttpSessionManager;
+import cy.nicosia.zenont.net.protocol.http.HttpSessionManager.HttpSession;
+
+/**
+ * Abstract implementation of the HTTP protocol 1.1 for the event loops of <b>NioSocketD</b>.<br/>
+ * This class needs to be extended and method<p/>
+ * <code>public HttpResponse executeRequest(HttpSession session, HttpRequest httpRequest)</code><p/>
+ * needs to be implemented in the subclass, as with <b>HttpProtocol</b>.
+ * <p/>
+ * Bytes read from the connection are fed to a <b>HttpRequestDecoder</b>, which resumes wherever the
+ * previous read left it, and each decoded request is answered through a <b>HttpResponseEncoder</b>.
+ * A response body is encoded one buffer at a time, each once the previous one has been written, so
+ * large or streamed bodies are not held in memory. Pipelined requests wait in the decoder until the
+ * response before them has been sent. Sessions, keep-alive, byte ranges, compression, 100-continue and
+ * the request limits follow <b>HttpProtocolConfig</b> as they do for <b>HttpProtocol</b>.
+ * <p/>
+ * Every method of the subclass runs on the event loop and must not block, a slow handler stalls every
+ * connection of its loop. Handlers which block should extend <b>HttpProtocol</b> instead, which
+ * <b>NioSocketD</b> runs on a thread of its own. Event loops have no timers so the connection timeouts
+ * of <b>HttpProtocolConfig</b> are not enforced, and file bodies are copied instead of sent with zero copy.
+ */
+public abstract class NioHttpProtocol implements INioProtocol {
+
+	private static final String TAG = "NioHttpProtocol";
+
+	private NioConnection _connection;
+	private HttpProtocolConfig _cfg;
+	private HttpRequestDecoder _decoder;
+	private HttpResponseEncoder _encoder;
+	//Holds each body buffer, only refilled once the connection has written it
+	private BufferPool.Lease _writeLease;
+	private int _requests;
+	//Request and response being sent, null between responses
+	private HttpRequest _request;
+	private HttpResponse _response;
+	private boolean _keepAlive;
+	//True while requests are processed, flush notifications then have nothing to resume
+	private boolean _processing;
+	private boolean _closing;
+	//True once the client has shut down its side, the connection closes after the requests already received
+	private boolean _endOfStream;
+
+	protected HttpSession _session;
+	protected ConfigManager _configManager;
+	/**
+	 * Override this method in your implementation to receive the request
+	 * for processing. It runs on the event loop and must not block.
+	 * @param httpRequest is a request coming from the client.
+	 * @return a response to be sent to client.
+	 */
+	public abstract HttpResponse executeRequest(HttpSession session, HttpRequest httpRequest);
+
+	@Override
+	public final void exec(Object... transferable) throws Exception {
+		Logger.debug(TAG, "Exec started");
+		assert (transferable != null && transferable.length > 1) : "No transferables found";
+		_configManager = (ConfigManager) transferable[0];
+		_connection = (NioConnection) transferable[1];
+		_cfg = (HttpProtocolConfig) _configManager.getConfig(HttpProtocolConfig.class);
+
+		_decoder = new HttpRequestDecoder(BufferPool.getShared());
+		_decoder.setSpoolThreshold(_cfg.getConfigBodySpoolThreshold());
+		_decoder.setBodyListener(getBodyListener());
+		_decoder.setMaxBodyLength(_cfg.getConfigMaxBodyLength());
+		_decoder.setMaxFormLength(_cfg.getConfigMaxFormLength());
+		_decoder.setHeaderLimits(_cfg.getConfigMaxHeaderCount(), _cfg.getConfigMaxHeaderLineLength());
+		_decoder.setListener(new HeadersListener());
+		_encoder = new HttpResponseEncoder();
+		//Returned to the pool by dispose
+		_writeLease = BufferPool.getShared().lease(_cfg.getConfigBufferLength());
+
+		_connection.setFlushListener(new Runnable() {
+			@Override
+			public void run() {
+				//The body of the current response can continue
+				process();
+			}
+		});
+	}
+
+	@Override
+	public final void onRead(ByteBuffer data) throws Exception {
+		_decoder.feed(data);
+		process();
+	}
+
+	@Override
+	public void onEndOfStream() {
+		Logger.debug(TAG, "Connection closed by client after " + _requests + " requests");
+		_endOfStream = true;
+		process();
+	}
+	/**
+	 * Override this method to refuse requests from their headers alone, before any body byte is read.
+	 * Clients which sent <code>Expect: 100-continue</code> are only asked for the body once the request is accepted.
+	 * @param httpRequest A request whose headers have been decoded. It has no body yet.
+	 * @return a response refusing the request, sent before the connection is closed, or null to accept it.
+	 */
+	protected HttpResponse rejectRequest(HttpRequest httpRequest) {
+		return null;
+	}
+	/**
+	 * Override this method to process each body or multipart part as soon as it has been received.
+	 * @param httpRequest The request being received.
+	 * @param index Index of the part in the bodies of the request. Its metadata holds the part headers.
+	 * @throws Exception Refuses the request with 400 and closes the connection.
+	 */
+	protected void bodyPartReceived(HttpRequest httpRequest, int index) throws Exception {
+	}
+	/**
+	 * Override this method to receive the data of chunked request bodies as it arrives.
+	 * @return a listener for chunked body data or null to store the data.
+	 */
+	protected HttpRequestDecoder.BodyListener getBodyListener() {
+		return null;
+	}
+
+	@Override
+	public void dispose() {
+		_closing = true;
+		if (_response != null) {
+			_response.dispose();
+			_response = null;
+		}
+		if (_request != null) {
+			_request.dispose();
+			_request = null;
+		}
+		if (_decoder != null) {
+			_decoder.dispose();
+			_decoder = null;
+		}
+		if (_writeLease != null) {
+			_writeLease.release();
+			_writeLease = null;
+		}
+	}
+	/**
+	 * @return the client connection.
+	 */
+	public final NioConnection getConnection() {
+		return _connection;
+	}
+	/**
+	 * Answer the requests received in order, for as long as the connection takes the bytes without waiting.
+	 */
+	private void process() {
+		if (_processing)
+			return;
+		_processing = true;
+		try {
+			while (!_closing) {
+				if (_response != null) {
+					if (!sendBody())
+						return;
+					endResponse();
+					continue;
+				}
+
+				HttpRequest request;
+				try {
+					request = _decoder.decode();
+				} catch (DecoderException ex) {
+					//Catch BAD REQUESTS and send response
+					Logger.error(TAG, ex);
+					send(null, (ex.getResponse() != null ? ex.getResponse() : new HttpResponse(
+							ex.getStatus(), null, ex.getStatus() + "-" + ex.getMessage())), false);
+					continue;
+				}
+				if (request == null) {
+					//Nothing complete is left to answer, a partial request can no longer be finished
+					if (_endOfStream) {
+						_closing = true;
+						_connection.close();
+					}
+					return;
+				}
+				respond(request);
+			}
+		} catch (Exception e) {
+			//A partly written response leaves the connection unusable
+			Logger.error(TAG, e);
+			_closing = true;
+			_connection.close();
+		} finally {
+			_processing = false;
+		}
+	}
+
+	private void respond(HttpRequest request) throws Exception {
+		_requests++;
+
+		//Handlers read compressed request bodies as plain content
+		String status = HttpProtocol.decompress(request, _cfg);
+		if (status != null) {
+			send(request, new HttpResponse(status, null, status), false);
+			return;
+		}
+
+		HttpResponse response = null;
+		try {
+			boolean isNewSession = true;
+			if (_cfg.isConfigSessionEnabled()) {
+				String previousKey = HttpProtocol.getSessionKey(request, _cfg);
+				_session = HttpSessionManager.getInstance(_configManager).getSession(previousKey);
+				if (previousKey != null && previousKey.equals(_session.getSessionKey()))
+					isNewSession = false;
+			}
+
+			response = executeRequest(_session, request);
+			HttpProtocol.completeResponse(request, response, _cfg, (isNewSession ? _session : null));
+		} catch (Exception e) {
+			Logger.error(TAG, e);
+			if (response != null)
+				response.dispose();
+			send(request, new HttpResponse(
+					HttpResponse.Status.INTERNAL_ERROR, null, HttpResponse.Status.INTERNAL_ERROR), false);
+			return;
+		}
+		send(request, response, true);
+	}
+	/**
+	 * Start sending a response by queuing its head, its body follows as the connection takes it.
+	 * @param request Request answered, disposed once the response has been sent, or null if none could be decoded.
+	 * @param keepAlive False to close the connection after the response whatever the request asked for.
+	 */
+	private void send(HttpRequest request, HttpResponse response, boolean keepAlive) throws IOException {
+		_request = request;
+		_response = response;
+
+		//Bodies of unknown length are chunked for HTTP/1.1 clients
+		_encoder.setChunkingAllowed(request != null && ProtocolVersion.HTTP_1_1.equals(request.getProtocolVersion()));
+		//Answers to HEAD carry the headers of a GET without its body
+		_encoder.setBodyOmitted(request != null && Method.HEAD.equals(request.getMethod()));
+		_keepAlive = keepAlive && HttpProtocol.isKeepAlive(request, response, _requests, _cfg, _encoder);
+		HttpProtocol.setConnectionHeaders(request, response, _keepAlive, _requests, _cfg);
+
+		_connection.write(_encoder.encodeHead(response));
+	}
+	/**
+	 * Queue the body of the current response one buffer at a time.
+	 * @return true once the whole body has been queued, false to wait until the queued bytes have been written.
+	 */
+	private boolean sendBody() throws IOException {
+		ByteBuffer buffer = _writeLease.buffer();
+		while (!_closing) {
+			//The buffer is only reused once the connection no longer holds it
+			if (_connection.hasPendingWrites())
+				return false;
+			buffer.clear();
+			if (_encoder.encodeBody(buffer) == -1)
+				return true;
+			buffer.flip();
+			_connection.write(buffer);
+		}
+		return false;
+	}
+
+	private void endResponse() {
+		_response.dispose();
+		_response = null;
+		if (_request != null) {
+			_request.dispose();
+			_request = null;
+		}
+		if (!_keepAlive) {
+			_closing = true;
+			_connection.close();
+		}
+	}
+	/**
+	 * Lets <code>rejectRequest</code> refuse a request once its headers are decoded
+	 * and answers <code>Expect: 100-continue</code> when it is accepted.
+	 */
+	private class HeadersListener implements HttpRequestDecoder.Listener {
+
+		@Override
+		public void onHeaders(HttpRequest request) throws Exception {
+			HttpResponse rejection = rejectRequest(request);
+			if (rejection != null)
+				throw new DecoderException(rejection, "Request rejected");
+
+			//The client waits for this before sending the body
+			if (_decoder.isDecodingBody() && ProtocolVersion.HTTP_1_1.equals(request.getProtocolVersion()) &&
+					request.getHeaders().hasKeyElement("Expect", "100-continue", ','))
+				_connection.write(ByteBuffer.wrap(HttpProtocol.CONTINUE));
+		}
+
+		@Override
+		public void onBodyPart(HttpRequest request, int index) throws Exception {
+			bodyPartReceived(request, index);
+		}
+	}
+}
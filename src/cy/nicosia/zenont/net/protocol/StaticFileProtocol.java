@@ -0,0 +1,524 @@
+package cy.nicosia.zenont.net.protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import cy.nicosia.zenont.base.ConfigManager;
+import cy.nicosia.zenont.base.ConfigManager.Config;
+import cy.nicosia.zenont.base.Logger;
+import cy.nicosia.zenont.net.protocol.HttpProtocol.HttpProtocolConfig;
+import cy.nicosia.zenont.net.protocol.http.HttpCompression;
+import cy.nicosia.zenont.net.protocol.http.HttpMessage.HttpMultiValueCollection;
+import cy.nicosia.zenont.net.protocol.http.HttpMessage.MimeTypes;
+import cy.nicosia.zenont.net.protocol.http.HttpRequest;
+import cy.nicosia.zenont.net.protocol.http.HttpResponse;
+import cy.nicosia.zenont.net.protocol.http.HttpSessionManager.HttpSession;
+
+/**
+ * HTTP protocol serving the files under a root directory.
+ * <p/>
+ * File metadata and the content of small files are kept in an LRU cache shared by all connections,
+ * bounded by total bytes and entries. Entries are checked against the file system only once per
+ * check interval, so hot files and revalidations are answered without touching the disk.
+ * Every response carries a strong ETag and Last-Modified, and conditional GETs with
+ * If-None-Match or If-Modified-Since are answered with 304 Not Modified. HEAD requests get the
+ * headers a GET would get, without the body.
+ * <p/>
+ * Files too large to cache are sent from disk, with zero copy when the connection allows it.
+ * <p/>
+ * Textual files are sent gzip compressed to clients accepting it. The compressed variant is built once,
+ * on the first request or by <code>preload</code> at startup, and kept in the cache with the file.
+ */
+public class StaticFileProtocol extends HttpProtocol {
+
+	private static final String TAG = "StaticFileProtocol";
+
+	private static final Map<String, String> CONTENT_TYPES = new HashMap<String, String>();
+	private static final FileCache CACHE = new FileCache();
+
+	static {
+		CONTENT_TYPES.put("html", MimeTypes.HTML);
+		CONTENT_TYPES.put("htm", MimeTypes.HTML);
+		CONTENT_TYPES.put("css", MimeTypes.CSS);
+		CONTENT_TYPES.put("js", MimeTypes.JAVASCRIPT);
+		CONTENT_TYPES.put("json", MimeTypes.JSON);
+		CONTENT_TYPES.put("xml", MimeTypes.XML);
+		CONTENT_TYPES.put("txt", MimeTypes.TEXT);
+		CONTENT_TYPES.put("pdf", MimeTypes.PDF);
+		CONTENT_TYPES.put("zip", MimeTypes.ZIP);
+		CONTENT_TYPES.put("gz", MimeTypes.GZIP);
+		CONTENT_TYPES.put("png", MimeTypes.PNG);
+		CONTENT_TYPES.put("jpg", MimeTypes.JPEG);
+		CONTENT_TYPES.put("jpeg", MimeTypes.JPEG);
+		CONTENT_TYPES.put("gif", MimeTypes.GIF);
+		CONTENT_TYPES.put("svg", MimeTypes.SVG);
+	}
+
+	@Override
+	public HttpResponse executeRequest(HttpSession session, HttpRequest httpRequest) {
+		StaticFileConfig cfg = (StaticFileConfig) _configManager.getConfig(StaticFileConfig.class);
+
+		//HEAD is answered as GET, the protocol leaves the body out
+		if (!HttpRequest.Method.GET.equals(httpRequest.getMethod()) && !HttpRequest.Method.HEAD.equals(httpRequest.getMethod())) {
+			HttpResponse resp = new HttpResponse(HttpResponse.Status.METHOD_NOT_ALLOWED, null, HttpResponse.Status.METHOD_NOT_ALLOWED);
+			resp.getHeaders().overwriteKeyValue("Allow", HttpRequest.Method.GET + ", " + HttpRequest.Method.HEAD);
+			return resp;
+		}
+
+		String path = httpRequest.getUri().getPath();
+		if (path == null || path.isEmpty())
+			path = "/";
+
+		CachedFile file;
+		try {
+			file = lookup(cfg, path);
+		} catch (IOException e) {
+			Logger.error(TAG, e);
+			return new HttpResponse(HttpResponse.Status.INTERNAL_ERROR, null, HttpResponse.Status.INTERNAL_ERROR);
+		}
+		if (file == null)
+			return new HttpResponse(HttpResponse.Status.NOT_FOUND, null, HttpResponse.Status.NOT_FOUND);
+
+		HttpProtocolConfig httpCfg = (HttpProtocolConfig) _configManager.getConfig(HttpProtocolConfig.class);
+		boolean range = httpRequest.getHeaders().hasKey("Range");
+		boolean compressible = httpCfg.isConfigCompressionEnabled() && HttpCompression.isCompressible(file._contentType);
+		//Ranges are cut from the identity file body by HttpByteRanges
+		boolean gzip = compressible && !range && HttpCompression.GZIP.equals(HttpCompression.negotiate(httpRequest));
+		String etag = (gzip && file._gzip != CachedFile.INCOMPRESSIBLE ? file._gzipEtag : file._etag);
+
+		boolean notModified = isNotModified(httpRequest, file);
+		byte[] variant = null;
+		if (gzip && !notModified) {
+			try {
+				variant = gzip(cfg, file, httpCfg.getConfigCompressionLevel());
+			} catch (IOException e) {
+				//Fall back to the identity body
+				Logger.error(TAG, e);
+			}
+		}
+
+		HttpResponse resp;
+		if (notModified) {
+			resp = new HttpResponse();
+			resp.setHttpResponseStatus(HttpResponse.Status.NOT_MODIFIED);
+		} else if (variant != null) {
+			resp = new HttpResponse(HttpResponse.Status.OK, null, variant);
+			resp.getHeaders().overwriteKeyValue("Content-Type", file._contentType);
+			resp.getHeaders().overwriteKeyValue("Content-Encoding", HttpCompression.GZIP);
+			etag = file._gzipEtag;
+		} else if (file._content != null && !range) {
+			resp = new HttpResponse(HttpResponse.Status.OK, null, file._content);
+			resp.getHeaders().overwriteKeyValue("Content-Type", file._contentType);
+			etag = file._etag;
+		} else {
+			try {
+				resp = new HttpResponse(HttpResponse.Status.OK, null, file._file, false);
+			} catch (IOException e) {
+				//Deleted since it was last checked
+				CACHE.remove(file._key);
+				return new HttpResponse(HttpResponse.Status.NOT_FOUND, null, HttpResponse.Status.NOT_FOUND);
+			}
+			resp.getHeaders().overwriteKeyValue("Content-Type", file._contentType);
+			etag = file._etag;
+		}
+
+		HttpMultiValueCollection headers = resp.getHeaders();
+		headers.overwriteKeyValue("ETag", etag);
+		headers.overwriteKeyValue("Last-Modified", file._lastModifiedHeader);
+		//Also tells HttpCompression the encoding has been chosen
+		if (compressible)
+			headers.overwriteKeyValue("Vary", "Accept-Encoding");
+		if (cfg.getConfigCacheControl() != null)
+			headers.overwriteKeyValue("Cache-Control", cfg.getConfigCacheControl());
+		return resp;
+	}
+	/**
+	 * Load the files under the root directory into the cache in parallel, together with their
+	 * compressed variants, so the first requests for them are answered from memory.
+	 * Call once the configuration has been set, before or after the server starts.
+	 * @param configManager Holds the <b>StaticFileConfig</b> and <b>HttpProtocolConfig</b> to use.
+	 * @throws IOException if the root directory cannot be listed.
+	 * @throws InterruptedException
+	 */
+	public static void preload(ConfigManager configManager) throws IOException, InterruptedException {
+		final StaticFileConfig cfg = (StaticFileConfig) configManager.getConfig(StaticFileConfig.class);
+		final HttpProtocolConfig httpCfg = (HttpProtocolConfig) configManager.getConfig(HttpProtocolConfig.class);
+		Path root = new File(cfg.getConfigRootDirectory()).getCanonicalFile().toPath();
+
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		Stream<Path> paths = Files.walk(root);
+		try {
+			Iterator<Path> files = paths.iterator();
+			int count = 0;
+			while (files.hasNext() && count < cfg.getConfigCacheMaxEntries()) {
+				Path file = files.next();
+				if (!Files.isRegularFile(file))
+					continue;
+				count++;
+				final String path = "/" + root.relativize(file).toString().replace(File.separatorChar, '/');
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							CachedFile cached = lookup(cfg, path);
+							if (cached != null && httpCfg.isConfigCompressionEnabled() &&
+									HttpCompression.isCompressible(cached._contentType))
+								gzip(cfg, cached, httpCfg.getConfigCompressionLevel());
+						} catch (IOException e) {
+							Logger.error(TAG, e);
+						}
+					}
+				});
+			}
+		} finally {
+			paths.close();
+			pool.shutdown();
+		}
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+	/**
+	 * @return the gzip variant of a cached file, compressing it on first use, or null if it is too
+	 * large to keep in memory or does not compress.
+	 */
+	private static byte[] gzip(StaticFileConfig cfg, CachedFile file, int level) throws IOException {
+		byte[] gzip = file._gzip;
+		if (gzip == null) {
+			if (file._length > cfg.getConfigMaxPrecompressedFileLength())
+				return null;
+			file._gzipLock.lock();
+			try {
+				gzip = file._gzip;
+				if (gzip == null) {
+					byte[] content = (file._content != null ? file._content : Files.readAllBytes(file._file.toPath()));
+					gzip = HttpCompression.compress(content, HttpCompression.GZIP, level);
+					if (gzip.length >= content.length)
+						gzip = CachedFile.INCOMPRESSIBLE;
+					file._gzip = gzip;
+					CACHE.resize(file, cfg.getConfigCacheSize(), cfg.getConfigCacheMaxEntries());
+				}
+			} finally {
+				file._gzipLock.unlock();
+			}
+		}
+		return (gzip == CachedFile.INCOMPRESSIBLE ? null : gzip);
+	}
+	/**
+	 * Find the cached entry of a request path, loading or revalidating it when its check interval has passed.
+	 * @return the entry or null if the path does not name a readable file under the root directory.
+	 */
+	private static CachedFile lookup(StaticFileConfig cfg, String path) throws IOException {
+		String key = cfg.getConfigRootDirectory() + path;
+		long now = System.currentTimeMillis();
+		CachedFile cached = CACHE.get(key);
+		if (cached != null && now - cached._checked < cfg.getConfigCheckIntervalSeconds())
+			return cached;
+
+		File file = resolve(cfg, path);
+		if (file == null) {
+			CACHE.remove(key);
+			return null;
+		}
+		if (cached != null && cached._file.equals(file) &&
+				cached._lastModified == file.lastModified() && cached._length == file.length()) {
+			cached._checked = now;
+			return cached;
+		}
+
+		cached = new CachedFile(key, file, cfg.getConfigMaxCachedFileLength(), now);
+		CACHE.put(cached, cfg.getConfigCacheSize(), cfg.getConfigCacheMaxEntries());
+		return cached;
+	}
+	/**
+	 * Map a request path to a file under the root directory, using the index file for directories.
+	 * @return the file or null if it does not exist or lies outside the root directory.
+	 */
+	private static File resolve(StaticFileConfig cfg, String path) throws IOException {
+		File root = new File(cfg.getConfigRootDirectory()).getCanonicalFile();
+		File file = new File(root, path).getCanonicalFile();
+		//Refuse anything which escapes the root through .. or links
+		if (!file.equals(root) && !file.getPath().startsWith(root.getPath() + File.separator))
+			return null;
+		if (file.isDirectory())
+			file = new File(file, cfg.getConfigIndexFile());
+		return (file.isFile() && file.canRead() ? file : null);
+	}
+	/**
+	 * If-None-Match takes precedence over If-Modified-Since as required by RFC 7232.
+	 */
+	private static boolean isNotModified(HttpRequest httpRequest, CachedFile file) {
+		HttpMultiValueCollection headers = httpRequest.getHeaders();
+		if (headers == null)
+			return false;
+
+		ArrayList<String> etags = headers.getKeyElements("If-None-Match", ',');
+		if (etags != null) {
+			for (String etag : etags) {
+				//Weak comparison, so W/ prefixes are ignored
+				if (etag.startsWith("W/"))
+					etag = etag.substring(2);
+				if (etag.equals("*") || etag.equals(file._etag) || etag.equals(file._gzipEtag))
+					return true;
+			}
+			return false;
+		}
+
+		ArrayList<String> since = headers.getKeyValues("If-Modified-Since");
+		if (since != null) {
+			try {
+				long millis = ZonedDateTime.parse(since.get(0).trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+				return file._lastModified / 1000 <= millis / 1000;
+			} catch (DateTimeParseException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private static String contentType(String name) {
+		int dot = name.lastIndexOf('.');
+		String type = (dot == -1 ? null : CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase()));
+		return (type == null ? MimeTypes.BINARY : type);
+	}
+	/**
+	 * Metadata of a file, and its content when it is small enough to be cached.
+	 */
+	private static class CachedFile {
+
+		//Marks files whose gzip variant is not smaller
+		private static final byte[] INCOMPRESSIBLE = new byte[0];
+
+		private final String _key;
+		private final File _file;
+		private final long _length;
+		private final long _lastModified;
+		private final String _etag;
+		private final String _lastModifiedHeader;
+		private final String _contentType;
+		private final byte[] _content;
+		private final String _gzipEtag;
+		private final ReentrantLock _gzipLock = new ReentrantLock();
+		private volatile byte[] _gzip;
+		private volatile long _checked;
+		//Bytes counted in the cache size, guarded by the cache lock
+		private long _accounted;
+
+		CachedFile(String key, File file, int maxCachedFileLength, long now) throws IOException {
+			_key = key;
+			_file = file;
+			_lastModified = file.lastModified();
+			byte[] content = null;
+			if (file.length() <= maxCachedFileLength)
+				content = Files.readAllBytes(file.toPath());
+			_content = content;
+			_length = (content != null ? content.length : file.length());
+			_etag = "\"" + Long.toHexString(_lastModified) + "-" + Long.toHexString(_length) + "\"";
+			_gzipEtag = HttpCompression.variantEtag(_etag, HttpCompression.GZIP);
+			_lastModifiedHeader = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+					ZonedDateTime.ofInstant(Instant.ofEpochMilli(_lastModified), ZoneOffset.UTC));
+			_contentType = contentType(file.getName());
+			_checked = now;
+		}
+
+		long size() {
+			byte[] gzip = _gzip;
+			return (_content != null ? _content.length : 0) + (gzip != null ? gzip.length : 0);
+		}
+	}
+	/**
+	 * LRU map of cached files bounded by total content bytes and number of entries.
+	 */
+	private static class FileCache {
+
+		private final LinkedHashMap<String, CachedFile> _entries = new LinkedHashMap<String, CachedFile>(64, 0.75f, true);
+		private final ReentrantLock _lock = new ReentrantLock();
+		private long _size;
+
+		CachedFile get(String key) {
+			_lock.lock();
+			try {
+				return _entries.get(key);
+			} finally {
+				_lock.unlock();
+			}
+		}
+
+		void put(CachedFile file, long maxSize, int maxEntries) {
+			_lock.lock();
+			try {
+				CachedFile old = _entries.put(file._key, file);
+				if (old != null)
+					_size -= old._accounted;
+				file._accounted = file.size();
+				_size += file._accounted;
+				evict(file, maxSize, maxEntries);
+			} finally {
+				_lock.unlock();
+			}
+		}
+		/**
+		 * Account for content added to a cached file since it was put.
+		 */
+		void resize(CachedFile file, long maxSize, int maxEntries) {
+			_lock.lock();
+			try {
+				if (_entries.get(file._key) != file)
+					return;
+				long size = file.size();
+				_size += size - file._accounted;
+				file._accounted = size;
+				evict(file, maxSize, maxEntries);
+			} finally {
+				_lock.unlock();
+			}
+		}
+		/**
+		 * Evict least recently used entries other than <code>keep</code> until the cache fits its bounds.
+		 */
+		private void evict(CachedFile keep, long maxSize, int maxEntries) {
+			Iterator<CachedFile> eldest = _entries.values().iterator();
+			while ((_size > maxSize || _entries.size() > maxEntries) && eldest.hasNext()) {
+				CachedFile evicted = eldest.next();
+				if (evicted == keep)
+					continue;
+				eldest.remove();
+				_size -= evicted._accounted;
+			}
+		}
+
+		void remove(String key) {
+			_lock.lock();
+			try {
+				CachedFile old = _entries.remove(key);
+				if (old != null)
+					_size -= old._accounted;
+			} finally {
+				_lock.unlock();
+			}
+		}
+	}
+
+	public static class StaticFileConfig extends Config {
+
+		@SuppressWarnings("unused")
+		private static final String TAG = "StaticFile Config";
+
+		//Configuration settings
+		private volatile String _configRootDirectory;
+		private volatile String _configIndexFile;
+		private volatile long _configCacheSize;
+		private volatile int _configCacheMaxEntries;
+		private volatile int _configMaxCachedFileLength;
+		private volatile int _configCheckIntervalSeconds;
+		private volatile String _configCacheControl;
+		private volatile int _configMaxPrecompressedFileLength;
+
+		//defaults
+		{
+			setConfigRootDirectory(".");
+			setConfigIndexFile("index.html");
+			setConfigCacheSize(32 * 1024 * 1024);
+			setConfigCacheMaxEntries(4096);
+			setConfigMaxCachedFileLength(256 * 1024);
+			setConfigCheckIntervalSeconds(2);
+			setConfigCacheControl(null);
+			setConfigMaxPrecompressedFileLength(4 * 1024 * 1024);
+		}
+
+		public String getConfigRootDirectory() {
+			return _configRootDirectory;
+		}
+		/**
+		 * @param configRootDirectory Directory whose files are served.
+		 */
+		public void setConfigRootDirectory(String configRootDirectory) {
+			this._configRootDirectory = configRootDirectory;
+		}
+
+		public String getConfigIndexFile() {
+			return _configIndexFile;
+		}
+		/**
+		 * @param configIndexFile File served for requests naming a directory.
+		 */
+		public void setConfigIndexFile(String configIndexFile) {
+			this._configIndexFile = configIndexFile;
+		}
+
+		public long getConfigCacheSize() {
+			return _configCacheSize;
+		}
+		/**
+		 * @param configCacheSize Maximum bytes of file content kept in memory.
+		 */
+		public void setConfigCacheSize(long configCacheSize) {
+			this._configCacheSize = configCacheSize;
+		}
+
+		public int getConfigCacheMaxEntries() {
+			return _configCacheMaxEntries;
+		}
+		/**
+		 * @param configCacheMaxEntries Maximum files whose metadata is cached.
+		 */
+		public void setConfigCacheMaxEntries(int configCacheMaxEntries) {
+			this._configCacheMaxEntries = configCacheMaxEntries;
+		}
+
+		public int getConfigMaxCachedFileLength() {
+			return _configMaxCachedFileLength;
+		}
+		/**
+		 * @param configMaxCachedFileLength Larger files are sent from disk on every request.
+		 */
+		public void setConfigMaxCachedFileLength(int configMaxCachedFileLength) {
+			this._configMaxCachedFileLength = configMaxCachedFileLength;
+		}
+
+		public int getConfigCheckIntervalSeconds() {
+			return _configCheckIntervalSeconds;
+		}
+		/**
+		 * @param configCheckIntervalSeconds Time a cached file is trusted before it is checked for changes.
+		 */
+		public void setConfigCheckIntervalSeconds(int configCheckIntervalSeconds) {
+			this._configCheckIntervalSeconds = configCheckIntervalSeconds * 1000;
+		}
+
+		public String getConfigCacheControl() {
+			return _configCacheControl;
+		}
+		/**
+		 * @param configCacheControl Cache-Control header added to responses, or null for none.
+		 */
+		public void setConfigCacheControl(String configCacheControl) {
+			this._configCacheControl = configCacheControl;
+		}
+
+		public int getConfigMaxPrecompressedFileLength() {
+			return _configMaxPrecompressedFileLength;
+		}
+		/**
+		 * @param configMaxPrecompressedFileLength Larger files are always sent uncompressed.
+		 */
+		public void setConfigMaxPrecompressedFileLength(int configMaxPrecompressedFileLength) {
+			this._configMaxPrecompressedFileLength = configMaxPrecompressedFileLength;
+		}
+	}
+}
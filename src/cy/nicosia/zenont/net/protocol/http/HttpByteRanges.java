@@ -0,0 +1,250 @@
+package cy.nicosia.zenont.net.protocol.http;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+import cy.nicosia.zenont.base.Logger;
+import cy.nicosia.zenont.net.protocol.http.HttpMessage.HttpMultiValueCollection;
+import cy.nicosia.zenont.net.protocol.http.HttpMessage.MimeTypes;
+
+/**
+ * Byte range support for file responses as defined by RFC 7233, independent of any transport.
+ * <p/>
+ * <code>apply</code> turns a 200 response with a file body into a 206 response when the request
+ * asks for ranges with the Range header, honouring If-Range. A single range keeps the file as the body
+ * so it can still be sent with zero copy. Several ranges are sent as a multipart/byteranges body
+ * streamed with positioned reads from the file.
+ */
+public class HttpByteRanges {
+
+	private static final String TAG = "HttpByteRanges";
+	//Requests for more ranges than this are answered with the whole file
+	private static final int MAX_RANGES = 16;
+
+	private HttpByteRanges() {
+	}
+	/**
+	 * Advertise range support on a response and restrict it to the ranges requested.
+	 * @param request The request being answered.
+	 * @param response Its response, changed in place.
+	 * @throws IOException if the file of the body cannot be positioned.
+	 */
+	public static void apply(HttpRequest request, HttpResponse response) throws IOException {
+		InputStream body = response.getBody();
+		if (!HttpResponse.Status.OK.equals(response.geHttpResponseStatus()) || !(body instanceof FileInputStream))
+			return;
+		long length = response.getBodyLength(body);
+		if (length < 0L)
+			return;
+
+		HttpMultiValueCollection headers = response.getHeaders();
+		headers.overwriteKeyValue("Accept-Ranges", "bytes");
+
+		if (!HttpRequest.Method.GET.equals(request.getMethod()) || request.getHeaders() == null)
+			return;
+		String range = join(request.getHeaders().getKeyValues("Range"), ",");
+		if (range == null || !isCurrent(first(request.getHeaders().getKeyValues("If-Range")), headers))
+			return;
+
+		ArrayList<long[]> ranges = parse(range, length);
+		//Invalid or abusive Range headers are ignored
+		if (ranges == null)
+			return;
+
+		headers.removeKey("Content-Length");
+		if (ranges.isEmpty()) {
+			response.setHttpResponseStatus(HttpResponse.Status.RANGE_NOT_SATISFIABLE);
+			headers.overwriteKeyValue("Content-Range", "bytes */" + length);
+			headers.overwriteKeyValue("Content-Type", MimeTypes.TEXT);
+			response.setBody(HttpResponse.Status.RANGE_NOT_SATISFIABLE);
+			return;
+		}
+
+		response.setHttpResponseStatus(HttpResponse.Status.PARTIAL_CONTENT);
+		FileChannel channel = ((FileInputStream) body).getChannel();
+		if (ranges.size() == 1) {
+			long[] only = ranges.get(0);
+			headers.overwriteKeyValue("Content-Range", contentRange(only, length));
+			channel.position(only[0]);
+			response.replaceBody(body, only[1] - only[0] + 1);
+			return;
+		}
+
+		ArrayList<String> types = headers.getKeyValues("Content-Type");
+		String type = (types != null && !types.isEmpty() ? types.get(0) : MimeTypes.BINARY);
+		String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) +
+				Long.toHexString(ThreadLocalRandom.current().nextLong());
+		ByteRangesInputStream parts = new ByteRangesInputStream(channel, ranges, length, type, boundary);
+		headers.overwriteKeyValue("Content-Type", "multipart/byteranges; boundary=" + boundary);
+		response.replaceBody(parts, parts.length());
+	}
+	/**
+	 * @return false if If-Range names a validator other than the current one of the response.
+	 */
+	private static boolean isCurrent(String ifRange, HttpMultiValueCollection headers) {
+		if (ifRange == null)
+			return true;
+		String validator = first(headers.getKeyValues(ifRange.startsWith("\"") || ifRange.startsWith("W/") ? "ETag" : "Last-Modified"));
+		//Weak validators never match
+		return (validator != null && !validator.startsWith("W/") && validator.equals(ifRange));
+	}
+	/**
+	 * Parse a byte ranges specifier into inclusive first and last positions.
+	 * @return the satisfiable ranges, an empty list if there are none, or null if the specifier is invalid.
+	 */
+	private static ArrayList<long[]> parse(String range, long length) {
+		if (!range.regionMatches(true, 0, "bytes=", 0, 6))
+			return null;
+
+		ArrayList<long[]> ranges = new ArrayList<long[]>();
+		String[] specs = range.substring(6).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+		try {
+			for (String spec : specs) {
+				spec = spec.trim();
+				int dash = spec.indexOf('-');
+				if (dash == -1)
+					return null;
+				long first;
+				long last;
+				if (dash == 0) {
+					//Suffix range of the last bytes
+					long suffix = Long.parseLong(spec.substring(1));
+					if (suffix == 0L)
+						continue;
+					first = Math.max(0L, length - suffix);
+					last = length - 1;
+				} else {
+					first = Long.parseLong(spec.substring(0, dash));
+					last = length - 1;
+					if (dash < spec.length() - 1) {
+						long end = Long.parseLong(spec.substring(dash + 1));
+						if (end < first)
+							return null;
+						last = Math.min(last, end);
+					}
+				}
+				if (first < 0L)
+					return null;
+				if (first < length)
+					ranges.add(new long[] {first, last});
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return ranges;
+	}
+
+	private static String contentRange(long[] range, long length) {
+		return "bytes " + range[0] + "-" + range[1] + "/" + length;
+	}
+
+	private static String first(ArrayList<String> values) {
+		return (values == null || values.isEmpty() ? null : values.get(0).trim());
+	}
+
+	private static String join(ArrayList<String> values, String separator) {
+		if (values == null || values.isEmpty())
+			return null;
+		StringBuilder sb = new StringBuilder();
+		for (String value : values) {
+			if (sb.length() > 0)
+				sb.append(separator);
+			sb.append(value.trim());
+		}
+		return sb.toString();
+	}
+	/**
+	 * Streams a multipart/byteranges body, reading each range from the file at its position.
+	 * Closing the stream closes the file.
+	 */
+	private static class ByteRangesInputStream extends InputStream {
+
+		private final FileChannel _channel;
+		private final ArrayList<long[]> _ranges;
+		private final byte[][] _heads;
+		private final byte[] _tail;
+		private int _part;
+		private int _headPosition;
+		private long _dataPosition;
+		private int _tailPosition;
+
+		ByteRangesInputStream(FileChannel channel, ArrayList<long[]> ranges, long length,
+				String type, String boundary) throws UnsupportedEncodingException {
+			_channel = channel;
+			_ranges = ranges;
+			_heads = new byte[ranges.size()][];
+			for (int i = 0; i < _heads.length; i++)
+				_heads[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + type + "\r\nContent-Range: " +
+						contentRange(ranges.get(i), length) + "\r\n\r\n").getBytes("ISO-8859-1");
+			_tail = ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+		}
+		/**
+		 * @return the number of bytes of the whole body.
+		 */
+		long length() {
+			long length = _tail.length;
+			for (int i = 0; i < _heads.length; i++)
+				length += _heads[i].length + _ranges.get(i)[1] - _ranges.get(i)[0] + 1;
+			return length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			int read = read(single, 0, 1);
+			return (read == -1 ? -1 : single[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			while (_part < _heads.length) {
+				byte[] head = _heads[_part];
+				if (_headPosition < head.length) {
+					int count = Math.min(len, head.length - _headPosition);
+					System.arraycopy(head, _headPosition, b, off, count);
+					_headPosition += count;
+					return count;
+				}
+
+				long[] range = _ranges.get(_part);
+				long remaining = range[1] - range[0] + 1 - _dataPosition;
+				if (remaining > 0L) {
+					int read = _channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), range[0] + _dataPosition);
+					if (read == -1) {
+						Logger.error(TAG, "File shorter than its ranges");
+						return -1;
+					}
+					_dataPosition += read;
+					return read;
+				}
+
+				_part++;
+				_headPosition = 0;
+				_dataPosition = 0L;
+			}
+
+			if (_tailPosition == _tail.length)
+				return -1;
+			int count = Math.min(len, _tail.length - _tailPosition);
+			System.arraycopy(_tail, _tailPosition, b, off, count);
+			_tailPosition += count;
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			_channel.close();
+		}
+	}
+}
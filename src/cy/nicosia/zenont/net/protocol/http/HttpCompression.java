@@ -0,0 +1,358 @@
+package cy.nicosia.zenont.net.protocol.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import cy.nicosia.zenont.net.protocol.http.HttpMessage.HttpMultiValueCollection;
+import cy.nicosia.zenont.net.protocol.http.HttpMessage.MimeTypes;
+
+/**
+ * Content coding of response bodies negotiated with Accept-Encoding and of request bodies sent
+ * with Content-Encoding, independent of any transport.
+ * <p/>
+ * <code>apply</code> compresses textual bodies produced by handlers. Bodies of known length up to
+ * <code>EAGER_LENGTH</code> are compressed at once so they keep a Content-Length, longer or unknown
+ * bodies are compressed while they are sent and need chunked framing.
+ * <p/>
+ * File bodies are left alone so they keep the zero copy path. Handlers which choose the encoding
+ * themselves, such as serving a cached compressed variant, mark the response with
+ * <code>Vary: Accept-Encoding</code> and are not compressed again.
+ * <p/>
+ * <code>decompress</code> replaces compressed request bodies with streams inflating them as the
+ * handler reads, limited in length so a small upload cannot expand without bound.
+ */
+public class HttpCompression {
+
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+	//Known lengths up to this are compressed in memory
+	private static final int EAGER_LENGTH = 64 * 1024;
+	private static final int INPUT_LENGTH = 8 * 1024;
+
+	private HttpCompression() {
+	}
+	/**
+	 * Compress the body of a response if the client accepts it and the content is worth it.
+	 * @param request The request being answered.
+	 * @param response Its response, changed in place.
+	 * @param level Deflater compression level from 1 to 9.
+	 * @param minLength Bodies known to be shorter are sent as they are.
+	 * @param chunkingAllowed False if bodies of unknown length cannot be framed for this client.
+	 * @throws IOException if the body cannot be read.
+	 */
+	public static void apply(HttpRequest request, HttpResponse response, int level, int minLength,
+			boolean chunkingAllowed) throws IOException {
+		InputStream body = response.getBody();
+		HttpMultiValueCollection headers = response.getHeaders();
+		if (!HttpResponse.Status.OK.equals(response.geHttpResponseStatus()) || body == null ||
+				body instanceof FileInputStream || headers.hasKey("Content-Encoding") ||
+				headers.hasKeyValue("Vary", "Accept-Encoding"))
+			return;
+		ArrayList<String> types = headers.getKeyValues("Content-Type");
+		if (types == null || types.isEmpty() || !isCompressible(types.get(0)))
+			return;
+
+		//The body now depends on the request, so caches must key on it
+		headers.appendValueToKey("Vary", "Accept-Encoding");
+		String encoding = negotiate(request);
+		long length = response.getBodyLength(body);
+		if (encoding == null || (length >= 0L && length < minLength) || (length < 0L && !chunkingAllowed))
+			return;
+
+		if (length >= 0L && length <= EAGER_LENGTH) {
+			byte[] content = body.readAllBytes();
+			byte[] compressed = compress(content, encoding, level);
+			//Incompressible content is sent as it was
+			if (compressed.length >= content.length) {
+				response.setBody(content);
+				return;
+			}
+			response.setBody(compressed);
+		} else {
+			response.replaceBody(new CompressingInputStream(body, encoding, level), -1L);
+		}
+
+		headers.removeKey("Content-Length");
+		headers.overwriteKeyValue("Content-Encoding", encoding);
+		ArrayList<String> etags = headers.getKeyValues("ETag");
+		if (etags != null && !etags.isEmpty())
+			headers.overwriteKeyValue("ETag", variantEtag(etags.get(0), encoding));
+	}
+	/**
+	 * Replace the bodies of a request sent with a Content-Encoding by streams of their decompressed content.
+	 * The Content-Encoding and Content-Length headers are removed as they no longer describe the bodies.
+	 * @param request A request whose bodies have not been read.
+	 * @param maxLength Reading more decompressed bytes than this from a body fails with an IOException.
+	 * @return false if a coding is not supported, leaving the request unchanged.
+	 * @throws IOException if a body does not start with a valid header for its coding.
+	 */
+	public static boolean decompress(HttpRequest request, long maxLength) throws IOException {
+		ArrayList<String> codings = request.getHeaders().getKeyElements("Content-Encoding", ',');
+		if (codings == null)
+			return true;
+		for (String coding : codings) {
+			coding = coding.trim().toLowerCase();
+			if (!(coding.equals(GZIP) || coding.equals("x-gzip") || coding.equals(DEFLATE) || coding.equals("identity")))
+				return false;
+		}
+
+		for (InputStream body : request.getBodies()) {
+			InputStream decoded = body;
+			//Codings are listed in the order they were applied
+			for (int i = codings.size() - 1; i >= 0; i--) {
+				String coding = codings.get(i).trim().toLowerCase();
+				if (coding.equals(DEFLATE))
+					decoded = inflate(decoded);
+				else if (!coding.equals("identity"))
+					decoded = new GZIPInputStream(decoded, INPUT_LENGTH);
+			}
+			request.replaceBody(body, new LimitedInputStream(decoded, maxLength), -1L);
+		}
+		request.getHeaders().removeKey("Content-Encoding");
+		request.getHeaders().removeKey("Content-Length");
+		return true;
+	}
+	/**
+	 * Inflate a deflate coded stream. The coding should be zlib wrapped but some clients send raw
+	 * deflate data, so the zlib header is checked first.
+	 */
+	private static InputStream inflate(InputStream source) throws IOException {
+		PushbackInputStream in = new PushbackInputStream(source, 2);
+		byte[] header = new byte[2];
+		int read = in.readNBytes(header, 0, 2);
+		in.unread(header, 0, read);
+		boolean zlib = (read == 2 && (header[0] & 0x0F) == Deflater.DEFLATED &&
+				(((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0);
+		final Inflater inflater = new Inflater(!zlib);
+		return new InflaterInputStream(in, inflater, INPUT_LENGTH) {
+			@Override
+			public void close() throws IOException {
+				//Streams given their own Inflater do not end it
+				inflater.end();
+				super.close();
+			}
+		};
+	}
+	/**
+	 * Pick the coding for a response from the Accept-Encoding header of the request.
+	 * @return <code>GZIP</code>, <code>DEFLATE</code> or null if the body must be sent as it is.
+	 */
+	public static String negotiate(HttpRequest request) {
+		if (request.getHeaders() == null)
+			return null;
+		ArrayList<String> values = request.getHeaders().getKeyElements("Accept-Encoding", ',');
+		if (values == null)
+			return null;
+
+		//Null until the coding is named, codings named explicitly take precedence over * (RFC 7231 5.3.4)
+		Boolean gzip = null;
+		Boolean deflate = null;
+		Boolean any = null;
+		for (String value : values) {
+			//A coding optionally followed by its quality
+			ArrayList<String> parameters = new ArrayList<String>();
+			HttpMultiValueCollection.split(value, ';', parameters);
+			if (parameters.isEmpty())
+				continue;
+			String coding = parameters.get(0).toLowerCase();
+			boolean refused = false;
+			for (int i = 1; i < parameters.size(); i++) {
+				String parameter = parameters.get(i).toLowerCase();
+				if (parameter.startsWith("q="))
+					refused = isZeroQuality(parameter);
+			}
+			if (coding.equals(GZIP) || coding.equals("x-gzip"))
+				gzip = !refused;
+			else if (coding.equals(DEFLATE))
+				deflate = !refused;
+			else if (coding.equals("*"))
+				any = !refused;
+		}
+		boolean acceptsGzip = (gzip != null ? gzip : Boolean.TRUE.equals(any));
+		boolean acceptsDeflate = (deflate != null ? deflate : Boolean.TRUE.equals(any));
+		return (acceptsGzip ? GZIP : acceptsDeflate ? DEFLATE : null);
+	}
+	/**
+	 * @param contentType A Content-Type header value.
+	 * @return True for textual types which compress well.
+	 */
+	public static boolean isCompressible(String contentType) {
+		int semicolon = contentType.indexOf(';');
+		String type = (semicolon == -1 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+		return type.startsWith("text/") || type.equals(MimeTypes.JSON) || type.equals(MimeTypes.JAVASCRIPT) ||
+				type.equals(MimeTypes.XML) || type.equals(MimeTypes.SVG) || type.endsWith("+json") || type.endsWith("+xml");
+	}
+	/**
+	 * Compress content in memory.
+	 * @param encoding <code>GZIP</code> or <code>DEFLATE</code>.
+	 * @param level Deflater compression level from 1 to 9.
+	 * @return the compressed content.
+	 */
+	public static byte[] compress(byte[] content, String encoding, int level) throws IOException {
+		InputStream in = new CompressingInputStream(new ByteArrayInputStream(content), encoding, level);
+		try {
+			return in.readAllBytes();
+		} finally {
+			in.close();
+		}
+	}
+	/**
+	 * @return the entity tag of a compressed variant of the representation tagged <code>etag</code>.
+	 */
+	public static String variantEtag(String etag, String encoding) {
+		if (!etag.endsWith("\""))
+			return etag;
+		return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+	}
+
+	private static boolean isZeroQuality(String q) {
+		try {
+			return Float.parseFloat(q.substring(2)) <= 0f;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+	/**
+	 * Fails reads once more than a maximum number of bytes have been read.
+	 */
+	private static class LimitedInputStream extends FilterInputStream {
+
+		private final long _maxLength;
+		private long _length;
+
+		LimitedInputStream(InputStream in, long maxLength) {
+			super(in);
+			_maxLength = maxLength;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1)
+				count(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0)
+				count(read);
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count(skipped);
+			return skipped;
+		}
+
+		private void count(long read) throws IOException {
+			_length += read;
+			if (_length > _maxLength)
+				throw new IOException("Decompressed body exceeds " + _maxLength + " bytes");
+		}
+	}
+	/**
+	 * Compresses another stream as it is read, in gzip or zlib format.
+	 * Closing the stream closes the source.
+	 */
+	private static class CompressingInputStream extends InputStream {
+
+		private static final byte[] GZIP_HEADER = new byte[] {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+		private final InputStream _source;
+		private final Deflater _deflater;
+		//Null for deflate, which carries its own checksum
+		private final CRC32 _crc;
+		private final byte[] _input;
+		private byte[] _pending;
+		private int _pendingPosition;
+		private boolean _trailerSent;
+
+		CompressingInputStream(InputStream source, String encoding, int level) {
+			boolean gzip = GZIP.equals(encoding);
+			_source = source;
+			_deflater = new Deflater(level, gzip);
+			_crc = (gzip ? new CRC32() : null);
+			_input = new byte[INPUT_LENGTH];
+			_pending = (gzip ? GZIP_HEADER : null);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			int read = read(single, 0, 1);
+			return (read == -1 ? -1 : single[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			while (true) {
+				if (_pending != null && _pendingPosition < _pending.length) {
+					int count = Math.min(len, _pending.length - _pendingPosition);
+					System.arraycopy(_pending, _pendingPosition, b, off, count);
+					_pendingPosition += count;
+					return count;
+				}
+
+				if (_deflater.finished()) {
+					if (_crc == null || _trailerSent)
+						return -1;
+					_pending = trailer();
+					_pendingPosition = 0;
+					_trailerSent = true;
+					continue;
+				}
+
+				if (_deflater.needsInput()) {
+					int read = _source.read(_input, 0, _input.length);
+					if (read == -1) {
+						_deflater.finish();
+					} else if (read > 0) {
+						_deflater.setInput(_input, 0, read);
+						if (_crc != null)
+							_crc.update(_input, 0, read);
+					}
+				}
+
+				int deflated = _deflater.deflate(b, off, len);
+				if (deflated > 0)
+					return deflated;
+			}
+		}
+		/**
+		 * @return the gzip trailer with the CRC and length of the uncompressed data, both little endian.
+		 */
+		private byte[] trailer() {
+			long crc = _crc.getValue();
+			long size = _deflater.getBytesRead();
+			byte[] trailer = new byte[8];
+			for (int i = 0; i < 4; i++) {
+				trailer[i] = (byte) (crc >>> (8 * i));
+				trailer[4 + i] = (byte) (size >>> (8 * i));
+			}
+			return trailer;
+		}
+
+		@Override
+		public void close() throws IOException {
+			_deflater.end();
+			_source.close();
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package cy.nicosia.zenont.net.protocol.http;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import cy.nicosia.zenont.net.protocol.http.HttpMessage.HttpMultiValueCollection;
+import cy.nicosia.zenont.net.protocol.http.HttpRequest.Method;
+import cy.nicosia.zenont.net.protocol.http.HttpRequest.ProtocolVersion;
+import cy.nicosia.zenont.net.protocol.http.HttpRequestDecoder.DecoderException;
+
+/**
+ * Single pass parser of request lines and header fields working on the received bytes in place.
+ * <p/>
+ * The method and protocol version are matched against their constants without creating strings and
+ * well known field names resolve to shared constants, so a typical request only allocates its
+ * target and field values. Each field line adds its value whole, trimmed of surrounding whitespace;
+ * headers holding lists or parameters are split where they are read, with
+ * <code>HttpMultiValueCollection.getKeyElements</code>.
+ */
+final class HttpHeaderParser {
+
+	//Field names resolved to shared strings instead of being copied from every request
+	private static final String[] KNOWN_NAMES = {
+		"Host", "Connection", "Keep-Alive", "Content-Length", "Content-Type", "Content-Encoding",
+		"Content-Disposition", "Transfer-Encoding", "Accept", "Accept-Encoding", "Accept-Language",
+		"Accept-Charset", "User-Agent", "Cookie", "Authorization", "Expect", "Range", "If-Range",
+		"If-None-Match", "If-Modified-Since", "Cache-Control", "Pragma", "Referer", "Origin", "Upgrade"
+	};
+	private static final byte[][] KNOWN_NAME_BYTES = new byte[KNOWN_NAMES.length][];
+	private static final byte[][] METHOD_BYTES = new byte[Method.METHODS.length][];
+	private static final byte[][] VERSION_BYTES = new byte[ProtocolVersion.PROTOCOL_VERSIONS.length][];
+	//Characters allowed in methods and field names, RFC 7230 tchar
+	private static final boolean[] TOKEN = new boolean[128];
+
+	static {
+		for (int i = 0; i < KNOWN_NAMES.length; i++)
+			KNOWN_NAME_BYTES[i] = KNOWN_NAMES[i].getBytes(StandardCharsets.ISO_8859_1);
+		for (int i = 0; i < Method.METHODS.length; i++)
+			METHOD_BYTES[i] = Method.METHODS[i].getBytes(StandardCharsets.ISO_8859_1);
+		for (int i = 0; i < ProtocolVersion.PROTOCOL_VERSIONS.length; i++)
+			VERSION_BYTES[i] = ProtocolVersion.PROTOCOL_VERSIONS[i].getBytes(StandardCharsets.ISO_8859_1);
+		for (char c = '0'; c <= '9'; c++)
+			TOKEN[c] = true;
+		for (char c = 'a'; c <= 'z'; c++)
+			TOKEN[c] = TOKEN[c - 'a' + 'A'] = true;
+		for (char c : "!#$%&'*+-.^_`|~".toCharArray())
+			TOKEN[c] = true;
+	}
+
+	private int _maxFields;
+	private int _maxLineLength;
+
+	HttpHeaderParser(int maxFields, int maxLineLength) {
+		setLimits(maxFields, maxLineLength);
+	}
+
+	void setLimits(int maxFields, int maxLineLength) {
+		_maxFields = maxFields;
+		_maxLineLength = maxLineLength;
+	}
+	/**
+	 * @return the most bytes a complete header block may take within the limits.
+	 */
+	int getMaxHeaderLength() {
+		return (_maxFields + 1) * (_maxLineLength + 2) + 2;
+	}
+	/**
+	 * Parse the request line into the method, target and protocol version of a request.
+	 * @param array Received bytes.
+	 * @param start Index of the first byte of the request line.
+	 * @param end Index after the last byte which may be read.
+	 * @return the index after the line break ending the request line.
+	 * @throws DecoderException if the line is malformed, too long or names an unsupported method or version.
+	 */
+	int parseRequestLine(byte[] array, int start, int end, HttpRequest request) throws DecoderException {
+		int lineEnd = lineEnd(array, start, end);
+		if (lineEnd == -1 || lineEnd - start > _maxLineLength)
+			throw new DecoderException(HttpResponse.Status.URI_TOO_LONG, "Request line too long");
+
+		int methodEnd = start;
+		while (methodEnd < lineEnd && isToken(array[methodEnd]))
+			methodEnd++;
+		if (methodEnd == start || methodEnd == lineEnd || array[methodEnd] != ' ')
+			throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Invalid request line");
+		String method = match(METHOD_BYTES, Method.METHODS, array, start, methodEnd - start);
+		if (method == null)
+			throw new DecoderException(HttpResponse.Status.NOT_IMPLEMENTED, "Unsupported method");
+
+		int targetStart = methodEnd + 1;
+		int targetEnd = targetStart;
+		while (targetEnd < lineEnd && array[targetEnd] > ' ')
+			targetEnd++;
+		if (targetEnd == targetStart || targetEnd == lineEnd || array[targetEnd] != ' ')
+			throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Invalid request line");
+
+		String version = match(VERSION_BYTES, ProtocolVersion.PROTOCOL_VERSIONS, array, targetEnd + 1, contentEnd(array, start, lineEnd) - targetEnd - 1);
+		if (version == null)
+			throw new DecoderException(HttpResponse.Status.HTTP_VERSION_NOT_SUPPORTED, "Unsupported protocol version");
+
+		try {
+			request.setUri(URI.create(new String(array, targetStart, targetEnd - targetStart, StandardCharsets.ISO_8859_1)));
+		} catch (IllegalArgumentException e) {
+			throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Invalid request target", e);
+		}
+		request.setMethod(method);
+		request.setProtocolVersion(version);
+		return lineEnd + 1;
+	}
+	/**
+	 * Parse header fields up to the empty line ending them.
+	 * @param array Received bytes.
+	 * @param start Index of the first byte of the first field line.
+	 * @param end Index after the last byte which may be read.
+	 * @param fields Collection receiving the fields.
+	 * @return the index after the empty line.
+	 * @throws DecoderException if a field is malformed or the limits are exceeded.
+	 */
+	int parseFields(byte[] array, int start, int end, HttpMultiValueCollection fields) throws DecoderException {
+		int position = start;
+		int count = 0;
+		while (true) {
+			int lineStart = position;
+			if (position == end)
+				throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Unterminated headers");
+			//Empty line ends the fields
+			if (array[position] == '\n')
+				return position + 1;
+			if (array[position] == '\r' && position + 1 < end && array[position + 1] == '\n')
+				return position + 2;
+			//Line folding is obsolete and a known request smuggling vector
+			if (array[position] == ' ' || array[position] == '\t')
+				throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Folded header");
+			if (++count > _maxFields)
+				throw new DecoderException(HttpResponse.Status.REQUEST_HEADER_FIELDS_TOO_LARGE, "Too many headers");
+
+			//Name, no whitespace is allowed before the colon
+			while (position < end && array[position] != ':') {
+				if (!isToken(array[position]))
+					throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Invalid header name");
+				position++;
+			}
+			if (position == end || position == lineStart)
+				throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Invalid header name");
+			String name = name(array, lineStart, position - lineStart);
+			position++;
+
+			//Value, kept whole and trimmed of whitespace
+			int valueStart = -1;
+			int valueEnd = -1;
+			boolean ascii = true;
+			while (true) {
+				if (position == end)
+					throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Unterminated headers");
+				byte b = array[position];
+				if (b == '\n')
+					break;
+				//Control characters, a carriage return not ending the line included, are not allowed in values
+				if ((b >= 0 && b < ' ' && b != '\t' && !(b == '\r' && position + 1 < end && array[position + 1] == '\n')) || b == 0x7F)
+					throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Invalid header value");
+				if (b != ' ' && b != '\t' && b != '\r') {
+					if (valueStart == -1)
+						valueStart = position;
+					valueEnd = position + 1;
+					ascii = ascii && b >= 0;
+				}
+				position++;
+			}
+			fields.appendValueToKey(name, valueStart == -1 ? "" : value(array, valueStart, valueEnd - valueStart, ascii));
+			position++;
+			if (position - lineStart > _maxLineLength)
+				throw new DecoderException(HttpResponse.Status.REQUEST_HEADER_FIELDS_TOO_LARGE, "Header too long");
+		}
+	}
+	/**
+	 * @return the index of the line feed ending the line or -1 if there is none before <code>end</code>.
+	 */
+	static int lineEnd(byte[] array, int start, int end) {
+		for (int i = start; i < end; i++)
+			if (array[i] == '\n')
+				return i;
+		return -1;
+	}
+	/**
+	 * @return the index of the line break ending the line, before any carriage return.
+	 */
+	private static int contentEnd(byte[] array, int start, int lineEnd) {
+		return (lineEnd > start && array[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd);
+	}
+
+	private static boolean isToken(byte b) {
+		return b >= 0 && TOKEN[b];
+	}
+
+	private static String name(byte[] array, int start, int length) {
+		for (int i = 0; i < KNOWN_NAME_BYTES.length; i++)
+			if (equalsIgnoreCase(KNOWN_NAME_BYTES[i], array, start, length))
+				return KNOWN_NAMES[i];
+		return new String(array, start, length, StandardCharsets.ISO_8859_1);
+	}
+	/**
+	 * Values are ASCII as a rule, other bytes are taken as UTF-8 which browsers use for file names.
+	 */
+	private static String value(byte[] array, int start, int length, boolean ascii) {
+		return new String(array, start, length, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+	}
+
+	private static String match(byte[][] candidates, String[] values, byte[] array, int start, int length) {
+		for (int i = 0; i < candidates.length; i++) {
+			byte[] candidate = candidates[i];
+			if (candidate.length != length)
+				continue;
+			int j = 0;
+			while (j < length && candidate[j] == array[start + j])
+				j++;
+			if (j == length)
+				return values[i];
+		}
+		return null;
+	}
+
+	private static boolean equalsIgnoreCase(byte[] candidate, byte[] array, int start, int length) {
+		if (candidate.length != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			int a = candidate[i];
+			int b = array[start + i];
+			//Known names only hold letters and '-', which no other token byte folds onto
+			if (a != b && (a | 0x20) != (b | 0x20))
+				return false;
+		}
+		return true;
+	}
+}
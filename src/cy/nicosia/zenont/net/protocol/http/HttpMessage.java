@@ -7,6 +7,7 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Iterator;
 
 import cy.nicosia.zenont.base.Logger;
 import cy.nicosia.zenont.base.MultiValueMap;
@@ -24,6 +25,11 @@ public abstract class HttpMessage {
 		public static final String GZIP = "application/gzip";
 		public static final String TEXT = "text/plain";
 		public static final String HTML = "text/html";
+		public static final String CSS = "text/css";
+		public static final String PNG = "image/png";
+		public static final String JPEG = "image/jpeg";
+		public static final String GIF = "image/gif";
+		public static final String SVG = "image/svg+xml";
 		public static final String URLENCODED = "application/x-www-form-urlencoded";
 		public static final String MULTIPART_FORM = "multipart/form-data";
 		public static final String MULTIPART_MIXED = "multipart/mixed";
@@ -63,6 +69,14 @@ public abstract class HttpMessage {
 			return false;
 		}
 		
+		@Override
+		public void removeKey(String s) {
+			Iterator<String> keys = getCollection().keySet().iterator();
+			while (keys.hasNext())
+				if (s.equalsIgnoreCase(keys.next()))
+					keys.remove();
+		}
+		
 		@Override
 		public ArrayList<String> getKeyValues(String s) {
 			for (String k:getCollection().keySet())
@@ -124,6 +138,82 @@ public abstract class HttpMessage {
 
 			return null;
 		}
+		/**
+		 * Values are stored as they were received. Use this method for headers holding a list,
+		 * such as Connection or Accept-Encoding, or for the parameters of Content-Type and Cookie.
+		 * @param separator ',' for list elements, ';' for parameters.
+		 * @return the trimmed non empty elements of all values of the key, or null if it has no value.
+		 */
+		public ArrayList<String> getKeyElements(String s, char separator) {
+			ArrayList<String> values = getKeyValues(s);
+			if (values == null)
+				return null;
+
+			ArrayList<String> elements = new ArrayList<String>();
+			for (String value : values)
+				split(value, separator, elements);
+			return elements;
+		}
+		/**
+		 * @return true if an element of the values of the key equals t, ignoring case.
+		 */
+		public boolean hasKeyElement(String s, String t, char separator) {
+			ArrayList<String> elements = getKeyElements(s, separator);
+			if (elements != null)
+				for (String element : elements)
+					if (t.equalsIgnoreCase(element))
+						return true;
+			return false;
+		}
+		/**
+		 * @param name A parameter name, such as boundary in <code>multipart/form-data; boundary=x</code>.
+		 * @return the unquoted value of the first parameter of that name, or null if there is none.
+		 */
+		public String getKeyParameter(String s, String name) {
+			ArrayList<String> elements = getKeyElements(s, ';');
+			if (elements == null)
+				return null;
+
+			for (String element : elements) {
+				int equals = element.indexOf('=');
+				if (equals != -1 && element.substring(0, equals).trim().equalsIgnoreCase(name))
+					return unquote(element.substring(equals + 1).trim());
+			}
+			return null;
+		}
+		/**
+		 * Split a header value at a separator outside quoted strings.
+		 */
+		static void split(String value, char separator, ArrayList<String> elements) {
+			boolean quoted = false;
+			int start = 0;
+			for (int i = 0; i <= value.length(); i++) {
+				char c = (i < value.length() ? value.charAt(i) : separator);
+				if (c == '"') {
+					quoted = !quoted;
+				} else if (c == '\\' && quoted && i + 1 < value.length()) {
+					i++;
+				} else if (c == separator && (!quoted || i == value.length())) {
+					String element = value.substring(start, Math.min(i, value.length())).trim();
+					if (!element.isEmpty())
+						elements.add(element);
+					start = i + 1;
+				}
+			}
+		}
+
+		static String unquote(String value) {
+			if (value.length() < 2 || value.charAt(0) != '"' || value.charAt(value.length() - 1) != '"')
+				return value;
+			StringBuilder sb = new StringBuilder();
+			for (int i = 1; i < value.length() - 1; i++) {
+				char c = value.charAt(i);
+				if (c == '\\' && i + 1 < value.length() - 1)
+					c = value.charAt(++i);
+				sb.append(c);
+			}
+			return sb.toString();
+		}
 	}	
 	/**
 	 * This class stores the input streams (body) created from either an HttpRequest or an HttpResponse.<br/>
@@ -201,6 +291,15 @@ public abstract class HttpMessage {
 			_httpBodyEntities = new ArrayList<HttpBodyEntity>();
 			addBody(body, isTempFile);
 		}
+		/**
+		 * @param body A stream to set as the body. It is closed when the body is disposed.
+		 * @param bodyLength Number of bytes the stream will provide or -1 if not known in advance.
+		 */
+		public void setBody(InputStream body, long bodyLength) {
+			dispose();
+			_httpBodyEntities = new ArrayList<HttpBodyEntity>();
+			addBody(body, bodyLength, new HttpMultiValueCollection());
+		}
 		/**
 		 * @param body A string element to add to the body list.
 		 */
@@ -238,7 +337,7 @@ public abstract class HttpMessage {
 			InputStream bodyData = new ByteArrayInputStream(body);
 			long bodyLength = body.length;
 
-			_httpBodyEntities.add(new HttpBodyEntity(bodyData, bodyLength, new HttpMultiValueCollection()));
+			_httpBodyEntities.add(new HttpBodyEntity(bodyData, bodyLength, bodyMetadata));
 		}
 		/**
 		 * @param body A file element to add to the body list.
@@ -268,8 +367,29 @@ public abstract class HttpMessage {
 
 			long bodyLength = body.length();
 
-			_httpBodyEntities.add(new HttpBodyEntity(bodyData, bodyLength, new HttpMultiValueCollection()));
+			_httpBodyEntities.add(new HttpBodyEntity(bodyData, bodyLength, bodyMetadata));
 		}	
+		/**
+		 * @param body A stream element to add to the body list. It is closed when the body is disposed.
+		 * @param bodyLength Number of bytes the stream will provide or -1 if not known in advance.
+		 * @param bodyMetadata Used by HttpRequest when parsing multipart. Stores body headers.
+		 */
+		public void addBody(InputStream body, long bodyLength, HttpMultiValueCollection bodyMetadata) {
+			_httpBodyEntities.add(new HttpBodyEntity(body, bodyLength, bodyMetadata));
+		}
+		/**
+		 * Replace a body element without closing it, for streams which read from the element they replace.
+		 * @param body The element to replace.
+		 * @param replacement The stream to use instead. It becomes responsible for closing <code>body</code>.
+		 * @param bodyLength Number of bytes the replacement will provide or -1 if not known in advance.
+		 */
+		public void replaceBody(InputStream body, InputStream replacement, long bodyLength) {
+			for (HttpBodyEntity hbe : _httpBodyEntities)
+				if (hbe.getBodyData() == body) {
+					hbe.setBodyData(replacement);
+					hbe.setBodyLength(bodyLength);
+				}
+		}
 		/**
 		 * @return Total number of bodies.
 		 */
@@ -294,7 +414,7 @@ public abstract class HttpMessage {
 		}
 		/**
 		 * @param body Takes an InputStream of a body.
-		 * @return The size of the InputStream.
+		 * @return The size of the InputStream or -1 if it is not known.
 		 */
 		public long getBodyLength(InputStream body) {
 			for (HttpBodyEntity hbe : _httpBodyEntities)
@@ -355,7 +475,6 @@ public abstract class HttpMessage {
 				return _bodyData;
 			}
 
-			@SuppressWarnings("unused")
 			private void setBodyData(InputStream bodyData) {
 				this._bodyData = bodyData;
 			}
@@ -364,7 +483,6 @@ public abstract class HttpMessage {
 				return _bodyLength;
 			}
 
-			@SuppressWarnings("unused")
 			private void setBodyLength(long bodyLength) {
 				this._bodyLength = bodyLength;
 			}
@@ -122,6 +122,15 @@ public class HttpRequest {
 	public HttpMultiValueCollection getBodyMetadata(InputStream body) {
 		return _body.getBodyMetadata(body);
 	}
+	/**
+	 * Replace a body with a stream reading from it, such as its decompressed content.
+	 * @param body The body to replace.
+	 * @param replacement The stream to read instead. It becomes responsible for closing <code>body</code>.
+	 * @param bodyLength Number of bytes the replacement will provide or -1 if not known in advance.
+	 */
+	public void replaceBody(InputStream body, InputStream replacement, long bodyLength) {
+		_body.replaceBody(body, replacement, bodyLength);
+	}
 	
 	public String toString() {
 		return _method + "\n" + _uri.getPath() + "\n" + _protocolVersion + "\nHeaders:\n" +
@@ -148,10 +157,11 @@ public class HttpRequest {
 
 		public static final String TAG = "Method";
 
-		public static final String[] METHODS = { "GET", "PUT", "POST", "DELETE" };
+		public static final String[] METHODS = { "GET", "PUT", "POST", "DELETE", "HEAD" };
 		public static final String GET = METHODS[0];
 		public static final String PUT = METHODS[1];
 		public static final String POST = METHODS[2];
+		public static final String HEAD = METHODS[4];
 		
 		public static String validate(String method) {
 			for (String s : METHODS)
@@ -0,0 +1,873 @@
+package cy.nicosia.zenont.net.protocol.http;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import cy.nicosia.zenont.base.BytePattern;
+import cy.nicosia.zenont.base.BufferPool;
+import cy.nicosia.zenont.base.ByteQueue;
+import cy.nicosia.zenont.base.Logger;
+import cy.nicosia.zenont.net.protocol.http.HttpMessage.HttpMultiValueCollection;
+import cy.nicosia.zenont.net.protocol.http.HttpMessage.MimeTypes;
+import cy.nicosia.zenont.net.protocol.http.HttpRequest.Method;
+
+/**
+ * Resumable HTTP request decoder independent of any transport.
+ * <p/>
+ * Bytes are handed to the decoder with <code>feed</code> as they arrive, in chunks of any size.
+ * Each call to <code>decode</code> progresses as far as the buffered bytes allow and returns a
+ * complete <b>HttpRequest</b> or null when more input is needed. Bytes following a complete
+ * request stay buffered for the next call.<br/>
+ * An optional <b>Listener</b> is told when the headers and each body part have been decoded.
+ * <p/>
+ * Chunked bodies are decoded incrementally as chunks arrive. Their data is handed to a
+ * <b>BodyListener</b> if one is set, otherwise it is kept in memory up to the spool threshold
+ * and then moved to a temp file, so memory stays bounded whatever the size of the upload.
+ * Bodies framed by Content-Length are stored the same way as they arrive, except url encoded
+ * forms which are parsed whole and so are limited to the maximum form length.<br/>
+ * Multipart bodies are streamed the same way: the data of each part is stored as it arrives,
+ * files always in a temp file, and only the bytes which may start the next boundary stay held.
+ * The listener is told of each part as soon as it ends, while later parts are still arriving.
+ * They are framed by their Content-Length like any other body: bytes after the end boundary are
+ * dropped as epilogue, and a body whose boundaries do not end within that length is refused.
+ * <p/>
+ * Bodies sent with a Content-Encoding are kept as a single raw body, forms and multipart included,
+ * so they can be decompressed before they are read.<br/>
+ * A body is read for any method declaring one with Content-Length or Transfer-Encoding. Requests
+ * declaring both, or conflicting lengths, are refused since other parties may frame them differently.
+ */
+public class HttpRequestDecoder {
+
+	private static final String TAG = "HttpRequestDecoder";
+	private static final BytePattern DOUBLE_EOL = new BytePattern(new byte[] {'\r', '\n', '\r', '\n'});
+
+	//Decoder states
+	private static final int STATE_HEADERS = 0;
+	private static final int STATE_BODY = 1;
+	private static final int STATE_PART_HEADERS = 2;
+	private static final int STATE_PART_BODY = 3;
+	private static final int STATE_PART_BOUNDARY = 4;
+	private static final int STATE_PART_SEEK_BOUNDARY = 5;
+	private static final int STATE_CHUNK_SIZE = 6;
+	private static final int STATE_CHUNK_DATA = 7;
+	private static final int STATE_CHUNK_TRAILER = 8;
+	private static final int STATE_EPILOGUE = 9;
+
+	private static final BytePattern EOL = new BytePattern(new byte[] {'\r', '\n'});
+	//Longest chunk size line accepted, including any chunk extensions
+	private static final int MAX_CHUNK_LINE = 1024;
+
+	//Used to hold bytes received but not yet decoded
+	private final ByteQueue _holdingBuffer;
+	//Pattern last searched for and the number of leading bytes already searched without finding it
+	private BytePattern _scanPattern;
+	private int _scanned;
+	private Listener _listener;
+	private BodyListener _bodyListener;
+	private int _spoolThreshold = 64 * 1024;
+	private long _maxBodyLength = -1L;
+	private long _maxFormLength = 1024 * 1024;
+	private final HttpHeaderParser _headerParser = new HttpHeaderParser(100, 8 * 1024);
+
+	private int _state;
+	private HttpRequest _request;
+	//Bytes of a plain body, or bytes of a multipart body not yet consumed
+	private int _contentLength;
+	//Boundaries of the multipart bodies being decoded, innermost last
+	private ArrayList<BytePattern> _startBoundaries;
+	private HttpMultiValueCollection _partMetadata;
+	private long _chunkRemaining;
+	private long _chunkedLength;
+	//Chunked body or body part received so far, in memory until it outgrows the spool threshold and then in a temp file
+	private ByteArrayOutputStream _spoolMemory;
+	private File _spoolFile;
+	private OutputStream _spoolOutput;
+
+	public HttpRequestDecoder() {
+		this(null);
+	}
+	/**
+	 * @param pool Pool the buffer holding received bytes is leased from, or null to allocate it.
+	 * The buffer is returned to the pool by <code>dispose</code>.
+	 */
+	public HttpRequestDecoder(BufferPool pool) {
+		_holdingBuffer = new ByteQueue(pool, 4 * 1024, 64 * 1024);
+		_startBoundaries = new ArrayList<BytePattern>();
+		reset();
+	}
+	/**
+	 * @param listener Receives decoding events. May be null.
+	 */
+	public void setListener(Listener listener) {
+		_listener = listener;
+	}
+	/**
+	 * @param bodyListener Receives the data of chunked request bodies as it arrives instead of
+	 * the data being stored as a body of the request. May be null.
+	 */
+	public void setBodyListener(BodyListener bodyListener) {
+		_bodyListener = bodyListener;
+	}
+	/**
+	 * @param spoolThreshold Bytes of a chunked or Content-Length body kept in memory before it is moved to a temp file.
+	 */
+	public void setSpoolThreshold(int spoolThreshold) {
+		_spoolThreshold = spoolThreshold;
+	}
+	/**
+	 * @param maxBodyLength Requests with a longer body are refused with 413 as soon as the length is known,
+	 * from the Content-Length header or while chunks arrive. -1 for no limit.
+	 */
+	public void setMaxBodyLength(long maxBodyLength) {
+		_maxBodyLength = maxBodyLength;
+	}
+	/**
+	 * @param maxFormLength Url encoded forms with a longer body are refused with 413, since they are
+	 * held in memory to be parsed. -1 for no limit.
+	 */
+	public void setMaxFormLength(long maxFormLength) {
+		_maxFormLength = maxFormLength;
+	}
+	/**
+	 * @param maxFields Most header fields accepted in a request or body part.
+	 * @param maxLineLength Longest request line or header field line accepted, in bytes.
+	 * Requests over these limits are refused with 414 or 431.
+	 */
+	public void setHeaderLimits(int maxFields, int maxLineLength) {
+		_headerParser.setLimits(maxFields, maxLineLength);
+	}
+	/**
+	 * Append received bytes to the decoder.
+	 * @param data Received bytes. The buffer position is advanced past the consumed bytes.
+	 */
+	public void feed(ByteBuffer data) {
+		_holdingBuffer.concatenate(data);
+	}
+	/**
+	 * Append received bytes to the decoder.
+	 * @param data Array holding the received bytes from index 0.
+	 * @param length Number of bytes received.
+	 */
+	public void feed(byte[] data, int length) {
+		_holdingBuffer.concatenate(data, length);
+	}
+	/**
+	 * @return True if bytes have been received that do not yet form a complete request.
+	 */
+	public boolean hasPartialRequest() {
+		if (_state == STATE_HEADERS)
+			skipEmptyLines();
+		return _state != STATE_HEADERS || _holdingBuffer.length() > 0;
+	}
+	/**
+	 * @return True if the request line and headers of the current request have been decoded.
+	 */
+	public boolean isDecodingBody() {
+		return _state != STATE_HEADERS;
+	}
+	/**
+	 * Decode as far as the buffered bytes allow.
+	 * @return a complete request or null if more bytes are needed.
+	 * @throws DecoderException if the bytes received do not form a valid request.
+	 */
+	public HttpRequest decode() throws DecoderException {
+		try {
+			while (true) {
+				switch (_state) {
+				case STATE_HEADERS:
+					if (!decodeHeaders())
+						return null;
+					break;
+				case STATE_BODY:
+					if (!decodeBody())
+						return null;
+					break;
+				case STATE_PART_HEADERS:
+					if (!decodePartHeaders())
+						return awaitPart();
+					break;
+				case STATE_PART_BODY:
+					if (!decodePartBody())
+						return awaitPart();
+					break;
+				case STATE_PART_SEEK_BOUNDARY:
+					if (!seekBoundary())
+						return awaitPart();
+					break;
+				case STATE_PART_BOUNDARY:
+					if (!decodeBoundary())
+						return awaitPart();
+					break;
+				case STATE_CHUNK_SIZE:
+					if (!decodeChunkSize())
+						return null;
+					break;
+				case STATE_CHUNK_DATA:
+					if (!decodeChunkData())
+						return null;
+					break;
+				case STATE_CHUNK_TRAILER:
+					if (!decodeChunkTrailer())
+						return null;
+					break;
+				case STATE_EPILOGUE:
+					if (!skipEpilogue())
+						return null;
+					break;
+				}
+
+				if (_request != null && _state == STATE_HEADERS)
+					return complete();
+			}
+		} catch (DecoderException ex) {
+			disposeRequest();
+			throw ex;
+		} catch (Exception ex) {
+			String message = (_state == STATE_HEADERS ? "Invalid Headers" : "Invalid Body");
+			disposeRequest();
+			throw new DecoderException(HttpResponse.Status.BAD_REQUEST, message, ex);
+		}
+	}
+	/**
+	 * Drop any partially decoded request and buffered bytes.
+	 */
+	public void dispose() {
+		disposeRequest();
+		_holdingBuffer.release();
+		_scanned = 0;
+	}
+
+	private HttpRequest complete() {
+		HttpRequest request = _request;
+		reset();
+		return request;
+	}
+
+	private void reset() {
+		_state = STATE_HEADERS;
+		_request = null;
+		_contentLength = 0;
+		_startBoundaries.clear();
+		_partMetadata = null;
+		_chunkRemaining = 0L;
+		_chunkedLength = 0L;
+		_spoolMemory = null;
+		_spoolFile = null;
+		_spoolOutput = null;
+	}
+
+	private void disposeRequest() {
+		if (_request != null)
+			_request.dispose();
+		//A chunked body or body part not yet handed to the request
+		if (_spoolOutput != null) {
+			try {
+				_spoolOutput.close();
+			} catch (IOException e) {
+				Logger.error(TAG, e);
+			}
+			_spoolFile.delete();
+		}
+		reset();
+	}
+
+	private boolean decodeHeaders() throws Exception {
+		skipEmptyLines();
+		//Check to see if we have a double EOL in our buffer
+		int splitIndex = find(DOUBLE_EOL);
+		if (splitIndex == -1) {
+			if (_holdingBuffer.length() > _headerParser.getMaxHeaderLength())
+				throw new DecoderException(HttpResponse.Status.REQUEST_HEADER_FIELDS_TOO_LARGE, "Headers too long");
+			return false;
+		}
+
+		Logger.debug(TAG, "Parsing headers");
+
+		HttpRequest request = new HttpRequest();
+		_request = request;
+		byte[] array = _holdingBuffer.getArray();
+		int offset = _holdingBuffer.getOffset();
+
+		//Parse Request Line
+		int fieldsStart = _headerParser.parseRequestLine(array, offset, offset + splitIndex, request);
+		Map<String, String> parameters = null;
+		String query = request.getUri().getQuery();
+		//Parse any parameters if GET or HEAD was requested
+		if ((request.getMethod().equals(Method.GET) || request.getMethod().equals(Method.HEAD)) && query != null)
+			parameters = parseParameters(parsePercentEncoding(query));
+		request.setParameters(parameters);
+
+		//Parse Headers
+		HttpMultiValueCollection headers = new HttpMultiValueCollection();
+		_headerParser.parseFields(array, fieldsStart, offset + splitIndex, headers);
+		request.setHeaders(headers);
+		//extract remaining data which might include body or next request
+		shift(splitIndex);
+
+		if (Logger._debug)
+			Logger.debug(TAG, headers.toString());
+
+		//Only 100-continue is defined
+		if (request.getHeaders().hasKey("Expect") && !request.getHeaders().hasKeyElement("Expect", "100-continue", ','))
+			throw new DecoderException(HttpResponse.Status.EXPECTATION_FAILED, "Unsupported Expect");
+
+		//Get Body, framed the same way whatever the method so its bytes are never taken for the next request
+		long contentLength = contentLength(headers);
+		//Refuse oversized bodies before reading any of them
+		if (contentLength > Integer.MAX_VALUE || (_maxBodyLength >= 0L && contentLength > _maxBodyLength))
+			throw new DecoderException(HttpResponse.Status.PAYLOAD_TOO_LARGE, "Body too large");
+		if (headers.hasKey("Transfer-Encoding")) {
+			//Either header could frame the body, so a proxy in front may disagree on where it ends
+			if (contentLength != -1L)
+				throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Both Transfer-Encoding and Content-Length");
+			//Chunked bodies are decoded as a single raw body whatever their content type
+			if (!isChunked(headers))
+				throw new DecoderException(HttpResponse.Status.NOT_IMPLEMENTED, "Unsupported Transfer-Encoding");
+			Logger.debug(TAG, "Parsing chunked body");
+			_state = STATE_CHUNK_SIZE;
+			_spoolMemory = new ByteArrayOutputStream();
+		} else if (contentLength == -1L) {
+			if (request.getMethod().equals(Method.POST) || request.getMethod().equals(Method.PUT))
+				throw new DecoderException(HttpResponse.Status.LENGTH_REQUIRED, "Missing Content-Length");
+		} else if (headers.hasKeyElement("Content-Type", MimeTypes.MULTIPART_FORM, ';') &&
+				!headers.hasKey("Content-Encoding")) {
+			Logger.debug(TAG, "Parsing multipart");
+			_state = STATE_PART_SEEK_BOUNDARY;
+			_contentLength = (int) contentLength;
+			pushBoundary(headers);
+		} else if (contentLength > 0L) {
+			if (_maxFormLength >= 0L && contentLength > _maxFormLength && isForm(headers))
+				throw new DecoderException(HttpResponse.Status.PAYLOAD_TOO_LARGE, "Form too large");
+			_state = STATE_BODY;
+			_contentLength = (int) contentLength;
+		}
+
+		if (_listener != null)
+			_listener.onHeaders(request);
+
+		return true;
+	}
+
+	/**
+	 * Drop line breaks left between requests.
+	 */
+	private void skipEmptyLines() {
+		int length = _holdingBuffer.length();
+		int index = 0;
+		while (index < length && (_holdingBuffer.get(index) == '\r' || _holdingBuffer.get(index) == '\n'))
+			index++;
+		if (index > 0)
+			shift(index);
+	}
+
+	/**
+	 * @return the body length declared by Content-Length, or -1 if there is none.
+	 * @throws DecoderException if the header is invalid or lists different lengths, as RFC 7230 3.3.2 requires.
+	 */
+	private static long contentLength(HttpMultiValueCollection headers) throws DecoderException {
+		ArrayList<String> values = headers.getKeyElements("Content-Length", ',');
+		if (values == null)
+			return -1L;
+
+		long contentLength = -1L;
+		for (String value : values) {
+			//Digits only, short enough not to overflow
+			if (value.length() > 18)
+				throw new DecoderException(HttpResponse.Status.PAYLOAD_TOO_LARGE, "Body too large");
+			for (int i = 0; i < value.length(); i++)
+				if (value.charAt(i) < '0' || value.charAt(i) > '9')
+					throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Invalid Content-Length");
+			long length = Long.parseLong(value);
+			if (contentLength != -1L && length != contentLength)
+				throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Conflicting Content-Length");
+			contentLength = length;
+		}
+		if (contentLength == -1L)
+			throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Invalid Content-Length");
+		return contentLength;
+	}
+	/**
+	 * @return True if chunked is the final transfer coding applied to the body.
+	 */
+	private static boolean isChunked(HttpMultiValueCollection headers) {
+		ArrayList<String> codings = headers.getKeyElements("Transfer-Encoding", ',');
+		return !codings.isEmpty() && codings.get(codings.size() - 1).equalsIgnoreCase("chunked");
+	}
+
+	private boolean decodeChunkSize() throws Exception {
+		int lineEnd = find(EOL);
+		if (lineEnd == -1) {
+			if (_holdingBuffer.length() > MAX_CHUNK_LINE)
+				throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Invalid Chunk Size");
+			return false;
+		}
+
+		//Chunk size in hex, optionally followed by extensions which are ignored
+		long size = 0L;
+		int index = 0;
+		int digits = 0;
+		for (; index < lineEnd - 2; index++, digits++) {
+			int digit = Character.digit(_holdingBuffer.get(index), 16);
+			if (digit == -1)
+				break;
+			size = (size << 4) | digit;
+			if (size > Integer.MAX_VALUE)
+				throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Invalid Chunk Size");
+		}
+		if (digits == 0 || (index < lineEnd - 2 && _holdingBuffer.get(index) != ';' &&
+				_holdingBuffer.get(index) != ' ' && _holdingBuffer.get(index) != '\t'))
+			throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Invalid Chunk Size");
+
+		shift(lineEnd);
+		if (size == 0L) {
+			_state = STATE_CHUNK_TRAILER;
+		} else {
+			_chunkRemaining = size;
+			_state = STATE_CHUNK_DATA;
+		}
+		return true;
+	}
+
+	private boolean decodeChunkData() throws Exception {
+		if (_chunkRemaining > 0L) {
+			int length = (int) Math.min(_chunkRemaining, _holdingBuffer.length());
+			if (length == 0)
+				return false;
+
+			spoolChunk(_holdingBuffer.getArray(), _holdingBuffer.getOffset(), length);
+			shift(length);
+			_chunkRemaining -= length;
+			if (_chunkRemaining > 0L)
+				return false;
+		}
+
+		//Every chunk ends with a line break
+		if (_holdingBuffer.length() < EOL.length())
+			return false;
+		if (_holdingBuffer.get(0) != '\r' || _holdingBuffer.get(1) != '\n')
+			throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Invalid Chunk");
+		shift(EOL.length());
+		_state = STATE_CHUNK_SIZE;
+		return true;
+	}
+
+	private boolean decodeChunkTrailer() throws Exception {
+		int lineEnd = find(EOL);
+		if (lineEnd == -1) {
+			if (_holdingBuffer.length() > MAX_CHUNK_LINE)
+				throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Invalid Trailer");
+			return false;
+		}
+		shift(lineEnd);
+
+		//Trailer fields are skipped, an empty line ends the body
+		if (lineEnd > EOL.length())
+			return true;
+
+		addSpooledBody(new HttpMultiValueCollection());
+		_state = STATE_HEADERS;
+
+		Logger.debug(TAG, "Finished parsing chunked body of length " + _chunkedLength);
+
+		if (_listener != null && _request.getBodyCount() > 0)
+			_listener.onBodyPart(_request, _request.getBodyCount() - 1);
+
+		return true;
+	}
+	/**
+	 * Hand chunk data to the body listener or store it.
+	 */
+	private void spoolChunk(byte[] data, int offset, int length) throws Exception {
+		_chunkedLength += length;
+		if (_maxBodyLength >= 0L && _chunkedLength > _maxBodyLength)
+			throw new DecoderException(HttpResponse.Status.PAYLOAD_TOO_LARGE, "Body too large");
+		if (_bodyListener != null) {
+			_bodyListener.onBodyData(_request, data, offset, length);
+			return;
+		}
+		spool(data, offset, length, "$SocketD-chunked");
+	}
+	/**
+	 * Store body data, moving it to a temp file once it outgrows the spool threshold.
+	 */
+	private void spool(byte[] data, int offset, int length, String prefix) throws Exception {
+		if (_spoolOutput == null && _spoolMemory.size() + length > _spoolThreshold)
+			openSpoolFile(prefix);
+
+		if (_spoolOutput != null)
+			_spoolOutput.write(data, offset, length);
+		else
+			_spoolMemory.write(data, offset, length);
+	}
+
+	private void openSpoolFile(String prefix) throws Exception {
+		_spoolFile = File.createTempFile(prefix, ".tmpsd");
+		Logger.debug(TAG, "Spooling body to: " + _spoolFile.getAbsolutePath());
+		_spoolOutput = new BufferedOutputStream(new FileOutputStream(_spoolFile));
+		if (_spoolMemory != null) {
+			_spoolMemory.writeTo(_spoolOutput);
+			_spoolMemory = null;
+		}
+	}
+	/**
+	 * Hand the stored body to the request, which becomes responsible for it.
+	 */
+	private void addSpooledBody(HttpMultiValueCollection metadata) throws Exception {
+		if (_spoolOutput != null) {
+			_spoolOutput.close();
+			_request.addBody(_spoolFile, metadata, true);
+		} else if (_spoolMemory != null) {
+			_request.addBody(_spoolMemory.toByteArray(), metadata);
+		}
+		_spoolOutput = null;
+		_spoolFile = null;
+		_spoolMemory = null;
+	}
+
+	private boolean decodeBody() throws Exception {
+		boolean form = isForm(_request.getHeaders());
+		boolean spooling = (_spoolMemory != null || _spoolOutput != null);
+		if (_holdingBuffer.length() < _contentLength) {
+			//Raw bodies are stored as they arrive so only the spool threshold of them stays in memory
+			if (!form && _holdingBuffer.length() > 0) {
+				if (!spooling)
+					_spoolMemory = new ByteArrayOutputStream();
+				int length = _holdingBuffer.length();
+				spool(_holdingBuffer.getArray(), _holdingBuffer.getOffset(), length, "$SocketD-body");
+				shift(length);
+				_contentLength -= length;
+			}
+			return false;
+		}
+
+		Logger.debug(TAG, "Parsing body");
+
+		//get application/x-www-form-urlencoded
+		if (form) {
+			String parameterLine = parsePercentEncoding(new String(_holdingBuffer.getArray(), _holdingBuffer.getOffset(), _contentLength, "UTF-8"));
+			_request.setParameters(parseParameters(parameterLine));
+
+			_request.addBody(new byte[0]);
+		} else if (spooling) {
+			spool(_holdingBuffer.getArray(), _holdingBuffer.getOffset(), _contentLength, "$SocketD-body");
+			addSpooledBody(new HttpMultiValueCollection());
+		} else { //get raw body received at once
+			_request.addBody(Arrays.copyOfRange(_holdingBuffer.getArray(), _holdingBuffer.getOffset(), _holdingBuffer.getOffset() + _contentLength));
+		}
+
+		//extract remaining data which might include next request
+		shift(_contentLength);
+		_contentLength = 0;
+		_state = STATE_HEADERS;
+
+		if (_listener != null)
+			_listener.onBodyPart(_request, _request.getBodyCount() - 1);
+
+		return true;
+	}
+
+	private static boolean isForm(HttpMultiValueCollection headers) {
+		return headers.hasKeyElement("Content-Type", MimeTypes.URLENCODED, ';') && !headers.hasKey("Content-Encoding");
+	}
+
+	private boolean decodePartHeaders() throws Exception {
+		//Find 2 EOL in holdingBuffer
+		int splitIndex = find(DOUBLE_EOL);
+		if (splitIndex == -1)
+			return false;
+
+		Logger.debug(TAG, "Found boundary");
+
+		Logger.debug(TAG, "Parsing body metadata");
+		byte[] array = _holdingBuffer.getArray();
+		int offset = _holdingBuffer.getOffset();
+		//Dispose of boundary
+		int fieldsStart = HttpHeaderParser.lineEnd(array, offset, offset + splitIndex) + 1;
+		//Parse body metadata
+		_partMetadata = new HttpMultiValueCollection();
+		_headerParser.parseFields(array, fieldsStart, offset + splitIndex, _partMetadata);
+		//extract remaining data
+		shiftBody(splitIndex);
+
+		//Inner boundary found, its parts make up the body of this part
+		if (_partMetadata.hasKeyElement("Content-Type", MimeTypes.MULTIPART_MIXED, ';')) {
+			pushBoundary(_partMetadata);
+			_partMetadata = null;
+			_state = STATE_PART_SEEK_BOUNDARY;
+		} else if (_partMetadata.getKeyParameter("Content-Disposition", "filename") != null) {
+			Logger.debug(TAG, "Found file body");
+
+			String tmpFilename = _partMetadata.getKeyParameter("Content-Disposition", "filename");
+			//Files go to disk as they arrive whatever their size
+			openSpoolFile("$SocketD-" + tmpFilename);
+			_state = STATE_PART_BODY;
+		} else {
+			Logger.debug(TAG, "Found body");
+
+			_spoolMemory = new ByteArrayOutputStream();
+			_state = STATE_PART_BODY;
+		}
+		return true;
+	}
+
+	private boolean decodePartBody() throws Exception {
+		BytePattern startBoundary = currentBoundary();
+
+		int splitIndex = find(startBoundary);
+		if (splitIndex == -1) {
+			//Store what cannot be the line break and boundary ending the part, only a boundary's length stays held
+			int length = _holdingBuffer.length() - startBoundary.length() - EOL.length() + 1;
+			if (length > 0) {
+				spool(_holdingBuffer.getArray(), _holdingBuffer.getOffset(), length, "$SocketD-part");
+				shiftBody(length);
+			}
+			return false;
+		}
+
+		splitIndex = splitIndex - startBoundary.length();
+		//Remove newline after body
+		spool(_holdingBuffer.getArray(), _holdingBuffer.getOffset(), Math.max(0, splitIndex - EOL.length()), "$SocketD-part");
+		addSpooledBody(_partMetadata);
+
+		//extract remaining data
+		shiftBody(splitIndex);
+		_partMetadata = null;
+		_state = STATE_PART_BOUNDARY;
+
+		Logger.debug(TAG, "Finished parsing body");
+
+		if (_listener != null)
+			_listener.onBodyPart(_request, _request.getBodyCount() - 1);
+
+		return true;
+	}
+
+	private boolean seekBoundary() throws DecoderException {
+		BytePattern startBoundary = currentBoundary();
+
+		int splitIndex = find(startBoundary);
+		if (splitIndex == -1) {
+			//Drop the preamble except what may be the start of the boundary
+			int length = _holdingBuffer.length() - startBoundary.length() + 1;
+			if (length > 0)
+				shiftBody(length);
+			return false;
+		}
+
+		shiftBody(splitIndex - startBoundary.length());
+		_state = STATE_PART_BOUNDARY;
+		return true;
+	}
+
+	private boolean decodeBoundary() throws DecoderException {
+		BytePattern startBoundary = currentBoundary();
+		//Need at least two more bytes to make sure it is not a partial end boundary that looks like a start boundary
+		if (_holdingBuffer.length() < startBoundary.length() + 2)
+			return false;
+
+		if (_holdingBuffer.get(startBoundary.length()) == '-' && _holdingBuffer.get(startBoundary.length() + 1) == '-') {
+			//End boundary found, continue with the enclosing multipart body if any
+			shiftBody(startBoundary.length() + 2);
+			_startBoundaries.remove(_startBoundaries.size() - 1);
+
+			if (_startBoundaries.isEmpty()) {
+				Logger.debug(TAG, "Found boundary end");
+				_state = STATE_EPILOGUE;
+			} else {
+				_state = STATE_PART_SEEK_BOUNDARY;
+			}
+		} else {
+			_state = STATE_PART_HEADERS;
+		}
+		return true;
+	}
+
+	/**
+	 * Drop what follows the end boundary up to the length of the multipart body.
+	 */
+	private boolean skipEpilogue() throws DecoderException {
+		shiftBody(Math.min(_holdingBuffer.length(), _contentLength));
+		if (_contentLength > 0)
+			return false;
+		_state = STATE_HEADERS;
+		return true;
+	}
+	/**
+	 * @return null once a multipart state needs more bytes, as long as the body can still hold them.
+	 * @throws DecoderException if all bytes of the body have arrived without its end boundary.
+	 */
+	private HttpRequest awaitPart() throws DecoderException {
+		if (_holdingBuffer.length() >= _contentLength)
+			throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Unterminated multipart body");
+		return null;
+	}
+
+	private void pushBoundary(HttpMultiValueCollection metadata) throws Exception {
+		//Get boundary
+		String startBoundary = metadata.getKeyParameter("Content-Type", "boundary");
+		if (startBoundary == null || startBoundary.isEmpty())
+			throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Missing boundary");
+		startBoundary = "--" + startBoundary;
+		_startBoundaries.add(new BytePattern(startBoundary.getBytes("UTF-8")));
+	}
+
+	private BytePattern currentBoundary() {
+		return _startBoundaries.get(_startBoundaries.size() - 1);
+	}
+
+	/**
+	 * Search the held bytes, resuming after the bytes already searched for the same pattern
+	 * so a request arriving in many reads is not searched from its start on every read.
+	 * @return the index after the first occurrence of the pattern, or -1 if there is none.
+	 */
+	private int find(BytePattern pattern) {
+		//A match may have started within the last bytes searched
+		int from = (pattern == _scanPattern ? Math.max(0, _scanned - pattern.length() + 1) : 0);
+		int index = _holdingBuffer.find(pattern, from);
+		_scanPattern = pattern;
+		_scanned = (index == -1 ? _holdingBuffer.length() : 0);
+		return index;
+	}
+	/**
+	 * Drop decoded bytes of a multipart body, which must lie within its Content-Length.
+	 */
+	private void shiftBody(int count) throws DecoderException {
+		if (count > _contentLength)
+			throw new DecoderException(HttpResponse.Status.BAD_REQUEST, "Multipart body longer than Content-Length");
+		_contentLength -= count;
+		shift(count);
+	}
+	/**
+	 * Drop decoded bytes from the start of the held bytes.
+	 */
+	private void shift(int count) {
+		_holdingBuffer.shift(count);
+		_scanned = Math.max(0, _scanned - count);
+	}
+
+	static Map<String, String> parseParameters(String parameterLine) {
+		assert parameterLine != null;
+		Map<String, String> parameters = new HashMap<String, String>();
+		StringTokenizer parms = new StringTokenizer(parameterLine, "&");
+		//Parse pairs
+		while (parms.hasMoreTokens()) {
+			StringTokenizer pair = new StringTokenizer(parms.nextToken(), "=");
+			String key = pair.nextToken();
+			String value = "";
+			//Handle 'key=' case with no value
+			if (pair.hasMoreTokens())
+				value = pair.nextToken();
+
+			parameters.put(key, value);
+		}
+
+		return parameters;
+	}
+
+	static String parsePercentEncoding(String uriString) {
+		//Rebuild string and decode percent encoding
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < uriString.length(); i++) {
+			char c = uriString.charAt(i);
+			switch (c) {
+			case '+':
+				s.append(' ');
+				break;
+			case '%':
+				s.append((char) Integer.parseInt(uriString.substring(i + 1, i + 3), 16));
+				i += 2;
+				break;
+			default:
+				s.append(c);
+				break;
+			}
+		}
+
+		return s.toString();
+	}
+
+	/**
+	 * Receives events while a request is being decoded.
+	 * Events are delivered on the thread calling <code>decode</code>.
+	 */
+	public interface Listener {
+		/**
+		 * Called once the request line and headers have been decoded, before any body bytes are consumed.
+		 * @param request The request being decoded.
+		 * @throws Exception Aborts decoding of the request.
+		 */
+		public void onHeaders(HttpRequest request) throws Exception;
+		/**
+		 * Called each time a body or a part of a multipart body has been decoded.
+		 * @param request The request being decoded.
+		 * @param index Index of the body in the request.
+		 * @throws Exception Aborts decoding of the request.
+		 */
+		public void onBodyPart(HttpRequest request, int index) throws Exception;
+	}
+	/**
+	 * Receives the data of chunked request bodies as it is decoded, so bodies of any size can be
+	 * processed without being stored. Events are delivered on the thread calling <code>decode</code>.
+	 */
+	public interface BodyListener {
+		/**
+		 * @param request The request being decoded.
+		 * @param data Array holding the body data. Only valid during the call.
+		 * @param offset Index of the first byte of body data.
+		 * @param length Number of bytes of body data.
+		 * @throws Exception Aborts decoding of the request.
+		 */
+		public void onBodyData(HttpRequest request, byte[] data, int offset, int length) throws Exception;
+	}
+	/**
+	 * Thrown when a request cannot be decoded.<br/>
+	 * Carries the response status that should be sent to the client.
+	 */
+	public static class DecoderException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String _status;
+		private final HttpResponse _response;
+
+		public DecoderException(String status, String message) {
+			this(status, message, null);
+		}
+
+		public DecoderException(String status, String message, Throwable cause) {
+			super(message, cause);
+			_status = status;
+			_response = null;
+		}
+		/**
+		 * @param response A complete response to send instead of one built from the status.
+		 */
+		public DecoderException(HttpResponse response, String message) {
+			super(message);
+			_status = response.geHttpResponseStatus();
+			_response = response;
+		}
+		/**
+		 * @return One of the <b>HttpResponse.Status</b> constants.
+		 */
+		public String getStatus() {
+			return _status;
+		}
+		/**
+		 * @return the response to send or null if one should be built from the status.
+		 */
+		public HttpResponse getResponse() {
+			return _response;
+		}
+	}
+}
@@ -11,6 +11,7 @@ public class HttpResponse {
 
 	public static final String TAG = "HttpResponse";
 
+	private String _protocolVersion;
 	private String _httpResponseStatus;
 	private HttpMultiValueCollection _headers;
 	private HttpBody _body;
@@ -21,6 +22,7 @@ public class HttpResponse {
 
 	private HttpResponse(String httpResponseStatus, HttpMultiValueCollection httpHeaders, HttpBody body) {
 		assert(httpResponseStatus != null) : "Response Status cannot be null";
+		_protocolVersion = HttpRequest.ProtocolVersion.HTTP_1_1;
 		_httpResponseStatus = httpResponseStatus;
 		_headers = httpHeaders;
 		_body = body;
@@ -42,8 +44,27 @@ public class HttpResponse {
 		setBody(body);
 	}
 
+	/**
+	 * @param body A stream producing the body. Its length is not known in advance, so it is sent
+	 * chunked to HTTP/1.1 clients and delimited by closing the connection for HTTP/1.0 clients.
+	 */
+	public HttpResponse(String httpResponseStatus, HttpMultiValueCollection httpHeaders, InputStream body)  {
+		this(httpResponseStatus, (httpHeaders != null ? httpHeaders : new HttpMultiValueCollection()), new HttpBody());
+		setBody(body);
+	}
+
 	public String getHttpResponseLine() {
-		return "HTTP/1.0 " + _httpResponseStatus + "\r\n";
+		return _protocolVersion + " " + _httpResponseStatus + "\r\n";
+	}
+
+	public String getProtocolVersion() {
+		return _protocolVersion;
+	}
+	/**
+	 * @param protocolVersion One of the <b>HttpRequest.ProtocolVersion</b> constants. Defaults to HTTP/1.1.
+	 */
+	public void setProtocolVersion(String protocolVersion) {
+		this._protocolVersion = protocolVersion;
 	}
 	/**
 	 * @return a string object formatted for output in a HTTP request or response.
@@ -69,7 +90,7 @@ public class HttpResponse {
 	}
 
 	public void setBody(byte[] body) {
-		setBody(body);
+		_body.setBody(body);
 	}
 
 	public void setBody(byte[] body, HttpMultiValueCollection bodyMetadata) {
@@ -93,8 +114,35 @@ public class HttpResponse {
 		_body.setBody(body, isTempFile);
 	}
 
+	/**
+	 * @param body A stream producing the body as it is sent. Use for output of unknown length
+	 * which should not be held in memory or a temp file first.
+	 */
+	public void setBody(InputStream body) {
+		setBody(body, -1L);
+	}
+	/**
+	 * @param body A stream producing the body as it is sent.
+	 * @param bodyLength Number of bytes the stream will provide or -1 if not known in advance.
+	 */
+	public void setBody(InputStream body, long bodyLength) {
+		_body.setBody(body, bodyLength);
+	}
+
+	/**
+	 * Replace the body with a stream reading from it, such as a part of a file body.
+	 * @param replacement The stream to send instead. It becomes responsible for closing the current body.
+	 * @param bodyLength Number of bytes the replacement will provide or -1 if not known in advance.
+	 */
+	public void replaceBody(InputStream replacement, long bodyLength) {
+		_body.replaceBody(getBody(), replacement, bodyLength);
+	}
+
+	/**
+	 * @return the body or null if no body has been set.
+	 */
 	public InputStream getBody() {
-		return _body.getBody(0);
+		return (_body.getBodyCount() > 0 ? _body.getBody(0) : null);
 	}
 
 	public long getBodyLength(InputStream body) {
@@ -115,6 +163,7 @@ public class HttpResponse {
 
 	public static abstract class Status {
 		//HttpResponse Status tags
+		public static final String CONTINUE = "100 Continue";
 		public static final String OK = "200 OK"; 
 		public static final String CREATED = "201 Created";
 		public static final String NO_CONTENT = "204 No Content";
@@ -125,8 +174,18 @@ public class HttpResponse {
 		public static final String UNAUTHORIZED = "401 Unauthorized";
 		public static final String FORBIDDEN = "403 Forbidden";
 		public static final String NOT_FOUND = "404 Not Found";
+		public static final String METHOD_NOT_ALLOWED = "405 Method Not Allowed";
 		public static final String REQUEST_TIMEOUT = "408 Request Timeout";
+		public static final String LENGTH_REQUIRED = "411 Length Required";
+		public static final String PAYLOAD_TOO_LARGE = "413 Payload Too Large";
+		public static final String URI_TOO_LONG = "414 URI Too Long";
+		public static final String UNSUPPORTED_MEDIA_TYPE = "415 Unsupported Media Type";
+		public static final String RANGE_NOT_SATISFIABLE = "416 Range Not Satisfiable";
+		public static final String EXPECTATION_FAILED = "417 Expectation Failed";
+		public static final String REQUEST_HEADER_FIELDS_TOO_LARGE = "431 Request Header Fields Too Large";
 		public static final String INTERNAL_ERROR = "500 Internal Server Error";
+		public static final String NOT_IMPLEMENTED = "501 Not Implemented";
+		public static final String HTTP_VERSION_NOT_SUPPORTED = "505 HTTP Version Not Supported";
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,225 @@
+package cy.nicosia.zenont.net.protocol.http;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import cy.nicosia.zenont.base.Logger;
+import cy.nicosia.zenont.net.protocol.http.HttpMessage.HttpMultiValueCollection;
+
+/**
+ * HTTP response encoder independent of any transport.
+ * <p/>
+ * <code>encodeHead</code> starts a response and returns its status line and headers.
+ * The body is then produced by calling <code>encodeBody</code> until it returns -1.
+ * Both only fill ByteBuffers so they can be written to a stream or a channel.
+ * <p/>
+ * Bodies of unknown length are sent with chunked Transfer-Encoding when chunking is allowed,
+ * otherwise they are written as is and the connection must be closed to end them.
+ */
+public class HttpResponseEncoder {
+
+	private static final String TAG = "HttpResponseEncoder";
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+	private static final byte[] LAST_CHUNK = new byte[] {'0', '\r', '\n', '\r', '\n'};
+	//Smallest buffer able to hold a chunk header, one byte of data and the chunk end
+	private static final int MIN_CHUNK_BUFFER = 16;
+
+	private HttpResponse _response;
+	private InputStream _body;
+	private long _bodyRemaining;
+	private byte[] _transferArray;
+	private boolean _chunkingAllowed = true;
+	private boolean _bodyOmitted;
+	private boolean _chunked;
+	private boolean _lastChunkSent;
+	/**
+	 * @param chunkingAllowed False for HTTP/1.0 clients which cannot decode chunked bodies.
+	 */
+	public void setChunkingAllowed(boolean chunkingAllowed) {
+		_chunkingAllowed = chunkingAllowed;
+	}
+	/**
+	 * @param bodyOmitted True when answering HEAD. Headers are encoded as for GET, including the
+	 * Content-Length of the body, but <code>encodeBody</code> produces none of it.
+	 */
+	public void setBodyOmitted(boolean bodyOmitted) {
+		_bodyOmitted = bodyOmitted;
+	}
+	/**
+	 * @param response A response about to be encoded.
+	 * @return True if the body can only be ended by closing the connection.
+	 */
+	public boolean isCloseDelimited(HttpResponse response) {
+		InputStream body = response.getBody();
+		return (!_bodyOmitted && !_chunkingAllowed && body != null && hasBody(response) && response.getBodyLength(body) < 0L);
+	}
+	/**
+	 * Add any missing headers and encode the status line and headers of a response.
+	 * @param response Response to encode. Becomes the current response for <code>encodeBody</code>.
+	 * @return a buffer ready to be written.
+	 * @throws UnsupportedEncodingException
+	 */
+	public ByteBuffer encodeHead(HttpResponse response) throws UnsupportedEncodingException {
+		_response = response;
+		_body = response.getBody();
+		_bodyRemaining = (_body != null && hasBody(response) ? response.getBodyLength(_body) : 0L);
+		_chunked = (_bodyRemaining < 0L && _chunkingAllowed);
+		_lastChunkSent = false;
+
+		//Check for needed headers
+		if (response.getHeaders() == null)
+			response.setHeaders(new HttpMultiValueCollection());
+
+		if (!response.getHeaders().hasKey("Date")) {
+			SimpleDateFormat gmtFrmt =
+					new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+			gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+			response.getHeaders().overwriteKeyValue("Date", gmtFrmt.format(new Date()));
+		}
+
+		//Always frame the body so the connection can carry another response after it
+		if (_chunked) {
+			response.getHeaders().removeKey("Content-Length");
+			response.getHeaders().overwriteKeyValue("Transfer-Encoding", "chunked");
+		} else if (!response.getHeaders().hasKey("Content-Length") && hasBody(response) && _bodyRemaining >= 0L) {
+			response.getHeaders().overwriteKeyValue(
+					"Content-Length", Long.toString(_bodyRemaining));
+		}
+		if (_bodyOmitted) {
+			_bodyRemaining = 0L;
+			_chunked = false;
+		}
+
+		Logger.debug(TAG, response.getHttpResponseLine());
+		Logger.debug(TAG, response.getHeadersResponseFormat());
+
+		String head = response.getHttpResponseLine() + response.getHeadersResponseFormat() + "\r\n";
+		return ByteBuffer.wrap(head.getBytes("ISO-8859-1"));
+	}
+	/**
+	 * Fill a buffer with the next bytes of the current response body.
+	 * @param dst Buffer to fill from its position up to its limit.
+	 * @return the number of bytes added or -1 when the body has been fully encoded.
+	 * @throws IOException if the body cannot be read.
+	 */
+	public int encodeBody(ByteBuffer dst) throws IOException {
+		if (_chunked)
+			return encodeChunk(dst);
+
+		if (_body == null || _bodyRemaining == 0L) {
+			_response = null;
+			_body = null;
+			return -1;
+		}
+
+		//A negative remaining length streams the body until it ends
+		int length = (int) (_bodyRemaining < 0L ? dst.remaining() : Math.min(dst.remaining(), _bodyRemaining));
+		int read = read(dst, length);
+
+		if (read == -1) {
+			//Body shorter than its declared length
+			if (_bodyRemaining > 0L)
+				Logger.error(TAG, "Body ended before its declared length");
+			_bodyRemaining = 0L;
+			return -1;
+		}
+
+		if (_bodyRemaining > 0L)
+			_bodyRemaining -= read;
+		return read;
+	}
+	/**
+	 * @return the channel of the current body if it is a file with a known length still to be sent, otherwise null.
+	 * The caller may send the body itself with the channel and report it with <code>transferred</code>.
+	 */
+	public FileChannel getFileChannel() {
+		if (_chunked || _bodyRemaining <= 0L || !(_body instanceof FileInputStream))
+			return null;
+		return ((FileInputStream) _body).getChannel();
+	}
+	/**
+	 * Account for body bytes sent from the file channel instead of through <code>encodeBody</code>.
+	 * @param count Number of bytes sent.
+	 * @throws IOException if the file position cannot be moved past the bytes sent.
+	 */
+	public void transferred(long count) throws IOException {
+		FileChannel channel = ((FileInputStream) _body).getChannel();
+		channel.position(channel.position() + count);
+		_bodyRemaining -= count;
+	}
+	/**
+	 * Fill a buffer with one chunk of the body, or with the last chunk once the body has ended.
+	 * The chunk size is zero padded to a fixed width so the data can be read in place after it.
+	 */
+	private int encodeChunk(ByteBuffer dst) throws IOException {
+		if (_lastChunkSent) {
+			_response = null;
+			_body = null;
+			_chunked = false;
+			return -1;
+		}
+		if (dst.remaining() < MIN_CHUNK_BUFFER)
+			throw new IllegalArgumentException("Buffer too small for a chunk");
+
+		int start = dst.position();
+		int width = (32 - Integer.numberOfLeadingZeros(dst.remaining()) + 3) / 4;
+		dst.position(start + width + 2);
+		int read = read(dst, dst.remaining() - 2);
+
+		if (read == -1) {
+			dst.position(start);
+			dst.put(LAST_CHUNK);
+			_lastChunkSent = true;
+			return LAST_CHUNK.length;
+		}
+
+		int end = dst.position();
+		dst.position(start);
+		for (int shift = (width - 1) * 4; shift >= 0; shift -= 4)
+			dst.put(HEX_DIGITS[(read >>> shift) & 0xF]);
+		dst.put((byte) '\r').put((byte) '\n');
+		dst.position(end);
+		dst.put((byte) '\r').put((byte) '\n');
+		return dst.position() - start;
+	}
+	/**
+	 * Read body bytes into a buffer, through the transfer array when the buffer has no array.
+	 */
+	private int read(ByteBuffer dst, int length) throws IOException {
+		int read;
+		if (dst.hasArray()) {
+			read = _body.read(dst.array(), dst.arrayOffset() + dst.position(), length);
+			if (read > 0)
+				dst.position(dst.position() + read);
+		} else {
+			if (_transferArray == null || _transferArray.length < length)
+				_transferArray = new byte[length];
+			read = _body.read(_transferArray, 0, length);
+			if (read > 0)
+				dst.put(_transferArray, 0, read);
+		}
+		return read;
+	}
+	/**
+	 * @return False for statuses which never carry a body or Content-Length.
+	 */
+	private static boolean hasBody(HttpResponse response) {
+		String status = response.geHttpResponseStatus();
+		return !(status.startsWith("1") || status.equals(HttpResponse.Status.NO_CONTENT) ||
+				status.equals(HttpResponse.Status.NOT_MODIFIED));
+	}
+	/**
+	 * @return the response currently being encoded.
+	 */
+	public HttpResponse getResponse() {
+		return _response;
+	}
+}
@@ -1,61 +1,76 @@
 package cy.nicosia.zenont.net.protocol.http;
 
+import java.security.SecureRandom;
 import java.util.Calendar;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import cy.nicosia.zenont.base.ConfigManager;
 import cy.nicosia.zenont.base.Logger;
 import cy.nicosia.zenont.base.Pile;
 import cy.nicosia.zenont.base.ConfigManager.Config;
 
+/**
+ * Keeps HTTP sessions and removes expired ones on a maintenance thread.
+ * <p/>
+ * Session lookups are lock free and the singleton is guarded by a ReentrantLock
+ * so that request threads, including virtual threads, are never pinned.
+ */
 public class HttpSessionManager implements Runnable {
 
 	private static final String TAG = "Session Manager";
 	
-	private static final Map<String, HttpSession> _sessionValues;
-	private static HttpSessionManager _httpSessionManager;
+	private static final ConcurrentMap<String, HttpSession> _sessionValues;
+	private static final ReentrantLock _instanceLock;
+	private static final SecureRandom _random;
+	private static volatile HttpSessionManager _httpSessionManager;
 	
 	private HttpSessionManagerConfig _cfg;
 
 	static {	
-		_sessionValues = new HashMap<String, HttpSession>();
+		_sessionValues = new ConcurrentHashMap<String, HttpSession>();
+		_instanceLock = new ReentrantLock();
+		_random = new SecureRandom();
 	}
 	
 	private HttpSessionManager(Config cfg) {
 		_cfg = (HttpSessionManagerConfig) cfg;
 	}
 
-	public synchronized static HttpSessionManager getInstance(ConfigManager conMgr) {
-		if (_httpSessionManager == null){
-			_httpSessionManager = new HttpSessionManager(conMgr.getConfig(HttpSessionManagerConfig.class));
-			Thread maintenance = new Thread(_httpSessionManager);
-			maintenance.setName(TAG);
-			maintenance.start();
+	public static HttpSessionManager getInstance(ConfigManager conMgr) {
+		HttpSessionManager instance = _httpSessionManager;
+		if (instance != null)
+			return instance;
+
+		_instanceLock.lock();
+		try {
+			if (_httpSessionManager == null){
+				_httpSessionManager = new HttpSessionManager(conMgr.getConfig(HttpSessionManagerConfig.class));
+				Thread maintenance = new Thread(_httpSessionManager);
+				maintenance.setName(TAG);
+				maintenance.start();
+			}
+		} finally {
+			_instanceLock.unlock();
 		}
 			
 		return _httpSessionManager;
 	}
 
-	public synchronized HttpSession getSession(String key) {
+	public HttpSession getSession(String key) {
 		try {
-			HttpSession tempSession = null;
-			if (key != null && _sessionValues.containsKey(key)) {	
-					tempSession = _sessionValues.get(key);
-					if (!tempSession.isExpired())
-						tempSession.updateLastAccessTime();
-					else
-						tempSession = getSession(null);
+			HttpSession tempSession = (key != null ? _sessionValues.get(key) : null);
+			if (tempSession != null && !tempSession.isExpired()) {	
+				tempSession.updateLastAccessTime();
 			} else {
-				String newKey = null;
+				HttpSession newSession = null;
 				do {
-					newKey = generateKey();
-				} while(_sessionValues.containsKey(key));
-				tempSession = new HttpSession(newKey, _cfg.getConfigSessionTimeoutMinutes());
-				_sessionValues.put(newKey, tempSession);
+					newSession = new HttpSession(generateKey(), _cfg.getConfigSessionTimeoutMinutes());
+				} while(_sessionValues.putIfAbsent(newSession.getSessionKey(), newSession) != null);
+				tempSession = newSession;
 			}
 
 			return tempSession;
@@ -64,7 +79,7 @@ public class HttpSessionManager implements Runnable {
 		}
 	}
 
-	private synchronized void maintainSessions() {
+	private void maintainSessions() {
 		Logger.debug(TAG, "Running _session maintenance");
 		Iterator<Entry<String, HttpSession>> it = _sessionValues.entrySet().iterator();
 		
@@ -97,7 +112,8 @@ public class HttpSessionManager implements Runnable {
 	private String generateKey() {
 		String AB = "ABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890abcdefghijklmnopqrstuvwxyz";
 		int len = 30;
-		Random rnd = new Random(Calendar.getInstance().getTimeInMillis());
+		//A generator seeded per call with the current time repeats keys within the same millisecond
+		SecureRandom rnd = _random;
 
 		StringBuilder sb = new StringBuilder(len);
 		for(int i = 0; i < len; i++) 
@@ -111,7 +127,7 @@ public class HttpSessionManager implements Runnable {
 		private static final String TAG = "Http Session";
 
 		private final String _sessionKey;
-		private long _lastAccess;
+		private volatile long _lastAccess;
 		private long _sessionTimeout;
 
 		public HttpSession(String key, int sessionTimeout) {